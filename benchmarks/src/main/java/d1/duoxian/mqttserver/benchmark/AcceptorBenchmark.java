@@ -0,0 +1,88 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttServerService;
+import d1.duoxian.mqttserver.MqttServerServiceOption;
+import d1.duoxian.mqttserver.MqttTransport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.concurrent.Promise;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 设备集中重连时每秒能建立多少连接（TCP连接、CONNECT、收到CONNACK后断开），比较SO_REUSEPORT绑定1、4、8个监听socket。
+ * 需要在linux上用epoll运行，否则服务端只绑定一个socket；客户端和服务端在同一台机器上，多核机器上才能看出差别
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Threads(16)
+@Fork(1)
+public class AcceptorBenchmark {
+    @Param({"1", "4", "8"})
+    private int acceptors;
+
+    private MqttServerService server;
+    private EventLoopGroup clientGroup;
+    private Bootstrap bootstrap;
+    private int port;
+    private final AtomicInteger clientIds = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        port = BenchmarkSupport.freePort();
+        server = BenchmarkSupport.startServer(new MqttServerServiceOption.Builder()
+                .port(port)
+                .transport(MqttTransport.EPOLL)
+                .acceptorNumber(acceptors)
+                .messageListener(new BenchmarkSupport.NoopListener())
+                .build());
+        boolean epoll = Epoll.isAvailable();
+        clientGroup = epoll ? new EpollEventLoopGroup(8) : new NioEventLoopGroup(8);
+        bootstrap = new Bootstrap().group(clientGroup)
+                .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+                .option(ChannelOption.SO_LINGER, 0)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE);
+                    }
+                });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        clientGroup.shutdownGracefully();
+        server.close();
+    }
+
+    @Benchmark
+    public void connect() throws Exception {
+        Channel channel = bootstrap.connect("127.0.0.1", port).sync().channel();
+        Promise<Void> connAck = channel.eventLoop().newPromise();
+        channel.pipeline().addLast(new SimpleChannelInboundHandler<MqttMessage>() {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+                if (msg.fixedHeader().messageType() == MqttMessageType.CONNACK) {
+                    connAck.trySuccess(null);
+                }
+            }
+        });
+        channel.writeAndFlush(BenchmarkSupport.connect("bench-" + clientIds.incrementAndGet()));
+        connAck.get(10, TimeUnit.SECONDS);
+        //SO_LINGER为0，断开时直接RST，避免本机的TIME_WAIT用完端口
+        channel.close().sync();
+    }
+}
@@ -0,0 +1,98 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.ClientSession;
+import d1.duoxian.mqttserver.ClientSessionManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最后活跃时间的更新和查询。sessions个设备在线，其中idle个设备在一小时前上线后再没有报文（把管理器的时钟往回拨来模拟），
+ * 查询空闲设备时只遍历比阈值更早的时间段，开销和空闲设备数有关，和在线总数无关，scanAll是遍历所有session的对比。
+ * touch每次随机选一个设备，几乎每次都跨过时间段要移动索引，是设备报文稀疏时的开销；
+ * touchSameBucket反复更新同一个设备，同一段里只写一个long
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActivityIndexBenchmark {
+    @Param({"500000"})
+    private int sessions;
+
+    @Param({"100"})
+    private int idle;
+
+    private ClientSessionManager manager;
+    private ClientSession[] active;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        AtomicLong offset = new AtomicLong();
+        manager = new ClientSessionManager(() -> System.currentTimeMillis() - offset.get());
+        manager.setListener(new BenchmarkSupport.NoopListener());
+        active = new ClientSession[sessions - idle];
+        for (int i = 0; i < sessions; i++) {
+            String uuid = "device-" + i;
+            //前idle个设备一小时前上线，之后没有报文
+            offset.set(i < idle ? TimeUnit.HOURS.toMillis(1) : 0);
+            manager.online("127.0.0.1", Integer.toString(i + 1), null, uuid, "admin", true);
+            if (i >= idle) {
+                active[i - idle] = manager.getSessionByUuid(uuid);
+            }
+        }
+        offset.set(0);
+        check();
+    }
+
+    /**
+     * touch只更新在线的设备，每轮之后空闲的设备数都不变
+     */
+    @TearDown(Level.Iteration)
+    public void check() {
+        int found = manager.getIdleSessions(TimeUnit.MINUTES.toMillis(10)).size();
+        if (found != idle) {
+            throw new IllegalStateException("expected " + idle + " idle sessions but found " + found);
+        }
+    }
+
+    @Benchmark
+    public void touch() {
+        manager.touch(active[ThreadLocalRandom.current().nextInt(active.length)], System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public void touchSameBucket() {
+        manager.touch(active[0], System.currentTimeMillis());
+    }
+
+    /**
+     * 超过10分钟没有报文的设备
+     */
+    @Benchmark
+    public List<ClientSession> idleSessions() {
+        return manager.getIdleSessions(TimeUnit.MINUTES.toMillis(10));
+    }
+
+    /**
+     * 对比：遍历所有session找出空闲的
+     */
+    @Benchmark
+    public int scanAll() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10);
+        int count = 0;
+        for (ClientSession session : manager.getClientsMap().values()) {
+            if (session.getLastActivity() < cutoff) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
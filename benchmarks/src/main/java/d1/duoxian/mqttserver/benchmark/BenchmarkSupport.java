@@ -0,0 +1,131 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.ClientSession;
+import d1.duoxian.mqttserver.CustomMqttPublishMessage;
+import d1.duoxian.mqttserver.IMqttBinaryMessageListener;
+import d1.duoxian.mqttserver.IMqttMessageListener;
+import d1.duoxian.mqttserver.MqttServerService;
+import d1.duoxian.mqttserver.MqttServerServiceOption;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 各个benchmark共用的工具：启动服务端、构建客户端报文
+ *
+ * @author liuyi
+ */
+public class BenchmarkSupport {
+    /**
+     * 什么都不做的监听，只测框架本身的开销
+     */
+    public static class NoopListener implements IMqttMessageListener {
+        @Override
+        public void offline(String uuid, ClientSession clientSession) {
+        }
+
+        @Override
+        public void onMessage(String ip, String channelId, String topic, String message, Function<CustomMqttPublishMessage, Boolean> publisher) {
+        }
+
+        @Override
+        public void online(String uuid, ClientSession clientSession) {
+        }
+
+        @Override
+        public String clientIdToUuid(String clientId) {
+            return clientId;
+        }
+    }
+
+    /**
+     * 以二进制方式接收消息并计数，benchmark用计数等待处理线程处理完
+     */
+    public static class CountingListener extends NoopListener implements IMqttBinaryMessageListener {
+        private final AtomicLong received = new AtomicLong();
+
+        @Override
+        public void onMessage(String ip, String channelId, String topic, ByteBuf payload, Function<CustomMqttPublishMessage, Boolean> publisher) {
+            received.incrementAndGet();
+        }
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        /**
+         * 等到处理线程一共处理了target条消息
+         */
+        public void await(long target) {
+            while (received.get() < target) {
+                Thread.yield();
+            }
+        }
+    }
+
+    public static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * 在后台线程里启动服务端，等端口可以连接后返回
+     */
+    public static MqttServerService startServer(MqttServerServiceOption option) throws Exception {
+        MqttServerService server = new MqttServerService();
+        Thread thread = new Thread(() -> server.startup(option), "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", option.getPort());
+                socket.close();
+                return server;
+            } catch (Exception e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("mqtt server not started on port " + option.getPort());
+    }
+
+    public static MqttConnectMessage connect(String clientId) {
+        return new MqttConnectMessage(
+                new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttConnectVariableHeader(MqttVersion.MQTT_3_1_1.protocolName(), MqttVersion.MQTT_3_1_1.protocolLevel(), true, true, false, 0, false, true, 60),
+                new MqttConnectPayload(clientId, null, (byte[]) null, "admin", "password".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static MqttFixedHeader publishHeader(MqttQoS qos) {
+        return new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0);
+    }
+
+    public static MqttPublishMessage publish(String topic, MqttQoS qos, int packetId, byte[] payload) {
+        return new MqttPublishMessage(publishHeader(qos), new MqttPublishVariableHeader(topic, packetId), Unpooled.wrappedBuffer(payload));
+    }
+
+    /**
+     * 把报文编码成客户端发送的字节，多个报文连在一起，模拟一次socket读到多个报文
+     */
+    public static ByteBuf encode(MqttMessage... messages) {
+        EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        ByteBuf result = Unpooled.buffer();
+        for (MqttMessage message : messages) {
+            channel.writeOutbound(message);
+            ByteBuf encoded;
+            while ((encoded = channel.readOutbound()) != null) {
+                result.writeBytes(encoded);
+                encoded.release();
+            }
+        }
+        channel.finishAndReleaseAll();
+        return result;
+    }
+}
@@ -0,0 +1,133 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.ClientSession;
+import d1.duoxian.mqttserver.CustomMqttPublishMessage;
+import d1.duoxian.mqttserver.MqttChannelInboundHandler;
+import d1.duoxian.mqttserver.MqttServerService;
+import d1.duoxian.mqttserver.MqttServerServiceOption;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 给所有在线设备发送同一条QoS0消息，直到每个客户端都收到为止。
+ * 用netty的LocalChannel在进程内建立clients个连接，服务端pipeline和真实的一样（decoder、encoder、MqttChannelInboundHandler）。
+ * <p>
+ * perSession：遍历getClientsMap()，每个session调用一次publisher，每次都重新编码内容、创建报文、向io线程提交一个任务；
+ * publishToAll：内容和报文只编码一次，每个通道写入retainedDuplicate，每个io线程只提交一次任务
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String TOPIC = "device/firmware/notice";
+
+    @Param({"10000", "50000"})
+    private int clients;
+
+    private MqttServerService server;
+    private EventLoopGroup serverGroup;
+    private EventLoopGroup clientGroup;
+    private Channel serverChannel;
+    private final List<Channel> channels = new ArrayList<>();
+    private final AtomicLong received = new AtomicLong();
+    private String content;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        MqttServerServiceOption option = new MqttServerServiceOption.Builder().messageListener(new BenchmarkSupport.NoopListener()).build();
+        server = new MqttServerService();
+        server.prepare(option);
+        serverGroup = new DefaultEventLoopGroup(4);
+        clientGroup = new DefaultEventLoopGroup(4);
+        serverChannel = new ServerBootstrap().group(serverGroup).channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(option.getMaxBytesInMessage()), MqttEncoder.INSTANCE,
+                                new MqttChannelInboundHandler(option, server));
+                    }
+                }).bind(LocalAddress.ANY).sync().channel();
+        SocketAddress address = serverChannel.localAddress();
+        Bootstrap bootstrap = new Bootstrap().group(clientGroup).channel(LocalChannel.class).handler(new Receiver());
+        for (int i = 0; i < clients; i++) {
+            Channel channel = bootstrap.connect(address).sync().channel();
+            ByteBuf connect = BenchmarkSupport.encode(BenchmarkSupport.connect("broadcast-" + i));
+            channel.writeAndFlush(connect);
+            channels.add(channel);
+        }
+        while (server.getClientSessionManager().getClientsMap().size() < clients || received.get() < clients) {
+            Thread.sleep(10);
+        }
+        expected = received.get();
+        char[] chars = new char[256];
+        Arrays.fill(chars, 'x');
+        content = new String(chars);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Channel channel : channels) {
+            channel.close();
+        }
+        serverChannel.close().sync();
+        clientGroup.shutdownGracefully().sync();
+        serverGroup.shutdownGracefully().sync();
+        server.close();
+    }
+
+    @Benchmark
+    public void perSession() {
+        for (ClientSession session : server.getClientSessionManager().getClientsMap().values()) {
+            session.getPublisher().apply(new CustomMqttPublishMessage(session.getChannelId(), TOPIC, content));
+        }
+        await();
+    }
+
+    @Benchmark
+    public void publishToAll() {
+        server.publishToAll(TOPIC, content, MqttQoS.AT_MOST_ONCE);
+        await();
+    }
+
+    private void await() {
+        expected += clients;
+        while (received.get() < expected) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 所有客户端共用，只计数。LocalChannel不合并写入，每个ByteBuf就是一个报文
+     */
+    @ChannelHandler.Sharable
+    private class Receiver extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            received.incrementAndGet();
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.CustomMqttPublishMessage;
+import d1.duoxian.mqttserver.MqttChannelInboundHandler;
+import d1.duoxian.mqttserver.MqttServerService;
+import d1.duoxian.mqttserver.MqttServerServiceOption;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不走网络，用EmbeddedChannel驱动和服务端一样的pipeline（decoder、encoder、MqttChannelInboundHandler），
+ * 测CONNECT处理、PUBLISH从解码到onMessage的吞吐量，以及publish()编码发送的开销
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelHandlerBenchmark {
+    private static final int BATCH = 100;
+    private static final String TOPIC = "device/benchmark/up";
+
+    @Param({"64", "1024"})
+    private int payloadSize;
+
+    private MqttServerServiceOption option;
+    private MqttServerService server;
+    private BenchmarkSupport.CountingListener listener;
+    private ByteBuf connectBytes;
+    private ByteBuf qos0Bytes;
+    private ByteBuf qos1Bytes;
+    private EmbeddedChannel channel;
+    private CustomMqttPublishMessage downlink;
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        listener = new BenchmarkSupport.CountingListener();
+        option = new MqttServerServiceOption.Builder().messageListener(listener).build();
+        server = new MqttServerService();
+        server.prepare(option);
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+        MqttMessage[] qos0 = new MqttMessage[BATCH];
+        MqttMessage[] qos1 = new MqttMessage[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            qos0[i] = BenchmarkSupport.publish(TOPIC, MqttQoS.AT_MOST_ONCE, 0, payload);
+            qos1[i] = BenchmarkSupport.publish(TOPIC, MqttQoS.AT_LEAST_ONCE, i + 1, payload);
+        }
+        qos0Bytes = BenchmarkSupport.encode(qos0);
+        qos1Bytes = BenchmarkSupport.encode(qos1);
+        connectBytes = BenchmarkSupport.encode(BenchmarkSupport.connect("benchmark-connect"));
+
+        channel = newChannel();
+        channel.writeInbound(BenchmarkSupport.encode(BenchmarkSupport.connect("benchmark-device")));
+        releaseOutbound(channel);
+        String channelId = server.getClientSessionManager().getClientsMap().get("benchmark-device").getChannelId();
+        downlink = new CustomMqttPublishMessage(channelId, "device/benchmark/down", new String(payload));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        connectBytes.release();
+        qos0Bytes.release();
+        qos1Bytes.release();
+        server.close();
+    }
+
+    private EmbeddedChannel newChannel() {
+        return new EmbeddedChannel(new MqttDecoder(option.getMaxBytesInMessage()), MqttEncoder.INSTANCE,
+                new MqttChannelInboundHandler(option, server));
+    }
+
+    private static void releaseOutbound(EmbeddedChannel channel) {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ((ByteBuf) msg).release();
+        }
+    }
+
+    /**
+     * 新通道收到CONNECT、回复CONNACK、会话上线，然后断开下线
+     */
+    @Benchmark
+    public void connect() {
+        EmbeddedChannel client = newChannel();
+        client.writeInbound(connectBytes.retainedDuplicate());
+        releaseOutbound(client);
+        client.close();
+    }
+
+    /**
+     * 一次读到100个QoS0的PUBLISH，等处理线程全部交给onMessage
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishQos0() {
+        receive(qos0Bytes);
+    }
+
+    /**
+     * 一次读到100个QoS1的PUBLISH，包括回复PUBACK的编码
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishQos1() {
+        receive(qos1Bytes);
+    }
+
+    private void receive(ByteBuf bytes) {
+        channel.writeInbound(bytes.retainedDuplicate());
+        releaseOutbound(channel);
+        sent += BATCH;
+        listener.await(sent);
+    }
+
+    /**
+     * 服务端调用publish()下发消息，包括构建报文、经过发送队列和编码
+     */
+    @Benchmark
+    public void publishEncode() {
+        ((MqttChannelInboundHandler) channel.pipeline().last()).publish(downlink);
+        releaseOutbound(channel);
+    }
+}
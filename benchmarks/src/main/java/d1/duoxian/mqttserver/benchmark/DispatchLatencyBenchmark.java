@@ -0,0 +1,53 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttMessageDispatcher;
+import d1.duoxian.mqttserver.MqttQueueType;
+import d1.duoxian.mqttserver.MqttServerServiceOption;
+import d1.duoxian.mqttserver.WrapMqttMessage;
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * io线程把消息放入接收队列，到处理线程调用onMessage之间的延迟，每次只有一条消息在队列里
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchLatencyBenchmark {
+    @Param({"LINKED", "RING_BUFFER"})
+    private MqttQueueType queueType;
+
+    private BenchmarkSupport.CountingListener listener;
+    private MqttMessageDispatcher dispatcher;
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        listener = new BenchmarkSupport.CountingListener();
+        dispatcher = new MqttMessageDispatcher(new MqttServerServiceOption.Builder()
+                .messageListener(listener)
+                .queueType(queueType)
+                .build());
+        dispatcher.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public void handOff() {
+        if (!dispatcher.dispatch(new WrapMqttMessage("127.0.0.1", "1", "device/benchmark/up", (ByteBuf) null, null))) {
+            throw new IllegalStateException("dispatch queue is full");
+        }
+        listener.await(++sent);
+    }
+}
@@ -0,0 +1,78 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttEventQueue;
+import d1.duoxian.mqttserver.MqttQueueType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个io线程同时往接收队列里放消息，一个处理线程批量取出，比较LINKED和RING_BUFFER的吞吐量。
+ * 生产者线程数用-t指定，直接运行main会依次跑8、16、32个生产者
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class EventQueueBenchmark {
+    private static final Object MESSAGE = new Object();
+
+    @Param({"LINKED", "RING_BUFFER"})
+    private MqttQueueType queueType;
+
+    @Param({"65536"})
+    private int capacity;
+
+    private MqttEventQueue<Object> queue;
+    private Thread consumer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        queue = MqttEventQueue.create(queueType, capacity);
+        consumer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    queue.drain(message -> {
+                    }, 64);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "event-queue-consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        consumer.interrupt();
+        consumer.join(1000);
+    }
+
+    /**
+     * 队列满了就让出cpu再试，和io线程的处理不同，这里要测的是能放进去多少
+     */
+    @Benchmark
+    public void offer() {
+        while (!queue.offer(MESSAGE)) {
+            Thread.yield();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{8, 16, 32}) {
+            new Runner(new OptionsBuilder()
+                    .include(EventQueueBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttInboundQuota;
+import d1.duoxian.mqttserver.MqttQuota;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每条PUBLISH都要做的配额检查，加-prof gc运行可以确认gc.alloc.rate.norm为0
+ *
+ * @author liuyi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InboundQuotaBenchmark {
+    private MqttInboundQuota quota;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        quota = new MqttInboundQuota(new MqttQuota(1000, 1024 * 1024));
+    }
+
+    /**
+     * DROP和DISCONNECT使用
+     */
+    @Benchmark
+    public boolean tryAcquire() {
+        return quota.tryAcquire(256);
+    }
+
+    /**
+     * THROTTLE使用
+     */
+    @Benchmark
+    public long acquire() {
+        return quota.acquire(256);
+    }
+}
@@ -0,0 +1,131 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttKeepAlive;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳检测的开销，比较每个通道一个IdleStateHandler和所有通道共用时间轮的MqttKeepAlive。
+ * <p>
+ * rearm：已经有connections个通道在等超时，在io线程上放入并取消一个超时任务的开销，对应连接建立和断开。
+ * IdleStateHandler的任务在io线程的优先队列里，放入和取出都是O(log n)，每个超时周期还要在io线程上重新定时一次；
+ * 时间轮在io线程上只是放进一个队列，超时周期的重新定时在时间轮线程里做。
+ * 时间轮线程每个tick才处理取消的任务，为了不让没处理完的任务越积越多，rearm每次只测一批，测之前等时间轮处理完上一批
+ * <p>
+ * read：每收到一个报文的开销，IdleStateHandler在channelRead和channelReadComplete里记录，MqttKeepAlive只写一个long
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeepAliveBenchmark {
+    private static final int BATCH = 10000;
+    private static final Runnable NOOP = () -> {
+    };
+    private static final TimerTask NOOP_TASK = timeout -> {
+    };
+
+    @Param({"IDLE_STATE_HANDLER", "TIMING_WHEEL"})
+    private String tracker;
+
+    @Param({"10000", "100000"})
+    private int connections;
+
+    private DefaultEventLoop loop;
+    private HashedWheelTimer timer;
+    private Runnable rearmBatch;
+    private EmbeddedChannel channel;
+    private final Object message = new Object();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        loop = new DefaultEventLoop();
+        timer = new HashedWheelTimer(new DefaultThreadFactory("benchmark-timer", true), 100, TimeUnit.MILLISECONDS, 512);
+        boolean wheel = "TIMING_WHEEL".equals(tracker);
+        loop.submit(() -> {
+            for (int i = 0; i < connections; i++) {
+                if (wheel) {
+                    timer.newTimeout(NOOP_TASK, 90, TimeUnit.SECONDS);
+                } else {
+                    loop.schedule(NOOP, 90, TimeUnit.SECONDS);
+                }
+            }
+        }).sync();
+        rearmBatch = wheel ? () -> {
+            for (int i = 0; i < BATCH; i++) {
+                Timeout timeout = timer.newTimeout(NOOP_TASK, 90, TimeUnit.SECONDS);
+                timeout.cancel();
+            }
+        } : () -> {
+            for (int i = 0; i < BATCH; i++) {
+                ScheduledFuture<?> future = loop.schedule(NOOP, 90, TimeUnit.SECONDS);
+                future.cancel(false);
+            }
+        };
+        if (wheel) {
+            channel = new EmbeddedChannel(new KeepAliveHandler());
+            channel.pipeline().get(KeepAliveHandler.class).keepAlive = new MqttKeepAlive(channel, "1", timer, TimeUnit.SECONDS.toNanos(90));
+        } else {
+            channel = new EmbeddedChannel(new IdleStateHandler(90, 0, 0), new ChannelInboundHandlerAdapter());
+        }
+    }
+
+    /**
+     * 等时间轮线程处理完上一批取消的任务
+     */
+    @Setup(Level.Iteration)
+    public void drain() throws InterruptedException {
+        while (timer.pendingTimeouts() > connections + 1) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        loop.shutdownGracefully();
+        timer.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    @OperationsPerInvocation(BATCH)
+    public void rearm() throws Exception {
+        loop.submit(rearmBatch).sync();
+    }
+
+    @Benchmark
+    public void read() {
+        channel.pipeline().fireChannelRead(message);
+        channel.pipeline().fireChannelReadComplete();
+    }
+
+    /**
+     * 和MqttChannelInboundHandler一样，每个报文记录一次时间
+     */
+    private static class KeepAliveHandler extends ChannelInboundHandlerAdapter {
+        private MqttKeepAlive keepAlive;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            keepAlive.touch(System.nanoTime());
+        }
+    }
+}
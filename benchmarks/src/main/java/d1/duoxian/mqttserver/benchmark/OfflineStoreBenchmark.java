@@ -0,0 +1,75 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttOfflineStore;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 离线消息存储的写入和补发。每个uuid只保留少量消息，写入时不断删除最早的消息，
+ * 后台压缩会一直在工作，测的是带压缩的持续写入速度
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OfflineStoreBenchmark {
+    @Param({"128", "1024"})
+    private int payloadSize;
+
+    @Param({"1000"})
+    private int clients;
+
+    private File dir;
+    private MqttOfflineStore store;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("offline-store").toFile();
+        store = new MqttOfflineStore(dir.getPath(), 16 * 1024 * 1024, 100);
+        payload = new byte[payloadSize];
+        for (int i = 0; i < clients; i++) {
+            store.setPersistent("device-" + i, true);
+            for (int j = 0; j < 10; j++) {
+                store.append("device-" + i, "cmd/" + i, MqttQoS.AT_LEAST_ONCE, payload);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean append() {
+        int i = ThreadLocalRandom.current().nextInt(clients);
+        return store.append("device-" + i, "cmd/" + i, MqttQoS.AT_LEAST_ONCE, payload);
+    }
+
+    /**
+     * 设备重新连接时读出所有离线消息
+     */
+    @Benchmark
+    public List<MqttOfflineStore.StoredMessage> pending() {
+        return store.pending("device-" + ThreadLocalRandom.current().nextInt(clients));
+    }
+}
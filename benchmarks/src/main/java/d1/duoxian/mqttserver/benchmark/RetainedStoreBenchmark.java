@@ -0,0 +1,77 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttRetainedStore;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 保留消息的写入和订阅时按filter查询，topic形如site/{站点}/dev/{设备}/cfg，每个站点100个设备
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetainedStoreBenchmark {
+    private static final int DEVICES_PER_SITE = 100;
+
+    @Param({"10000", "1000000"})
+    private int topics;
+
+    private MqttRetainedStore store;
+    private int sites;
+    private final byte[] payload = new byte[64];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        store = new MqttRetainedStore(0, 0, null, 0);
+        sites = topics / DEVICES_PER_SITE;
+        for (int i = 0; i < topics; i++) {
+            store.put(topic(i / DEVICES_PER_SITE, i % DEVICES_PER_SITE), MqttQoS.AT_LEAST_ONCE, payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public boolean put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return store.put(topic(random.nextInt(sites), random.nextInt(DEVICES_PER_SITE)), MqttQoS.AT_LEAST_ONCE, payload);
+    }
+
+    /**
+     * 设备订阅自己的配置
+     */
+    @Benchmark
+    public List<MqttRetainedStore.RetainedMessage> matchExact() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return store.match(topic(random.nextInt(sites), random.nextInt(DEVICES_PER_SITE)));
+    }
+
+    /**
+     * 网关订阅一个站点下所有设备的配置，返回100条
+     */
+    @Benchmark
+    public List<MqttRetainedStore.RetainedMessage> matchSingleLevel() {
+        return store.match("site/" + ThreadLocalRandom.current().nextInt(sites) + "/dev/+/cfg");
+    }
+
+    @Benchmark
+    public List<MqttRetainedStore.RetainedMessage> matchMultiLevel() {
+        return store.match("site/" + ThreadLocalRandom.current().nextInt(sites) + "/#");
+    }
+
+    private static String topic(int site, int device) {
+        return "site/" + site + "/dev/" + device + "/cfg";
+    }
+}
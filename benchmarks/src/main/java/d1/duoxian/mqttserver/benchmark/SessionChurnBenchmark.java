@@ -0,0 +1,83 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.ClientSession;
+import d1.duoxian.mqttserver.ClientSessionManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多个io线程同时让设备上线、下线和抢占重连（同一个uuid在新通道上线，旧通道随后断开），
+ * 测吞吐量，并在结束时检查clientsMap和channelsMap是否一致
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class SessionChurnBenchmark {
+    @Param({"1000", "100000"})
+    private int devices;
+
+    private ClientSessionManager manager;
+    private final AtomicLong channelIds = new AtomicLong();
+    /**
+     * 每个uuid最近一次上线用的通道，用来模拟旧通道断开
+     */
+    private final Map<String, String> lastChannel = new ConcurrentHashMap<>();
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        manager = new ClientSessionManager();
+        manager.setListener(new BenchmarkSupport.NoopListener());
+        lastChannel.clear();
+    }
+
+    @TearDown(Level.Iteration)
+    public void verify() {
+        for (Map.Entry<String, ClientSession> entry : manager.getClientsMap().entrySet()) {
+            ClientSession session = entry.getValue();
+            if (manager.getChannelsMap().get(session.getChannelId()) != session) {
+                throw new IllegalStateException("session of " + entry.getKey() + " lost its channel " + session.getChannelId());
+            }
+        }
+        for (Map.Entry<String, ClientSession> entry : manager.getChannelsMap().entrySet()) {
+            if (manager.getClientsMap().get(entry.getValue().getUuid()) != entry.getValue()) {
+                throw new IllegalStateException("channel " + entry.getKey() + " points to a removed session");
+            }
+        }
+    }
+
+    /**
+     * 设备在新通道上线，然后旧通道断开
+     */
+    @Benchmark
+    public void reconnect() {
+        String uuid = "device-" + ThreadLocalRandom.current().nextInt(devices);
+        String channelId = Long.toString(channelIds.incrementAndGet());
+        String previous = lastChannel.put(uuid, channelId);
+        manager.online("127.0.0.1", channelId, null, uuid, "admin", true);
+        if (previous != null) {
+            manager.offline(previous);
+        }
+    }
+
+    /**
+     * 设备上线后马上下线
+     */
+    @Benchmark
+    public void onlineOffline() {
+        String uuid = "device-" + ThreadLocalRandom.current().nextInt(devices);
+        String channelId = Long.toString(channelIds.incrementAndGet());
+        manager.online("127.0.0.1", channelId, null, uuid, "admin", true);
+        manager.offline(channelId);
+    }
+}
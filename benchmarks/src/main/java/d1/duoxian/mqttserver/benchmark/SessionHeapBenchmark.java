@@ -0,0 +1,109 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.ClientSessionManager;
+import d1.duoxian.mqttserver.MqttChannelInboundHandler;
+import d1.duoxian.mqttserver.MqttServerService;
+import d1.duoxian.mqttserver.MqttServerServiceOption;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 空闲连接占用的堆内存，结果看bytesPerConnection（每个连接的字节数，乘以10万就是10万个空闲连接占用的堆）。
+ * <p>
+ * sessions：只有ClientSessionManager里的session，模拟1000个NAT出口ip、10个用户名，
+ * ip、uuid、用户名都是新的对象，和解码CONNECT报文得到的一样。
+ * connections：用EmbeddedChannel走和服务端一样的pipeline完成CONNECT，包括netty通道本身、handler和发送队列等，
+ * 所有通道的ip都是embedded。
+ * 计数器在多次迭代之间会累加，所以只测一次
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SessionHeapBenchmark {
+    @Param({"100000"})
+    private int connections;
+
+    private MqttServerServiceOption option;
+    private MqttServerService server;
+    private ByteBuf[] connectBytes;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Heap {
+        public long bytesPerConnection;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        option = new MqttServerServiceOption.Builder().messageListener(new BenchmarkSupport.NoopListener()).build();
+        server = new MqttServerService();
+        server.prepare(option);
+        connectBytes = new ByteBuf[connections];
+        for (int i = 0; i < connections; i++) {
+            connectBytes[i] = BenchmarkSupport.encode(BenchmarkSupport.connect("heap-device-" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (ByteBuf bytes : connectBytes) {
+            bytes.release();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public Object sessions(Heap heap) {
+        ClientSessionManager manager = new ClientSessionManager();
+        long before = usedHeap();
+        for (int i = 0; i < connections; i++) {
+            manager.online(new String("10.0." + (i % 1000 / 250) + "." + (i % 250)), Long.toString(i + 1), null,
+                    new String("heap-device-" + i), new String("user-" + (i % 10)), true);
+        }
+        heap.bytesPerConnection = (usedHeap() - before) / connections;
+        return manager;
+    }
+
+    @Benchmark
+    public Object connections(Heap heap) {
+        EmbeddedChannel[] channels = new EmbeddedChannel[connections];
+        long before = usedHeap();
+        for (int i = 0; i < connections; i++) {
+            channels[i] = new EmbeddedChannel(new MqttDecoder(option.getMaxBytesInMessage()), MqttEncoder.INSTANCE,
+                    new MqttChannelInboundHandler(option, server));
+            channels[i].writeInbound(connectBytes[i].retainedDuplicate());
+            Object msg;
+            while ((msg = channels[i].readOutbound()) != null) {
+                ((ByteBuf) msg).release();
+            }
+        }
+        heap.bytesPerConnection = (usedHeap() - before) / connections;
+        for (EmbeddedChannel channel : channels) {
+            channel.close();
+        }
+        return channels;
+    }
+
+    /**
+     * 多次gc后已经使用的堆
+     */
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,103 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttSubscriptionTrie;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订阅树的匹配耗时。订阅数量按设备划分：每个设备订阅自己的命令topic，
+ * 每个租户另外有+和#的通配订阅，模拟业务后台监听整个租户的情况
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class SubscriptionTrieBenchmark {
+    private static final int TENANTS = 100;
+    /**
+     * 预先生成的随机topic数量，必须是2的幂，测量时只按下标取，不在计时范围内拼接字符串
+     */
+    private static final int TOPICS = 4096;
+
+    @Param({"10000", "1000000"})
+    private int subscriptions;
+
+    private MqttSubscriptionTrie<Integer> trie;
+    private String[] exactTopics;
+    private String[] wildcardTopics;
+    private String[] noneTopics;
+    private String[] filters;
+
+    /**
+     * 每个线程自己的下标
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index;
+
+        int next() {
+            return index++ & (TOPICS - 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        trie = new MqttSubscriptionTrie<>();
+        int devicesPerTenant = subscriptions / TENANTS;
+        int id = 0;
+        for (int t = 0; t < TENANTS; t++) {
+            for (int d = 0; d < devicesPerTenant; d++) {
+                trie.subscribe("tenant/" + t + "/device/" + d + "/cmd", id++, MqttQoS.AT_LEAST_ONCE);
+            }
+            trie.subscribe("tenant/" + t + "/device/+/status", id++, MqttQoS.AT_MOST_ONCE);
+            trie.subscribe("tenant/" + t + "/#", id++, MqttQoS.AT_MOST_ONCE);
+        }
+        exactTopics = new String[TOPICS];
+        wildcardTopics = new String[TOPICS];
+        noneTopics = new String[TOPICS];
+        filters = new String[TOPICS];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < TOPICS; i++) {
+            String device = random.nextInt(TENANTS) + "/device/" + random.nextInt(devicesPerTenant);
+            exactTopics[i] = "tenant/" + device + "/cmd";
+            wildcardTopics[i] = "tenant/" + device + "/status";
+            noneTopics[i] = "other/" + device + "/cmd";
+            filters[i] = "tenant/" + device + "/cfg";
+        }
+    }
+
+    @Benchmark
+    public Map<Integer, MqttQoS> matchExact(Cursor cursor) {
+        return trie.match(exactTopics[cursor.next()]);
+    }
+
+    @Benchmark
+    public Map<Integer, MqttQoS> matchWildcard(Cursor cursor) {
+        return trie.match(wildcardTopics[cursor.next()]);
+    }
+
+    @Benchmark
+    public Map<Integer, MqttQoS> matchNone(Cursor cursor) {
+        return trie.match(noneTopics[cursor.next()]);
+    }
+
+    /**
+     * 设备重连时的订阅和取消订阅
+     */
+    @Benchmark
+    @Threads(4)
+    public boolean subscribeUnsubscribe(Cursor cursor) {
+        String filter = filters[cursor.next()];
+        Integer subscriber = ThreadLocalRandom.current().nextInt();
+        trie.subscribe(filter, subscriber, MqttQoS.AT_LEAST_ONCE);
+        return trie.unsubscribe(filter, subscriber);
+    }
+}
@@ -0,0 +1,127 @@
+package d1.duoxian.mqttserver.benchmark;
+
+import d1.duoxian.mqttserver.MqttServerService;
+import d1.duoxian.mqttserver.MqttServerServiceOption;
+import d1.duoxian.mqttserver.MqttTransport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 比较nio和epoll下服务端的建立连接和接收消息的吞吐量，客户端固定用nio。
+ * 运行在linux上才能测到epoll，否则EPOLL会退回到nio
+ *
+ * @author liuyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class TransportBenchmark {
+    private static final int BATCH = 100;
+
+    @Param({"NIO", "EPOLL"})
+    private MqttTransport transport;
+
+    private MqttServerService server;
+    private EventLoopGroup clientGroup;
+    private Bootstrap bootstrap;
+    private int port;
+    private Channel publisher;
+    private final AtomicInteger clientIds = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        port = BenchmarkSupport.freePort();
+        server = BenchmarkSupport.startServer(new MqttServerServiceOption.Builder()
+                .port(port)
+                .transport(transport)
+                .messageListener(new BenchmarkSupport.NoopListener())
+                .build());
+        clientGroup = new NioEventLoopGroup(2);
+        bootstrap = new Bootstrap().group(clientGroup).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE, new AckHandler());
+                    }
+                });
+        publisher = openClient("publisher");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        publisher.close();
+        clientGroup.shutdownGracefully();
+        server.close();
+    }
+
+    /**
+     * 建立连接、CONNECT、收到CONNACK后断开
+     */
+    @Benchmark
+    public void connect() throws Exception {
+        openClient("bench-" + clientIds.incrementAndGet()).close().sync();
+    }
+
+    /**
+     * QoS1发布一批消息，等待全部PUBACK
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishQos1() throws Exception {
+        AckHandler handler = publisher.pipeline().get(AckHandler.class);
+        CompletableFuture<Void> acked = handler.expect(BATCH);
+        ByteBuf payload = Unpooled.wrappedBuffer(new byte[64]);
+        for (int i = 1; i <= BATCH; i++) {
+            publisher.write(new MqttPublishMessage(BenchmarkSupport.publishHeader(MqttQoS.AT_LEAST_ONCE),
+                    new MqttPublishVariableHeader("bench/telemetry", i), payload.retainedDuplicate()));
+        }
+        publisher.flush();
+        payload.release();
+        acked.get(10, TimeUnit.SECONDS);
+    }
+
+    private Channel openClient(String clientId) throws Exception {
+        Channel channel = bootstrap.connect("127.0.0.1", port).sync().channel();
+        CompletableFuture<Void> connAck = channel.pipeline().get(AckHandler.class).expect(1);
+        channel.writeAndFlush(BenchmarkSupport.connect(clientId));
+        connAck.get(10, TimeUnit.SECONDS);
+        return channel;
+    }
+
+    /**
+     * 计数CONNACK和PUBACK，达到期望数量后完成future
+     */
+    private static class AckHandler extends SimpleChannelInboundHandler<MqttMessage> {
+        private volatile CompletableFuture<Void> future;
+        private volatile int remaining;
+
+        CompletableFuture<Void> expect(int count) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            remaining = count;
+            future = f;
+            return f;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+            MqttMessageType type = msg.fixedHeader().messageType();
+            if ((type == MqttMessageType.CONNACK || type == MqttMessageType.PUBACK) && --remaining == 0) {
+                future.complete(null);
+            }
+        }
+    }
+}
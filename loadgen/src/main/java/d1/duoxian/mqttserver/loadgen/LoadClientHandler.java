@@ -0,0 +1,163 @@
+package d1.duoxian.mqttserver.loadgen;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 一个模拟设备：连接后发送CONNECT，按LoadGenerator的节奏发布消息，
+ * 正文以发送时的时间（LoadGenerator.nanos()）开头，服务端原样回复到topic_reply后算出往返延迟
+ *
+ * @author liuyi
+ */
+public class LoadClientHandler extends SimpleChannelInboundHandler<MqttMessage> {
+    private final LoadGenerator generator;
+    private final String clientId;
+    private final String topic;
+    private ChannelHandlerContext ctx;
+    private int packetId;
+    private boolean online;
+    /**
+     * 在所属io线程的设备列表里的位置，只在io线程里访问
+     */
+    int index = -1;
+
+    LoadClientHandler(LoadGenerator generator, String clientId) {
+        this.generator = generator;
+        this.clientId = clientId;
+        this.topic = generator.getOption().getTopicPrefix() + clientId;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        super.channelActive(ctx);
+        this.ctx = ctx;
+        LoadGeneratorOption option = generator.getOption();
+        String username = option.getUsername();
+        byte[] password = option.getPassword() == null ? null : option.getPassword().getBytes(StandardCharsets.UTF_8);
+        ctx.writeAndFlush(new MqttConnectMessage(
+                new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttConnectVariableHeader(MqttVersion.MQTT_3_1_1.protocolName(), MqttVersion.MQTT_3_1_1.protocolLevel(),
+                        username != null, password != null, false, 0, false, true, option.getKeepAlive()),
+                new MqttConnectPayload(clientId, null, (byte[]) null, username, password)));
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+        switch (msg.fixedHeader().messageType()) {
+            case CONNACK:
+                if (((MqttConnAckMessage) msg).variableHeader().connectReturnCode() == MqttConnectReturnCode.CONNECTION_ACCEPTED) {
+                    online = true;
+                    generator.online(this, ctx.channel().eventLoop());
+                } else {
+                    generator.rejected();
+                    ctx.close();
+                }
+                break;
+            case PUBLISH:
+                MqttPublishMessage publish = (MqttPublishMessage) msg;
+                long sentNanos = parseNanos(publish.payload());
+                if (sentNanos >= 0) {
+                    generator.received(generator.nanos() - sentNanos);
+                }
+                //服务端以QoS1/2下发时按协议回复
+                int id = publish.variableHeader().packetId();
+                if (publish.fixedHeader().qosLevel() == MqttQoS.AT_LEAST_ONCE) {
+                    ctx.writeAndFlush(ack(MqttMessageType.PUBACK, MqttQoS.AT_MOST_ONCE, id));
+                } else if (publish.fixedHeader().qosLevel() == MqttQoS.EXACTLY_ONCE) {
+                    ctx.writeAndFlush(ack(MqttMessageType.PUBREC, MqttQoS.AT_MOST_ONCE, id));
+                }
+                break;
+            case PUBACK:
+            case PUBCOMP:
+                generator.acked();
+                break;
+            case PUBREC:
+                ctx.writeAndFlush(ack(MqttMessageType.PUBREL, MqttQoS.AT_LEAST_ONCE, messageId(msg)));
+                break;
+            case PUBREL:
+                ctx.writeAndFlush(ack(MqttMessageType.PUBCOMP, MqttQoS.AT_MOST_ONCE, messageId(msg)));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 发布一条消息，只在io线程里调用
+     */
+    void publish() {
+        LoadGeneratorOption option = generator.getOption();
+        MqttQoS qos = MqttQoS.valueOf(option.getQos());
+        ByteBuf payload = ctx.alloc().buffer(option.getPayload());
+        payload.writeCharSequence(Long.toString(generator.nanos()), StandardCharsets.US_ASCII);
+        payload.writeByte(',');
+        int remaining = option.getPayload() - payload.readableBytes();
+        if (remaining > 0) {
+            payload.writeBytes(generator.getFiller(), 0, remaining);
+        }
+        int id = 0;
+        if (qos != MqttQoS.AT_MOST_ONCE) {
+            packetId = packetId % 0xFFFF + 1;
+            id = packetId;
+        }
+        ctx.writeAndFlush(new MqttPublishMessage(new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+                new MqttPublishVariableHeader(topic, id), payload));
+        generator.sent();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        //一段时间没有发送任何数据，发心跳保持连接
+        if (evt instanceof IdleStateEvent) {
+            ctx.writeAndFlush(new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        super.channelInactive(ctx);
+        if (online) {
+            online = false;
+            generator.offline(this, ctx.channel().eventLoop());
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+
+    private static MqttMessage ack(MqttMessageType type, MqttQoS qos, int packetId) {
+        return new MqttMessage(new MqttFixedHeader(type, false, qos, false, 2), MqttMessageIdVariableHeader.from(packetId));
+    }
+
+    private static int messageId(MqttMessage msg) {
+        return ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
+    }
+
+    /**
+     * 解析正文开头逗号之前的十进制时间戳，不是压测发出的消息返回-1
+     */
+    private static long parseNanos(ByteBuf payload) {
+        long value = 0;
+        int digits = 0;
+        for (int i = payload.readerIndex(); i < payload.writerIndex(); i++) {
+            byte b = payload.getByte(i);
+            if (b == ',') {
+                return digits == 0 ? -1 : value;
+            }
+            if (b < '0' || b > '9' || ++digits > 19) {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return -1;
+    }
+}
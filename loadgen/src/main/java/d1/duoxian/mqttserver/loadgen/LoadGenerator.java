@@ -0,0 +1,302 @@
+package d1.duoxian.mqttserver.loadgen;
+
+import d1.duoxian.mqttserver.MqttLatencyHistogram;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MQTT压测工具，和MqttSslClientNetty一样基于netty的mqtt编解码，少量io线程就能维持十万以上的连接。
+ * 按connectRate逐步建立连接，按rate发布消息，服务端的onMessage需要像MyAppRunner一样把消息原样回复到topic_reply，
+ * 每隔reportInterval秒输出吞吐量和往返延迟的p50/p99/p999
+ *
+ * @author liuyi
+ */
+public class LoadGenerator {
+    private static final long TICK_MILLIS = 10;
+    private static final AttributeKey<String> CLIENT_ID = AttributeKey.valueOf("loadgenClientId");
+    private final LoadGeneratorOption option;
+    private final long startNanos = System.nanoTime();
+    private final byte[] filler;
+    private final EventLoopGroup group;
+    private final Class<? extends SocketChannel> channelClass;
+    private final SslContext sslContext;
+    /**
+     * 每个io线程一个，创建后不再修改
+     */
+    private final Map<EventExecutor, Loop> loops = new HashMap<>();
+    private final AtomicInteger onlineCount = new AtomicInteger();
+    private final LongAdder connectFailed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final MqttLatencyHistogram intervalLatency = new MqttLatencyHistogram();
+    private final MqttLatencyHistogram totalLatency = new MqttLatencyHistogram();
+    /**
+     * 上一次输出统计时的累计值，只在主线程里访问
+     */
+    private long lastSent;
+    private long lastReceived;
+    private long lastAcked;
+
+    public LoadGenerator(LoadGeneratorOption option) throws Exception {
+        this.option = option;
+        this.filler = new byte[Math.max(0, option.getPayload())];
+        Arrays.fill(filler, (byte) 'x');
+        if (Epoll.isAvailable()) {
+            group = new EpollEventLoopGroup(option.getEventLoops());
+            channelClass = EpollSocketChannel.class;
+        } else {
+            group = new NioEventLoopGroup(option.getEventLoops());
+            channelClass = NioSocketChannel.class;
+        }
+        if (option.isTls()) {
+            SslContextBuilder builder = SslContextBuilder.forClient();
+            if (option.getCaCertFile() != null) {
+                builder.trustManager(new File(option.getCaCertFile()));
+            } else {
+                builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+            }
+            if (option.getClientCertFile() != null && option.getClientKeyFile() != null) {
+                builder.keyManager(new File(option.getClientCertFile()), new File(option.getClientKeyFile()));
+            }
+            sslContext = builder.build();
+        } else {
+            sslContext = null;
+        }
+        //发布的速率平分给每个io线程，连接也是轮流分配到每个io线程的
+        double perTick = (double) option.getRate() / option.getEventLoops() * TICK_MILLIS / 1000;
+        for (EventExecutor executor : group) {
+            loops.put(executor, new Loop(perTick));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGeneratorOption option = LoadGeneratorOption.parse(args);
+        System.out.println("loadgen " + option);
+        new LoadGenerator(option).run();
+    }
+
+    public void run() throws InterruptedException {
+        try {
+            for (Map.Entry<EventExecutor, Loop> entry : loops.entrySet()) {
+                Loop loop = entry.getValue();
+                entry.getKey().scheduleAtFixedRate(loop::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            Bootstrap bootstrap = newBootstrap();
+            InetSocketAddress remote = new InetSocketAddress(option.getHost(), option.getPort());
+            List<String> localAddresses = option.getLocalAddresses();
+            long begin = System.nanoTime();
+            long nextReport = begin + TimeUnit.SECONDS.toNanos(option.getReportInterval());
+            int started = 0;
+            //按connectRate逐步建立连接
+            while (started < option.getClients()) {
+                long elapsed = System.nanoTime() - begin;
+                long target = Math.min(option.getClients(), elapsed * option.getConnectRate() / TimeUnit.SECONDS.toNanos(1) + 1);
+                for (; started < target; started++) {
+                    String clientId = option.getClientIdPrefix() + started;
+                    ChannelFuture future = localAddresses.isEmpty() ? bootstrap.attr(CLIENT_ID, clientId).connect(remote)
+                            : bootstrap.attr(CLIENT_ID, clientId).connect(remote,
+                            new InetSocketAddress(localAddresses.get(started % localAddresses.size()), 0));
+                    future.addListener(f -> {
+                        if (!f.isSuccess()) {
+                            connectFailed.increment();
+                        }
+                    });
+                }
+                if (System.nanoTime() >= nextReport) {
+                    report(option.getReportInterval());
+                    nextReport += TimeUnit.SECONDS.toNanos(option.getReportInterval());
+                }
+                Thread.sleep(TICK_MILLIS);
+            }
+            System.out.printf("all %d connections started in %.1fs%n", started, (System.nanoTime() - begin) / 1e9);
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(option.getDuration());
+            while (System.nanoTime() < end) {
+                long sleep = Math.min(nextReport, end) - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                if (System.nanoTime() >= nextReport) {
+                    report(option.getReportInterval());
+                    nextReport += TimeUnit.SECONDS.toNanos(option.getReportInterval());
+                }
+            }
+            summary((System.nanoTime() - begin) / 1e9);
+        } finally {
+            group.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    private Bootstrap newBootstrap() {
+        return new Bootstrap()
+                .group(group)
+                .channel(channelClass)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        if (sslContext != null) {
+                            pipeline.addLast(sslContext.newHandler(ch.alloc(), option.getHost(), option.getPort()));
+                        }
+                        //超过keepAlive的一半没有发送数据就发心跳
+                        pipeline.addLast(new IdleStateHandler(0, Math.max(1, option.getKeepAlive() / 2), 0));
+                        pipeline.addLast("mqttDecoder", new MqttDecoder(Math.max(102400, option.getPayload() * 2)));
+                        pipeline.addLast("mqttEncoder", MqttEncoder.INSTANCE);
+                        pipeline.addLast("mqttHandler", new LoadClientHandler(LoadGenerator.this, ch.attr(CLIENT_ID).get()));
+                    }
+                });
+    }
+
+    private void report(int seconds) {
+        long sentNow = sent.sum();
+        long receivedNow = received.sum();
+        long ackedNow = acked.sum();
+        System.out.printf("online=%d failed=%d rejected=%d sent=%d/s received=%d/s acked=%d/s rtt p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                onlineCount.get(), connectFailed.sum(), rejected.sum(),
+                (sentNow - lastSent) / seconds, (receivedNow - lastReceived) / seconds, (ackedNow - lastAcked) / seconds,
+                millis(intervalLatency.getValueAtPercentile(50)), millis(intervalLatency.getValueAtPercentile(99)),
+                millis(intervalLatency.getValueAtPercentile(99.9)), millis(intervalLatency.getMax()));
+        lastSent = sentNow;
+        lastReceived = receivedNow;
+        lastAcked = ackedNow;
+        intervalLatency.reset();
+    }
+
+    private void summary(double seconds) {
+        System.out.printf("total %.1fs: online=%d failed=%d rejected=%d sent=%d received=%d acked=%d throughput=%.0f msg/s%n",
+                seconds, onlineCount.get(), connectFailed.sum(), rejected.sum(), sent.sum(), received.sum(), acked.sum(),
+                received.sum() / seconds);
+        System.out.printf("rtt p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms mean=%.2fms%n",
+                millis(totalLatency.getValueAtPercentile(50)), millis(totalLatency.getValueAtPercentile(99)),
+                millis(totalLatency.getValueAtPercentile(99.9)), millis(totalLatency.getMax()), totalLatency.getMean() / 1e6);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    LoadGeneratorOption getOption() {
+        return option;
+    }
+
+    byte[] getFiller() {
+        return filler;
+    }
+
+    /**
+     * 从压测开始经过的纳秒数，不会是负数，写在消息正文里用来计算往返延迟
+     */
+    long nanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    void online(LoadClientHandler client, EventLoop eventLoop) {
+        onlineCount.incrementAndGet();
+        loops.get(eventLoop).add(client);
+    }
+
+    void offline(LoadClientHandler client, EventLoop eventLoop) {
+        onlineCount.decrementAndGet();
+        loops.get(eventLoop).remove(client);
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void sent() {
+        sent.increment();
+    }
+
+    void acked() {
+        acked.increment();
+    }
+
+    void received(long rttNanos) {
+        received.increment();
+        intervalLatency.record(rttNanos);
+        totalLatency.record(rttNanos);
+    }
+
+    /**
+     * 一个io线程上的在线设备，定时轮流让它们发布消息，只在这个io线程里访问
+     */
+    private static final class Loop {
+        private final List<LoadClientHandler> clients = new ArrayList<>();
+        private final double perTick;
+        private double credit;
+        private int cursor;
+
+        private Loop(double perTick) {
+            this.perTick = perTick;
+        }
+
+        private void add(LoadClientHandler client) {
+            client.index = clients.size();
+            clients.add(client);
+        }
+
+        private void remove(LoadClientHandler client) {
+            int index = client.index;
+            if (index < 0) {
+                return;
+            }
+            LoadClientHandler last = clients.remove(clients.size() - 1);
+            if (last != client) {
+                clients.set(index, last);
+                last.index = index;
+            }
+            client.index = -1;
+        }
+
+        private void tick() {
+            if (clients.isEmpty()) {
+                credit = 0;
+                return;
+            }
+            credit += perTick;
+            while (credit >= 1) {
+                if (cursor >= clients.size()) {
+                    cursor = 0;
+                }
+                clients.get(cursor++).publish();
+                credit--;
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package d1.duoxian.mqttserver.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 压测参数，命令行以key=value的形式传入，例如 clients=100000 rate=20000 qos=1
+ *
+ * @author liuyi
+ */
+public class LoadGeneratorOption {
+    private String host = "127.0.0.1";
+    private int port = 8888;
+    /**
+     * 模拟的设备数
+     */
+    private int clients = 1000;
+    /**
+     * 每秒新建的连接数
+     */
+    private int connectRate = 1000;
+    /**
+     * 所有设备加起来每秒发布的消息数，0表示只连接不发消息
+     */
+    private int rate = 1000;
+    private int qos = 0;
+    /**
+     * 每条消息正文的字节数，至少要放得下时间戳
+     */
+    private int payload = 64;
+    /**
+     * 全部连接建立后再压测多少秒
+     */
+    private int duration = 60;
+    /**
+     * 每隔多少秒输出一次统计
+     */
+    private int reportInterval = 5;
+    /**
+     * io线程数，缺省是cpu的核心数
+     */
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int keepAlive = 60;
+    private String clientIdPrefix = "loadgen-";
+    private String topicPrefix = "loadgen/";
+    private String username;
+    private String password;
+    /**
+     * 本机的多个ip，用逗号分隔。一个本地ip到同一个服务端端口最多6万多个连接，超过10万个连接时需要多个本地ip
+     */
+    private List<String> localAddresses = new ArrayList<>();
+    private boolean tls = false;
+    /**
+     * tls时用来验证服务端的CA证书，不传则不验证服务端
+     */
+    private String caCertFile;
+    /**
+     * 双向认证时客户端的证书和pkcs8格式的私钥
+     */
+    private String clientCertFile;
+    private String clientKeyFile;
+
+    public static LoadGeneratorOption parse(String[] args) {
+        LoadGeneratorOption option = new LoadGeneratorOption();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("argument must be key=value: " + arg);
+            }
+            String key = arg.substring(0, index).trim();
+            String value = arg.substring(index + 1).trim();
+            switch (key) {
+                case "host":
+                    option.host = value;
+                    break;
+                case "port":
+                    option.port = Integer.parseInt(value);
+                    break;
+                case "clients":
+                    option.clients = Integer.parseInt(value);
+                    break;
+                case "connectRate":
+                    option.connectRate = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    option.rate = Integer.parseInt(value);
+                    break;
+                case "qos":
+                    option.qos = Integer.parseInt(value);
+                    break;
+                case "payload":
+                    option.payload = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    option.duration = Integer.parseInt(value);
+                    break;
+                case "reportInterval":
+                    option.reportInterval = Integer.parseInt(value);
+                    break;
+                case "eventLoops":
+                    option.eventLoops = Integer.parseInt(value);
+                    break;
+                case "keepAlive":
+                    option.keepAlive = Integer.parseInt(value);
+                    break;
+                case "clientIdPrefix":
+                    option.clientIdPrefix = value;
+                    break;
+                case "topicPrefix":
+                    option.topicPrefix = value;
+                    break;
+                case "username":
+                    option.username = value;
+                    break;
+                case "password":
+                    option.password = value;
+                    break;
+                case "localAddresses":
+                    for (String address : value.split(",")) {
+                        if (!address.trim().isEmpty()) {
+                            option.localAddresses.add(address.trim());
+                        }
+                    }
+                    break;
+                case "tls":
+                    option.tls = Boolean.parseBoolean(value);
+                    break;
+                case "ca":
+                    option.caCertFile = value;
+                    break;
+                case "cert":
+                    option.clientCertFile = value;
+                    break;
+                case "key":
+                    option.clientKeyFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument: " + key);
+            }
+        }
+        if (option.qos < 0 || option.qos > 2) {
+            throw new IllegalArgumentException("qos must be 0, 1 or 2");
+        }
+        option.clients = Math.max(1, option.clients);
+        option.connectRate = Math.max(1, option.connectRate);
+        option.rate = Math.max(0, option.rate);
+        option.eventLoops = Math.max(1, option.eventLoops);
+        option.reportInterval = Math.max(1, option.reportInterval);
+        return option;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public int getConnectRate() {
+        return connectRate;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    public int getPayload() {
+        return payload;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getReportInterval() {
+        return reportInterval;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getKeepAlive() {
+        return keepAlive;
+    }
+
+    public String getClientIdPrefix() {
+        return clientIdPrefix;
+    }
+
+    public String getTopicPrefix() {
+        return topicPrefix;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public List<String> getLocalAddresses() {
+        return localAddresses;
+    }
+
+    public boolean isTls() {
+        return tls;
+    }
+
+    public String getCaCertFile() {
+        return caCertFile;
+    }
+
+    public String getClientCertFile() {
+        return clientCertFile;
+    }
+
+    public String getClientKeyFile() {
+        return clientKeyFile;
+    }
+
+    @Override
+    public String toString() {
+        return "host=" + host + ",port=" + port + ",clients=" + clients + ",connectRate=" + connectRate
+                + ",rate=" + rate + ",qos=" + qos + ",payload=" + payload + ",duration=" + duration
+                + ",eventLoops=" + eventLoops + ",tls=" + tls + ",localAddresses=" + localAddresses;
+    }
+}
@@ -1,25 +1,28 @@
 package d1.duoxian.mqttserver;
 
+import io.netty.channel.Channel;
+
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.function.Function;
 
 /**
- * 设备连接上后保存相应的session，统一由DeviceSessionManager管理
+ * 设备连接上后保存相应的session，统一由DeviceSessionManager管理。
+ * 百万连接时每个字段都会乘以一百万：不保存密码，通道id只存数字，ip和用户名经过有界的去重池，
+ * 同一个NAT出口、同一个用户名的设备大多共用一个对象，发送回调所有session共用一个
  *
  * @author Buter
  * @date 2021/10/5 20:22
  */
 public class ClientSession {
+    private static final AtomicLongFieldUpdater<ClientSession> LAST_ACTIVITY =
+            AtomicLongFieldUpdater.newUpdater(ClientSession.class, "lastActivity");
     /**
-     * mqtt连接的用户名
+     * mqtt连接的用户名，上线时经过ClientSessionManager的去重池
      */
     private String username;
     /**
-     * mqtt连接的密码
-     */
-    private byte[] password;
-    /**
-     * mqtt连接的ip
+     * mqtt连接的ip，上线时经过ClientSessionManager的去重池
      */
     private String ip;
     /**
@@ -27,9 +30,13 @@ public class ClientSession {
      */
     private String uuid;
     /**
-     * 设备对应的通信通道id
+     * 设备对应的通信通道的数字id，重连时会被其它io线程修改，对外的字符串形式只在getChannelId时生成
      */
-    private String channelId;
+    private volatile long channelId;
+    /**
+     * 设备当前的通道，和channelId一起修改，不是由服务端的通道上线时为null
+     */
+    private volatile Channel channel;
 
     /**
      * 给设备发送消息的回调函数
@@ -37,21 +44,46 @@ public class ClientSession {
     private Function<CustomMqttPublishMessage, Boolean> publisher;
 
     /**
-     * 设备最后刷新时间，也就是最后一次给paas发送数据的时间
+     * 最后一次收到设备报文的时间（System.currentTimeMillis()），每个报文都会更新
+     */
+    private volatile long lastActivity;
+    /**
+     * 在ClientSessionManager的活跃时间索引里所在的时间段，不在索引里为-1。
+     * 由session自身的锁保护修改，收到报文时先在锁外读，段变了才加锁
      */
-    private Calendar refreshTime;
+    volatile long activityBucket = -1;
+    /**
+     * 同一个时间段里的前一个和后一个session，索引就是穿过session的链表，不另外分配节点。由所在时间段的锁保护
+     */
+    ClientSession activityPrev;
+    ClientSession activityNext;
+    /**
+     * 是否为持久会话，即连接时clean session为false
+     */
+    private volatile boolean persistent;
     /**
      * 一些额外的数据，用于扩展
      */
     private Object data;
 
-    public ClientSession(String ip, String uuid, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String username, byte[] password) {
+    public ClientSession(String ip, String uuid, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String username) {
+        this(ip, uuid, MqttChannelId.parse(channelId), publisher, username);
+    }
+
+    ClientSession(String ip, String uuid, long channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String username) {
         this.uuid = uuid;
         this.ip = ip;
         this.channelId = channelId;
         this.publisher = publisher;
         this.username = username;
-        this.password = password;
+    }
+
+    /**
+     * @deprecated 不再保存密码，password会被忽略
+     */
+    @Deprecated
+    public ClientSession(String ip, String uuid, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String username, byte[] password) {
+        this(ip, uuid, channelId, publisher, username);
     }
 
     public Object getData() {
@@ -70,12 +102,19 @@ public class ClientSession {
         this.username = username;
     }
 
+    /**
+     * @deprecated 不再保存密码，密码只在校验时使用，总是返回null
+     */
+    @Deprecated
     public byte[] getPassword() {
-        return password;
+        return null;
     }
 
+    /**
+     * @deprecated 不再保存密码，什么都不做
+     */
+    @Deprecated
     public void setPassword(byte[] password) {
-        this.password = password;
     }
 
     public String getUuid() {
@@ -86,22 +125,68 @@ public class ClientSession {
         this.uuid = uuid;
     }
 
+    /**
+     * 最后一次收到设备报文的时间（毫秒）
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * 只写一个long，不加内存屏障，每个报文调用一次开销很小
+     */
+    void setLastActivity(long lastActivity) {
+        LAST_ACTIVITY.lazySet(this, lastActivity);
+    }
+
+    /**
+     * @deprecated 用getLastActivity，不再为每个session保存Calendar对象
+     */
+    @Deprecated
     public Calendar getRefreshTime() {
-        return refreshTime;
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(lastActivity);
+        return calendar;
     }
 
+    /**
+     * @deprecated 最后活跃时间由服务端在收到报文时更新
+     */
+    @Deprecated
     public void setRefreshTime(Calendar refreshTime) {
-        this.refreshTime = refreshTime;
+        setLastActivity(refreshTime.getTimeInMillis());
     }
 
+    /**
+     * 通道id的字符串形式，每次调用都会生成新的字符串，服务端内部用getNumericChannelId
+     */
     public String getChannelId() {
-        return channelId;
+        return MqttChannelId.toText(channelId);
     }
 
     public void setChannelId(String channelId) {
+        this.channelId = MqttChannelId.parse(channelId);
+    }
+
+    long getNumericChannelId() {
+        return channelId;
+    }
+
+    void setNumericChannelId(long channelId) {
         this.channelId = channelId;
     }
 
+    /**
+     * 设备当前的通道，断开后可能还没来得及下线，发送前要看isActive
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    void setChannel(Channel channel) {
+        this.channel = channel;
+    }
+
     public Function<CustomMqttPublishMessage, Boolean> getPublisher() {
         return publisher;
     }
@@ -110,6 +195,14 @@ public class ClientSession {
         this.publisher = publisher;
     }
 
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    public void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
     public String getIp() {
         return ip;
     }
@@ -122,9 +215,9 @@ public class ClientSession {
     public String toString() {
         return "DeviceSession{" +
                 "uuid='" + uuid + '\'' +
-                ", channelId='" + channelId + '\'' +
+                ", channelId=" + channelId +
                 ", publisher=" + publisher +
-                ", refreshTime=" + refreshTime +
+                ", lastActivity=" + lastActivity +
                 '}';
     }
 }
@@ -1,87 +1,504 @@
 package d1.duoxian.mqttserver;
 
+import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Calendar;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 /**
- * 保存设备相关所有实时信息，都存在内存中
+ * 保存设备相关所有实时信息，都存在内存中。
+ * session里保存设备当前的通道，服务端按通道id查找通道也通过这里，没有另外的通道表。
+ * session只保存在sessions一个注册表里，以通道的数字id为key；uuids只记录每个uuid当前的通道id；
+ * 活跃时间索引是穿过session自身的链表，也不另外保存session
  *
  * @author Buter
  * @date 2021/10/5 19:36
  */
 public class ClientSessionManager {
+    /**
+     * 活跃时间索引每一段的毫秒数
+     */
+    private static final long ACTIVITY_BUCKET_MILLIS = 1000;
+    /**
+     * ip和用户名去重池的槽位数，NAT出口和用户名通常远少于这个数
+     */
+    private static final int STRING_POOL_SIZE = 4096;
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private final Map<String, ClientSession> clientsMap = new ConcurrentHashMap<>();
+    /**
+     * 当前时间（毫秒），上线时的活跃时间和查询空闲设备的阈值都按它计算
+     */
+    private final LongSupplier clock;
+    /**
+     * 所有在线的session，以通道的数字id为key。
+     * 同一个uuid换到新通道时，新id在uuids.compute里加入，旧id在compute之后才删除，期间两个id都指向这个session
+     */
+    private final ConcurrentLongObjectMap<ClientSession> sessions = new ConcurrentLongObjectMap<>();
+    /**
+     * uuid到它当前通道id的映射，同一个uuid的上线、下线都在它的compute里原子执行
+     */
+    private final Map<String, Long> uuids = new ConcurrentHashMap<>();
+    private final Map<String, ClientSession> clientsView = new ClientsView();
+    private final Map<String, ClientSession> channelsView = new ChannelsView();
+    private final MqttStringPool ipPool = new MqttStringPool(STRING_POOL_SIZE);
+    private final MqttStringPool usernamePool = new MqttStringPool(STRING_POOL_SIZE);
     private IMqttMessageListener listener;
     /**
-     * 以通道id为key，和devicesMap重复存储
+     * 集群模式下把上下线通知给其它节点，不是集群模式为null
      */
-    private final Map<String, ClientSession> channelsMap = new ConcurrentHashMap<>();
+    private MqttClusterNode cluster;
+    /**
+     * 按最后活跃时间分段的在线session，key是时间除以ACTIVITY_BUCKET_MILLIS。
+     * 收到报文时如果跨过了段的边界就移到新的段，同一段里的报文只更新时间
+     */
+    private final Map<Long, ActivityBucket> activityBuckets = new ConcurrentHashMap<>();
+
+    public ClientSessionManager() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock 当前时间（毫秒），测试时用来模拟过去上线的设备
+     */
+    public ClientSessionManager(LongSupplier clock) {
+        this.clock = clock;
+    }
 
+    /**
+     * 先查uuid当前的通道id再查session。读到id之后uuid正好换了通道时，旧id可能已经删除，重新查一次
+     */
     public ClientSession getSessionByUuid(String uuid) {
-        return clientsMap.get(uuid);
+        Long channelId = uuids.get(uuid);
+        while (channelId != null) {
+            ClientSession session = sessions.get(channelId);
+            if (session != null) {
+                return session;
+            }
+            Long latest = uuids.get(uuid);
+            if (channelId.equals(latest)) {
+                //正在下线
+                return null;
+            }
+            channelId = latest;
+        }
+        return null;
     }
 
+    /**
+     * 以uuid为key的所有session，是实时的只读视图：get和size直接查索引，遍历时每次取当时的快照
+     */
     public Map<String, ClientSession> getClientsMap() {
-        return clientsMap;
+        return clientsView;
     }
 
+    /**
+     * 以通道id为key的所有session，是实时的只读视图：get和size直接查索引，遍历时每次取当时的快照
+     */
     public Map<String, ClientSession> getChannelsMap() {
-        return channelsMap;
+        return channelsView;
     }
 
     /**
-     * 设备离线后删除session
+     * 遍历所有在线的session，不生成快照列表，遍历期间上下线的可能遍历到也可能遍历不到
      */
-    public synchronized void offline(String channelId) {
-        ClientSession session = channelsMap.get(channelId);
-        if (session != null) {
-            String uuid = session.getUuid();
-            logger.info("device offline,channelId={},uuid={}", channelId, uuid);
-            clientsMap.remove(uuid);
-            channelsMap.remove(channelId);
-            this.listener.offline(uuid, session);
-        } else {
-            //设备强行断开会触发2次offline，一次是异常触发，一次是trigger触发，还有一种情况是有可能是设备拔下马上插上，重连了，新的channelid起作用，旧的被移除
-            //do nothing
+    public void forEachSession(Consumer<ClientSession> action) {
+        sessions.forEach((channelId, session) -> {
+            //换通道期间旧id也指向这个session，只在当前的id下遍历一次
+            if (session.getNumericChannelId() == channelId) {
+                action.accept(session);
+            }
+        });
+    }
+
+    public ClientSession getSessionByChannelId(String channelId) {
+        return getSessionByChannelId(MqttChannelId.parse(channelId));
+    }
+
+    private ClientSession getSessionByChannelId(long channelId) {
+        ClientSession session = sessions.get(channelId);
+        if (session == null || session.getNumericChannelId() != channelId) {
+            return null;
         }
+        return session;
     }
 
     /**
-     * 接收到客户端返回的数据说明设备在线，刷新一下session
+     * 按通道id查找已经上线的设备的通道，没有上线或者已经被同一个uuid的新通道顶替时返回null
      */
-    public synchronized void online(String ip, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String uuid, String username, byte[] password) {
-        ClientSession session = clientsMap.get(uuid);
+    public Channel getChannel(String channelId) {
+        return getChannel(MqttChannelId.parse(channelId));
+    }
+
+    Channel getChannel(long channelId) {
+        ClientSession session = sessions.get(channelId);
         if (session == null) {
-            logger.info("device online,channelId={},uuid={}", channelId, uuid);
-            session = new ClientSession(ip, uuid, channelId, publisher, username, password);
-            clientsMap.put(uuid, session);
-            channelsMap.put(channelId, session);
-        } else {
-            logger.info("device online,new channelId={},uuid={}", channelId, session.getUuid());
-            if (!channelsMap.containsKey(channelId)) {
-                String oldChannelId = session.getChannelId();
-                if (oldChannelId != null && oldChannelId.length() > 0 && !oldChannelId.equals(channelId)) {
-                    //假如设备来了一个新的链接，而且发现有旧的链接，说明旧的链接一会儿会失效，提前remove掉
-                    channelsMap.remove(session.getChannelId());
+            return null;
+        }
+        //先读channelId再读channel，上线时按相反的顺序修改，id对得上时channel一定是这个通道或者更新的
+        if (session.getNumericChannelId() != channelId) {
+            return null;
+        }
+        return session.getChannel();
+    }
+
+    /**
+     * 收到设备的报文时调用，更新最后活跃时间。和上次在同一个时间段时只写一个long，
+     * 跨过段的边界时才加session的锁移到新的段，每个session每个时间段最多移动一次
+     *
+     * @param now System.currentTimeMillis()
+     */
+    public void touch(ClientSession session, long now) {
+        session.setLastActivity(now);
+        long bucket = now / ACTIVITY_BUCKET_MILLIS;
+        if (session.activityBucket != bucket) {
+            refile(session, bucket);
+        }
+    }
+
+    /**
+     * 超过idleMillis没有发送任何报文的在线设备。session在收到报文时已经移到所在的时间段，
+     * 查询只遍历比阈值更早的段，开销和空闲的设备数加上阈值所在那一段的设备数有关，和在线总数无关
+     */
+    public List<ClientSession> getIdleSessions(long idleMillis) {
+        long cutoff = clock.getAsLong() - idleMillis;
+        long cutoffBucket = cutoff / ACTIVITY_BUCKET_MILLIS;
+        List<ClientSession> result = new ArrayList<>();
+        for (Map.Entry<Long, ActivityBucket> entry : activityBuckets.entrySet()) {
+            if (entry.getKey() > cutoffBucket) {
+                continue;
+            }
+            ActivityBucket bucket = entry.getValue();
+            synchronized (bucket) {
+                for (ClientSession session = bucket.head; session != null; session = session.activityNext) {
+                    //阈值所在的段里有阈值之后活跃的，正在被touch移走的session也可能还留在旧的段里
+                    if (session.getLastActivity() < cutoff) {
+                        result.add(session);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 把session移到bucket段，session已经下线时什么都不做
+     */
+    private void refile(ClientSession session, long bucket) {
+        synchronized (session) {
+            long previous = session.activityBucket;
+            if (previous < 0 || previous == bucket) {
+                return;
+            }
+            removeFromBucket(session, previous);
+            addToBucket(session, bucket);
+            session.activityBucket = bucket;
+        }
+    }
+
+    private void index(ClientSession session, long now) {
+        synchronized (session) {
+            session.setLastActivity(now);
+            long bucket = now / ACTIVITY_BUCKET_MILLIS;
+            long previous = session.activityBucket;
+            if (previous == bucket) {
+                return;
+            }
+            if (previous >= 0) {
+                removeFromBucket(session, previous);
+            }
+            addToBucket(session, bucket);
+            session.activityBucket = bucket;
+        }
+    }
+
+    private void unindex(ClientSession session) {
+        synchronized (session) {
+            long previous = session.activityBucket;
+            if (previous >= 0) {
+                removeFromBucket(session, previous);
+                session.activityBucket = -1;
+            }
+        }
+    }
+
+    /**
+     * 加到段的链表头，在session的锁里调用。段刚变空被删除时重新取一个
+     */
+    private void addToBucket(ClientSession session, long id) {
+        while (true) {
+            ActivityBucket bucket = activityBuckets.get(id);
+            if (bucket == null) {
+                bucket = activityBuckets.computeIfAbsent(id, k -> new ActivityBucket());
+            }
+            synchronized (bucket) {
+                if (bucket.removed) {
+                    continue;
+                }
+                session.activityPrev = null;
+                session.activityNext = bucket.head;
+                if (bucket.head != null) {
+                    bucket.head.activityPrev = session;
                 }
-                channelsMap.put(channelId, session);
+                bucket.head = session;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从段的链表里摘掉，在session的锁里调用。session在段里，段就不会是空的，一定还在activityBuckets里
+     */
+    private void removeFromBucket(ClientSession session, long id) {
+        ActivityBucket bucket = activityBuckets.get(id);
+        synchronized (bucket) {
+            if (session.activityPrev == null) {
+                bucket.head = session.activityNext;
+            } else {
+                session.activityPrev.activityNext = session.activityNext;
+            }
+            if (session.activityNext != null) {
+                session.activityNext.activityPrev = session.activityPrev;
+            }
+            session.activityPrev = null;
+            session.activityNext = null;
+            if (bucket.head == null) {
+                bucket.removed = true;
+                activityBuckets.remove(id, bucket);
+            }
+        }
+    }
+
+    /**
+     * 设备离线后删除session。只有uuid当前的通道就是这个通道时才删除，
+     * 回调在map操作之外执行
+     */
+    public void offline(String channelId) {
+        long id = MqttChannelId.parse(channelId);
+        ClientSession session = sessions.get(id);
+        if (session == null) {
+            //设备强行断开会触发2次offline，一次是异常触发，一次是trigger触发，还有一种情况是有可能是设备拔下马上插上，重连了，新的channelid起作用，旧的被移除
+            //do nothing
+            return;
+        }
+        String uuid = session.getUuid();
+        boolean[] removed = new boolean[1];
+        uuids.computeIfPresent(uuid, (key, current) -> {
+            //同一个uuid已经在新的通道上线了，session已经属于新的通道，不能删除
+            if (current == id) {
+                removed[0] = true;
+                sessions.remove(id);
+                unindex(session);
+                return null;
+            }
+            return current;
+        });
+        if (removed[0]) {
+            logger.info("device offline,channelId={},uuid={}", channelId, uuid);
+            if (cluster != null) {
+                cluster.localOffline(uuid, session.isPersistent());
+            }
+            if (this.listener != null) {
+                this.listener.offline(uuid, session);
+            }
+        }
+    }
+
+    /**
+     * @deprecated 不再保存密码，用不带password的online
+     */
+    @Deprecated
+    public void online(String ip, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String uuid, String username, byte[] password) {
+        online(ip, channelId, publisher, uuid, username, true);
+    }
+
+    /**
+     * @deprecated 不再保存密码，用不带password的online
+     */
+    @Deprecated
+    public void online(String ip, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String uuid, String username, byte[] password, boolean cleanSession) {
+        online(ip, channelId, publisher, uuid, username, cleanSession);
+    }
+
+    /**
+     * 接收到客户端返回的数据说明设备在线，刷新一下session。
+     * 同一个uuid的上线操作在uuids.compute里原子执行，不同uuid之间互不影响，回调在map操作之外执行。
+     * 活跃时间索引也在compute里更新，否则被顶替的旧通道的上线可能晚于新通道的下线，把已经删除的session又加回索引
+     *
+     * @param channelId    MqttChannelId生成的通道id
+     * @param cleanSession CONNECT报文里的clean session标志，为false时是持久会话
+     */
+    public void online(String ip, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String uuid, String username, boolean cleanSession) {
+        online(ip, null, channelId, publisher, uuid, username, cleanSession);
+    }
+
+    /**
+     * 服务端的通道上线，session里保存通道，返回上线后的session
+     */
+    ClientSession online(String ip, Channel channel, String channelId, Function<CustomMqttPublishMessage, Boolean> publisher, String uuid, String username, boolean cleanSession) {
+        long id = MqttChannelId.parse(channelId);
+        String pooledIp = ipPool.dedup(ip);
+        String pooledUsername = usernamePool.dedup(username);
+        long[] oldChannelId = {-1};
+        ClientSession[] online = new ClientSession[1];
+        uuids.compute(uuid, (key, current) -> {
+            ClientSession session = current == null ? null : sessions.get(current);
+            if (session == null) {
+                session = new ClientSession(pooledIp, uuid, id, publisher, pooledUsername);
+                session.setChannel(channel);
+                session.setPersistent(!cleanSession);
+                sessions.put(id, session);
+                index(session, clock.getAsLong());
+                online[0] = session;
+                return id;
+            }
+            if (current != id) {
+                //假如设备来了一个新的链接，而且发现有旧的链接，说明旧的链接一会儿会失效，compute之后删掉旧的id
+                oldChannelId[0] = current;
             }
             session.setPublisher(publisher);
-            session.setRefreshTime(Calendar.getInstance());
-            session.setChannelId(channelId);
-            session.setUsername(username);
-            session.setPassword(password);
+            session.setIp(pooledIp);
+            session.setChannel(channel);
+            session.setNumericChannelId(id);
+            session.setUsername(pooledUsername);
+            session.setPersistent(!cleanSession);
+            sessions.put(id, session);
+            index(session, clock.getAsLong());
+            online[0] = session;
+            return id;
+        });
+        ClientSession session = online[0];
+        if (oldChannelId[0] < 0) {
+            logger.info("device online,channelId={},uuid={}", channelId, uuid);
+        } else {
+            //uuids已经指向新的id，再删旧的，按uuid查找的不会在中间查不到
+            sessions.remove(oldChannelId[0], session);
+            logger.info("device online,new channelId={},old channelId={},uuid={}", channelId, oldChannelId[0], uuid);
+        }
+        if (cluster != null) {
+            cluster.localOnline(uuid, session.isPersistent());
+        }
+        if (this.listener != null) {
+            this.listener.online(uuid, session);
         }
-        this.listener.online(uuid,session);
+        return session;
     }
 
     public void setListener(IMqttMessageListener listener) {
         this.listener = listener;
     }
+
+    void setCluster(MqttClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * 活跃时间索引的一段，session按链表串起来，由段自身的锁保护
+     */
+    private static final class ActivityBucket {
+        private ClientSession head;
+        /**
+         * 已经变空并从activityBuckets里删除，要加入的session重新取一个新的段
+         */
+        private boolean removed;
+    }
+
+    /**
+     * 所有session当时的快照，key由keyOf生成
+     */
+    private Iterator<Map.Entry<String, ClientSession>> snapshot(Function<ClientSession, String> keyOf) {
+        List<Map.Entry<String, ClientSession>> entries = new ArrayList<>();
+        forEachSession(session -> entries.add(new AbstractMap.SimpleImmutableEntry<>(keyOf.apply(session), session)));
+        return Collections.unmodifiableList(entries).iterator();
+    }
+
+    /**
+     * getClientsMap返回的视图，不能修改
+     */
+    private class ClientsView extends AbstractMap<String, ClientSession> {
+        @Override
+        public ClientSession get(Object key) {
+            return key instanceof String ? getSessionByUuid((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return uuids.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return uuids.isEmpty();
+        }
+
+        @Override
+        public Set<Entry<String, ClientSession>> entrySet() {
+            return new AbstractSet<Entry<String, ClientSession>>() {
+                @Override
+                public Iterator<Entry<String, ClientSession>> iterator() {
+                    return snapshot(ClientSession::getUuid);
+                }
+
+                @Override
+                public int size() {
+                    return uuids.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * getChannelsMap返回的视图，不能修改
+     */
+    private class ChannelsView extends AbstractMap<String, ClientSession> {
+        @Override
+        public ClientSession get(Object key) {
+            return key instanceof String ? getSessionByChannelId((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return uuids.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return uuids.isEmpty();
+        }
+
+        @Override
+        public Set<Entry<String, ClientSession>> entrySet() {
+            return new AbstractSet<Entry<String, ClientSession>>() {
+                @Override
+                public Iterator<Entry<String, ClientSession>> iterator() {
+                    return snapshot(ClientSession::getChannelId);
+                }
+
+                @Override
+                public int size() {
+                    return uuids.size();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 以long为key的线程安全的map，分成多个段，每段是一个LongObjectHashMap，
+ * 查找时不需要装箱和计算字符串的hash。
+ * 修改时加段的写锁；get先用乐观读，不加锁也不写共享变量，读的过程中段被修改了才加读锁重新读一次
+ *
+ * @author liuyi
+ */
+public class ConcurrentLongObjectMap<V> {
+    private static final int SEGMENTS = 64;
+    private final Segment<V>[] segments = newSegments(SEGMENTS);
+
+    public ConcurrentLongObjectMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegments(int size) {
+        return (Segment<V>[]) new Segment<?>[size];
+    }
+
+    public V get(long key) {
+        Segment<V> segment = segmentOf(key);
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                V value = segment.map.get(key);
+                if (segment.lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                //读的同时在扩容，数组可能对不上，下面加锁重新读
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return segment.map.get(key);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    public V put(long key, V value) {
+        Segment<V> segment = segmentOf(key);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.map.put(key, value);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    public V remove(long key) {
+        Segment<V> segment = segmentOf(key);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.map.remove(key);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 只有当前的值是value时才删除
+     */
+    public boolean remove(long key, V value) {
+        Segment<V> segment = segmentOf(key);
+        long stamp = segment.lock.writeLock();
+        try {
+            if (segment.map.get(key) != value) {
+                return false;
+            }
+            segment.map.remove(key);
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 所有值的快照
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>();
+        for (Segment<V> segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                values.addAll(segment.map.values());
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 逐段在读锁里复制出所有键值，然后在锁外调用action，action里可以修改这个map。
+     * 遍历期间其它线程的修改可能看得到也可能看不到
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> action) {
+        long[] keys = new long[16];
+        Object[] values = new Object[16];
+        for (Segment<V> segment : segments) {
+            int count = 0;
+            long stamp = segment.lock.readLock();
+            try {
+                int size = segment.map.size();
+                if (keys.length < size) {
+                    keys = new long[size * 2];
+                    values = new Object[size * 2];
+                }
+                for (LongObjectMap.PrimitiveEntry<V> entry : segment.map.entries()) {
+                    keys[count] = entry.key();
+                    values[count++] = entry.value();
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < count; i++) {
+                action.accept(keys[i], (V) values[i]);
+                values[i] = null;
+            }
+        }
+    }
+
+    private Segment<V> segmentOf(long key) {
+        return segments[(int) (key ^ (key >>> 32)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * forEach的回调，key不装箱
+     */
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    private static final class Segment<V> {
+        private final LongObjectHashMap<V> map = new LongObjectHashMap<>();
+        private final StampedLock lock = new StampedLock();
+    }
+}
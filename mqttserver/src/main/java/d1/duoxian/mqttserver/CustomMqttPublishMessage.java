@@ -1,5 +1,6 @@
 package d1.duoxian.mqttserver;
 
+import io.netty.handler.codec.mqtt.MqttQoS;
 
 /**
  * @author Buter
@@ -9,6 +10,10 @@ public class CustomMqttPublishMessage {
     private String channelId;
     private String topic;
     private String content;
+    /**
+     * 发送给客户端的qos，缺省是AT_MOST_ONCE。AT_LEAST_ONCE和EXACTLY_ONCE会等客户端确认，超时重发
+     */
+    private MqttQoS qos = MqttQoS.AT_MOST_ONCE;
 
     public CustomMqttPublishMessage(String channelId, String topic, String content) {
         this.channelId = channelId;
@@ -16,6 +21,11 @@ public class CustomMqttPublishMessage {
         this.content = content;
     }
 
+    public CustomMqttPublishMessage(String channelId, String topic, String content, MqttQoS qos) {
+        this(channelId, topic, content);
+        setQos(qos);
+    }
+
     public String getChannelId() {
         return channelId;
     }
@@ -40,6 +50,14 @@ public class CustomMqttPublishMessage {
         this.content = content;
     }
 
+    public MqttQoS getQos() {
+        return qos;
+    }
+
+    public void setQos(MqttQoS qos) {
+        this.qos = qos == null || qos == MqttQoS.FAILURE ? MqttQoS.AT_MOST_ONCE : qos;
+    }
+
     public boolean isEmpty() {
         return channelId == null || channelId.length() <= 0 || topic == null || topic.length() <= 0 || content == null || content.length() <= 0;
     }
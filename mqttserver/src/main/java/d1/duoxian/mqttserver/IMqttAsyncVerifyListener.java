@@ -0,0 +1,29 @@
+package d1.duoxian.mqttserver;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 异步校验客户端身份的监听接口，适用于需要查数据库或调用远程服务的校验。
+ * 实现了这个接口的verifyListener只会调用verifyAsync，结果出来后才回复CONNACK，校验期间不占用io线程
+ *
+ * @author liuyi
+ */
+public interface IMqttAsyncVerifyListener extends IMqttVerifyListener {
+    /**
+     * 验证mqtt连接的用户密码，在校验线程池里调用，可以直接返回别的线程池或异步客户端的结果
+     *
+     * @param clientId mqtt client id
+     * @param username 链接的用户名
+     * @param password 链接的密码
+     * @return 结果为false或者异常时，链接会自动断开，并记录日志
+     */
+    CompletionStage<Boolean> verifyAsync(String clientId, String username, byte[] password);
+
+    /**
+     * 异步监听不会被同步调用，这里只是为了兼容直接调用verify的代码
+     */
+    @Override
+    default boolean verify(String clientId, String username, byte[] password) {
+        return verifyAsync(clientId, username, password).toCompletableFuture().join();
+    }
+}
@@ -0,0 +1,34 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.function.Function;
+
+/**
+ * 以二进制方式接收消息的监听接口，适用于protobuf/CBOR等非文本的消息，消息正文不会被复制和转换成字符串。
+ * 实现了这个接口的messageListener只会收到二进制的onMessage回调
+ *
+ * @author liuyi
+ */
+public interface IMqttBinaryMessageListener extends IMqttMessageListener {
+    /**
+     * 接收到客户端返回的消息后触发，请不要在这个函数里添加耗时操作
+     * payload只在这个函数执行期间有效，函数返回后框架会release掉，不要保存它的引用。
+     * 如果需要在其它线程里使用，请先调用payload.retain()，用完后自己调用payload.release()，
+     * 长时间持有的话建议复制一份（ByteBufUtil.getBytes），避免占用接收缓冲区
+     *
+     * @param ip        客户端的ip地址
+     * @param channelId 通道id
+     * @param topic     消息TOPIC
+     * @param payload   消息正文，只读视图，写入会抛ReadOnlyBufferException，可以用payload.nioBuffer()得到ByteBuffer视图
+     * @param publisher 回调函数，要返回给客户端的topic和内容
+     */
+    void onMessage(String ip, String channelId, String topic, ByteBuf payload, Function<CustomMqttPublishMessage, Boolean> publisher);
+
+    /**
+     * 二进制监听不会收到字符串形式的消息
+     */
+    @Override
+    default void onMessage(String ip, String channelId, String topic, String message, Function<CustomMqttPublishMessage, Boolean> publisher) {
+    }
+}
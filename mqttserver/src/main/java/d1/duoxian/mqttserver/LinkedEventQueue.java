@@ -0,0 +1,44 @@
+package d1.duoxian.mqttserver;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * 基于LinkedBlockingQueue的接收队列
+ *
+ * @author liuyi
+ */
+public class LinkedEventQueue<E> implements MqttEventQueue<E> {
+    private final LinkedBlockingQueue<E> queue;
+
+    public LinkedEventQueue(int capacity) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return queue.offer(e);
+    }
+
+    @Override
+    public int drain(Consumer<E> consumer, int limit) throws InterruptedException {
+        consumer.accept(queue.take());
+        int count = 1;
+        E e;
+        while (count < limit && (e = queue.poll()) != null) {
+            consumer.accept(e);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public E poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
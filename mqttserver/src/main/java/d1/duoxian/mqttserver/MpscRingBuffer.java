@@ -0,0 +1,129 @@
+package d1.duoxian.mqttserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 有界的多生产者单消费者环形队列，数组在创建时分配好，放入和取出都不分配内存。
+ * 每个槽位有一个序号：生产者CAS抢到位置后写入元素，再把序号设为pos+1表示可读；
+ * 消费者读出后把序号设为pos+容量，表示下一圈可写。消费者空闲时park，生产者放入后按需unpark
+ *
+ * @author liuyi
+ */
+public class MpscRingBuffer<E> implements MqttEventQueue<E> {
+    private static final int SPIN_TRIES = 100;
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * 只有消费者线程修改
+     */
+    private volatile long head;
+    private volatile Thread waiter;
+
+    public MpscRingBuffer(int capacity) {
+        //容量取2的幂，用位运算代替取模
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.lazySet(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        long pos;
+        while (true) {
+            pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(index, e);
+                    sequences.set(index, pos + 1);
+                    break;
+                }
+            } else if (diff < 0) {
+                //这个槽位还没有被消费者读走，队列满了
+                return false;
+            }
+        }
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E e = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, pos + capacity);
+        head = pos + 1;
+        return e;
+    }
+
+    @Override
+    public int drain(Consumer<E> consumer, int limit) throws InterruptedException {
+        E e = poll();
+        if (e == null) {
+            e = await();
+        }
+        consumer.accept(e);
+        int count = 1;
+        while (count < limit && (e = poll()) != null) {
+            consumer.accept(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 先自旋一会儿，还没有数据就park，等生产者unpark
+     */
+    private E await() throws InterruptedException {
+        E e;
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            if ((e = poll()) != null) {
+                return e;
+            }
+            Thread.yield();
+        }
+        Thread current = Thread.currentThread();
+        waiter = current;
+        try {
+            while ((e = poll()) == null) {
+                if (current.isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+            return e;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+}
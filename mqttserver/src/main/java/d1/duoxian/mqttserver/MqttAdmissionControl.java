@@ -0,0 +1,166 @@
+package d1.duoxian.mqttserver;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 新连接的准入控制，大量设备同时重连时尽早拒绝超出处理能力的连接，而不是让所有连接一起超时。
+ * 用令牌桶限制全局和每个ip每秒的新连接数，桶的容量是一秒的量，允许短时间的突发；
+ * 同时限制已经建立TCP连接、还没有回复CONNACK的连接数
+ *
+ * @author liuyi
+ */
+public class MqttAdmissionControl {
+    private final TokenBucket global;
+    private final int ratePerIp;
+    private final int maxPending;
+    private final Map<String, TokenBucket> ipBuckets = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejectedByRate = new LongAdder();
+    private final LongAdder rejectedByIpRate = new LongAdder();
+    private final LongAdder rejectedByPending = new LongAdder();
+
+    /**
+     * @param rate       全局每秒最多接受的新连接数，0或负数不限制
+     * @param ratePerIp  每个ip每秒最多接受的新连接数，0或负数不限制
+     * @param maxPending 最多有多少连接在等待CONNACK，0或负数不限制
+     */
+    public MqttAdmissionControl(int rate, int ratePerIp, int maxPending) {
+        this.global = rate > 0 ? new TokenBucket(rate) : null;
+        this.ratePerIp = ratePerIp;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * 新连接建立时调用，返回true表示接受，之后必须调用一次release
+     */
+    public boolean tryAcquire(String ip) {
+        int current = pending.incrementAndGet();
+        if (maxPending > 0 && current > maxPending) {
+            pending.decrementAndGet();
+            rejectedByPending.increment();
+            return false;
+        }
+        TokenBucket ipBucket = ratePerIp > 0 && ip != null ? ipBuckets.computeIfAbsent(ip, k -> new TokenBucket(ratePerIp)) : null;
+        if (ipBucket != null && !ipBucket.tryAcquire()) {
+            pending.decrementAndGet();
+            rejectedByIpRate.increment();
+            return false;
+        }
+        if (global != null && !global.tryAcquire()) {
+            //被全局限速拒绝的连接不算这个ip的，把令牌还回去
+            if (ipBucket != null) {
+                ipBucket.refund();
+            }
+            pending.decrementAndGet();
+            rejectedByRate.increment();
+            return false;
+        }
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * 已经回复CONNACK或者连接在回复前断开了
+     */
+    public void release() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * 删除令牌已经加满的ip，这些ip至少一秒没有新连接了，由服务端定时调用
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        for (Iterator<TokenBucket> iterator = ipBuckets.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().isFull(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 接受的连接数
+     */
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    /**
+     * 被拒绝的连接数，包括超过全局速率、ip速率和等待CONNACK上限的
+     */
+    public long getRejectedCount() {
+        return rejectedByRate.sum() + rejectedByIpRate.sum() + rejectedByPending.sum();
+    }
+
+    public long getRejectedByRateCount() {
+        return rejectedByRate.sum();
+    }
+
+    public long getRejectedByIpRateCount() {
+        return rejectedByIpRate.sum();
+    }
+
+    public long getRejectedByPendingCount() {
+        return rejectedByPending.sum();
+    }
+
+    /**
+     * 当前等待CONNACK的连接数，包括正在TLS握手和校验身份的
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * 正在限速的ip数
+     */
+    public int getTrackedIpCount() {
+        return ipBuckets.size();
+    }
+
+    private static final class TokenBucket {
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long lastNanos;
+
+        private TokenBucket(int ratePerSecond) {
+            this.capacity = ratePerSecond;
+            this.tokensPerNano = ratePerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.tokens = capacity;
+            this.lastNanos = System.nanoTime();
+        }
+
+        private synchronized boolean tryAcquire() {
+            refill(System.nanoTime());
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        private synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        private synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            long elapsed = now - lastNanos;
+            if (elapsed > 0) {
+                tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+                lastNanos = now;
+            }
+        }
+    }
+}
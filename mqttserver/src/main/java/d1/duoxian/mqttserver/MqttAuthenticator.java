@@ -0,0 +1,191 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在单独的有界线程池里调用verifyListener，不占用io线程。线程池和排队都满了时返回的future以RejectedExecutionException结束。
+ * 可以缓存校验结果，以clientId、用户名和密码的SHA-256为key，通过和不通过分别有各自的有效期，超过条数上限时删除最久没用过的
+ *
+ * @author liuyi
+ */
+public class MqttAuthenticator implements Closeable {
+    private final IMqttVerifyListener listener;
+    private final ThreadPoolExecutor executor;
+    private final int cacheSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    /**
+     * 按访问顺序排列，由自身的锁保护
+     */
+    private final LinkedHashMap<String, CachedResult> cache;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public MqttAuthenticator(IMqttVerifyListener listener, MqttServerServiceOption option) {
+        this.listener = listener;
+        int threads = option.getVerifyThreadNumber();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(option.getVerifyQueueSize()), new DefaultThreadFactory("mqtt-verify", true),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.cacheSize = option.getVerifyCacheSize();
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(option.getVerifyCacheTtl());
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(option.getVerifyNegativeCacheTtl());
+        this.cache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 校验客户端身份，可以在任意线程调用，future在校验线程里完成，命中缓存时直接返回已完成的future
+     */
+    public CompletableFuture<Boolean> verify(String clientId, String username, byte[] password) {
+        String key = cacheSize > 0 ? key(clientId, username, password) : null;
+        if (key != null) {
+            Boolean cached = getCached(key);
+            if (cached != null) {
+                cacheHits.increment();
+                return CompletableFuture.completedFuture(cached);
+            }
+            cacheMisses.increment();
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    CompletionStage<Boolean> stage = listener instanceof IMqttAsyncVerifyListener
+                            ? ((IMqttAsyncVerifyListener) listener).verifyAsync(clientId, username, password)
+                            : CompletableFuture.completedFuture(listener.verify(clientId, username, password));
+                    stage.whenComplete((result, cause) -> {
+                        if (cause != null) {
+                            future.completeExceptionally(cause);
+                            return;
+                        }
+                        boolean success = Boolean.TRUE.equals(result);
+                        if (key != null) {
+                            putCached(key, success);
+                        }
+                        future.complete(success);
+                    });
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 删除某个clientId的所有缓存结果，例如修改密码或者禁用设备之后
+     */
+    public void invalidate(String clientId) {
+        String prefix = clientId + '\0';
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * 线程池满了被拒绝的校验次数
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * 正在排队等待校验的连接数
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private Boolean getCached(String key) {
+        synchronized (cache) {
+            CachedResult cached = cache.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (System.nanoTime() - cached.expireNanos >= 0) {
+                cache.remove(key);
+                return null;
+            }
+            return cached.success;
+        }
+    }
+
+    private void putCached(String key, boolean success) {
+        long ttl = success ? ttlNanos : negativeTtlNanos;
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(key, new CachedResult(success, System.nanoTime() + ttl));
+        }
+    }
+
+    /**
+     * 缓存里不保存明文密码，只保存SHA-256
+     */
+    private static String key(String clientId, String username, byte[] password) {
+        StringBuilder builder = new StringBuilder(96).append(clientId).append('\0').append(username).append('\0');
+        if (password != null) {
+            try {
+                for (byte b : MessageDigest.getInstance("SHA-256").digest(password)) {
+                    builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static final class CachedResult {
+        private final boolean success;
+        private final long expireNanos;
+
+        private CachedResult(boolean success, long expireNanos) {
+            this.success = success;
+            this.expireNanos = expireNanos;
+        }
+    }
+}
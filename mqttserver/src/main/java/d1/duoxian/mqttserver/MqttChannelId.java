@@ -0,0 +1,42 @@
+package d1.duoxian.mqttserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通道的数字id，在channelActive的时候分配，进程内唯一。
+ * 内部的map都用long做key，对外的接口仍然是字符串，也就是这个数字的十进制形式，每个通道只生成一次
+ *
+ * @author liuyi
+ */
+public final class MqttChannelId {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private MqttChannelId() {
+    }
+
+    public static long next() {
+        return SEQUENCE.incrementAndGet();
+    }
+
+    public static String toText(long channelId) {
+        return Long.toString(channelId);
+    }
+
+    /**
+     * 把对外的字符串id转换成数字，不是合法的id返回-1，不抛异常
+     */
+    public static long parse(String channelId) {
+        if (channelId == null || channelId.isEmpty() || channelId.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < channelId.length(); i++) {
+            char c = channelId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
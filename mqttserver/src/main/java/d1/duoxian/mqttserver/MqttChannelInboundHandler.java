@@ -1,26 +1,34 @@
 package d1.duoxian.mqttserver;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 /**
  * @author Buter
@@ -28,20 +36,102 @@ import java.util.stream.Collectors;
  */
 public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private final Map<String, Channel> channelMap = new ConcurrentHashMap<>();
+    /**
+     * 被准入控制拒绝的明文连接，等多少秒的CONNECT报文，超时直接断开
+     */
+    private static final int REFUSED_CLOSE_DELAY = 5;
+    /**
+     * 所有通道共用的发送回调，由MqttServerService创建
+     */
+    private final Function<CustomMqttPublishMessage, Boolean> publisher;
     private final IMqttMessageListener listener;
-    private final IMqttVerifyListener verifyListener;
     private final ClientSessionManager clientSessionManager;
     private final Charset defaultCharset;
-    private final LinkedBlockingQueue<WrapMqttMessage> eventQueue;
+    private final MqttMessageDispatcher dispatcher;
+    private final MqttSubscriptionTrie<Channel> subscriptionTrie;
+    private final MqttMetrics metrics;
+    /**
+     * 这个通道订阅过的filter，通道断开时从subscriptionTrie里删除，只在通道的io线程里访问
+     */
+    private final Set<String> subscriptions = new HashSet<>();
+    private final int outboundQueueSize;
+    private final MqttOverflowStrategy overflowStrategy;
+    /**
+     * PAUSE_READ策略下，暂停读取后已经读到但还没放入队列的消息，只在io线程里访问
+     */
+    private final ArrayDeque<PendingPublish> backlog = new ArrayDeque<>();
+    private boolean paused;
+    /**
+     * 通道的数字id对外使用的字符串形式，channelActive时分配
+     */
+    private String channelId;
+    /**
+     * 客户端的ip，channelActive时取一次，不用每个报文都转换
+     */
+    private String clientIp;
+    private final MqttSlowConsumerPolicy slowConsumerPolicy;
+    private final MqttServerServiceOption option;
+    /**
+     * QoS1/2重发用的定时器，所有通道共用
+     */
+    private final Timer timer;
+    /**
+     * 持久会话的离线消息存储，没有开启时为null
+     */
+    private final MqttOfflineStore offlineStore;
+    private final MqttRetainedStore retainedStore;
+    private final MqttAuthenticator authenticator;
+    /**
+     * 正在校验身份，期间收到的报文暂存在heldReads里，校验通过后按顺序处理，只在io线程里访问
+     */
+    private boolean connecting;
+    private final ArrayDeque<Object> heldReads = new ArrayDeque<>();
+    private final MqttAdmissionControl admissionControl;
+    /**
+     * 准入控制已经接受、还没有回复CONNACK
+     */
+    private boolean pendingConnect;
+    /**
+     * 被准入控制拒绝，收到CONNECT后回复服务不可用
+     */
+    private boolean refused;
+    private final MqttServerService server;
+    private final MqttQuotaAction quotaAction;
+    /**
+     * 客户端的配额，CONNECT通过后按uuid和用户名确定，不限制时为null
+     */
+    private MqttInboundQuota quota;
+    /**
+     * THROTTLE时因为超过配额暂停了读取，和PAUSE_READ的暂停分开记录，两者都结束才恢复读取
+     */
+    private boolean throttled;
+    private Runnable unthrottle;
+    private MqttKeepAlive keepAlive;
+    /**
+     * CONNECT通过后的session，用来更新最后活跃时间
+     */
+    private ClientSession session;
 
-    public MqttChannelInboundHandler(MqttServerServiceOption option, ClientSessionManager clientSessionManager, LinkedBlockingQueue<WrapMqttMessage> eventQueue) {
+    public MqttChannelInboundHandler(MqttServerServiceOption option, MqttServerService server) {
+        this.option = option;
+        this.timer = server.getTimer();
+        this.offlineStore = server.getOfflineStore();
+        this.retainedStore = server.getRetainedStore();
+        this.authenticator = server.getAuthenticator();
+        this.admissionControl = server.getAdmissionControl();
+        this.server = server;
+        this.quotaAction = option.getQuotaAction();
         this.listener = option.getMessageListener();
-        this.verifyListener = option.getVerifyListener();
-        this.clientSessionManager = clientSessionManager;
+        this.clientSessionManager = server.getClientSessionManager();
         this.defaultCharset = option.getDefaultCharset();
         this.clientSessionManager.setListener(this.listener);
-        this.eventQueue = eventQueue;
+        this.dispatcher = server.getDispatcher();
+        this.subscriptionTrie = server.getSubscriptionTrie();
+        this.publisher = server.getPublisher();
+        this.metrics = server.getMetrics();
+        this.outboundQueueSize = option.getOutboundQueueSize();
+        this.slowConsumerPolicy = option.getSlowConsumerPolicy();
+        this.overflowStrategy = option.getOverflowStrategy();
     }
 
     /**
@@ -53,6 +143,16 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
         if (msg == null) {
             return;
         }
+        if (keepAlive != null) {
+            keepAlive.touch(System.nanoTime());
+        }
+        if (session != null) {
+            clientSessionManager.touch(session, System.currentTimeMillis());
+        }
+        if (connecting) {
+            heldReads.add(msg);
+            return;
+        }
         try {
             MqttMessage mqttMessage = (MqttMessage) msg;
             MqttFixedHeader mqttFixedHeader = mqttMessage.fixedHeader();
@@ -64,45 +164,43 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
             logger.info("接收到MQTT消息--" + mqttMessage.toString());
         }*/
             Channel channel = ctx.channel();
-            InetSocketAddress ipSocket = (InetSocketAddress) channel.remoteAddress();
-            String clientIp = ipSocket.getAddress().getHostAddress();
             switch (mqttFixedHeader.messageType()) {
                 case CONNECT:
                     //	这里直接返回一个CONNACK消息在一个网络连接上，客户端只能发送一次CONNECT报文。服务端必须将客户端发送的第二个CONNECT报文当作协议违规处理并断开客户端的连接
-                    String clientId = ((MqttConnectPayload) mqttMessage.payload()).clientIdentifier();
-                    String userName = ((MqttConnectPayload) mqttMessage.payload()).userName();
-                    byte[] password = ((MqttConnectPayload) mqttMessage.payload()).passwordInBytes();
-                    logger.info("client connected,clientId---{},username---{},ip---{}", clientId, userName, clientIp);
-                    if (verifyListener != null) {
-                        if (!verifyListener.verify(clientId, userName, password)) {
-                            logger.info("invalid mqtt username or password---{},password---{}", userName, new String(password, StandardCharsets.UTF_8));
-                            ctx.close();
-                            break;
-                        }
-                    }
-                    connack(channel, mqttMessage);
-                    if (listener != null) {
-                        String uuid = listener.clientIdToUuid(clientId);
-                        clientSessionManager.online(clientIp, channel.id().asLongText(), this::publish, uuid, userName, password);
-                    }
+                    connect(ctx, (MqttConnectMessage) mqttMessage);
                     break;
                 case PUBLISH:
                     //客户端发布消息 ,PUBACK报文是对QoS 1等级的PUBLISH报文的响应
                     String topic = mqttMessage.variableHeader() instanceof MqttPublishVariableHeader ? ((MqttPublishVariableHeader) mqttMessage.variableHeader()).topicName() : "";
 
-                    String sMsg = mqttMessage.payload() == null ? "receive message，payload is null，maybe big message length" :
-                            new String(ByteBufUtil.getBytes((ByteBuf) mqttMessage.payload()), defaultCharset);
-                    puback(channel, mqttMessage);
-                    try {
-                        eventQueue.add(new WrapMqttMessage(clientIp, channel.id().asLongText(), topic, sMsg, this::publish));
-                    } catch (IllegalStateException exception) {
-                        logger.error("message add failed", exception);
+                    //正文不在这里复制和转换，retain后交给处理线程，处理完由处理线程release
+                    ByteBuf payload = (ByteBuf) mqttMessage.payload();
+                    int packetId = mqttMessage.variableHeader() instanceof MqttPublishVariableHeader ? ((MqttPublishVariableHeader) mqttMessage.variableHeader()).packetId() : 0;
+                    if (quota != null && !withinQuota(ctx, mqttFixedHeader.qosLevel(), packetId, payload == null ? 0 : payload.readableBytes())) {
+                        break;
+                    }
+                    if (payload != null) {
+                        payload.retain();
                     }
+                    received(ctx, new PendingPublish(new WrapMqttMessage(clientIp, channelId, topic, payload, publisher),
+                            mqttFixedHeader.qosLevel(), packetId, mqttFixedHeader.isRetain()));
                     break;
                 case PUBREL:
                     //	发布释放,PUBREL报文是对PUBREC报文的响应
                     pubcomp(channel, mqttMessage);
                     break;
+                case PUBACK:
+                    //	客户端确认服务端以QoS1发送的消息
+                    MqttInflightWindow.of(channel).ack(messageId(mqttMessage));
+                    break;
+                case PUBREC:
+                    //	客户端收到服务端以QoS2发送的消息，服务端回复PUBREL
+                    MqttInflightWindow.of(channel).received(messageId(mqttMessage));
+                    break;
+                case PUBCOMP:
+                    //	QoS2的最后一步，客户端确认PUBREL
+                    MqttInflightWindow.of(channel).complete(messageId(mqttMessage));
+                    break;
                 case SUBSCRIBE:
                     //	客户端订阅主题,客户端向服务端发送SUBSCRIBE报文用于创建一个或多个订阅，每个订阅注册客户端关心的一个或多个主题。为了将应用消息转发给与那些订阅匹配的主题，服务端发送PUBLISH报文给客户端。SUBSCRIBE报文也（为每个订阅）指定了最大的QoS等级，服务端根据这个发送应用消息给客户端
                     suback(channel, mqttMessage);
@@ -143,7 +241,7 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         // super.exceptionCaught(ctx, cause); 注释是为了解决：远程主机强迫关闭了一个现有的连接 错误，
-        logger.error("MQTT Server exception,{}:{}", ctx.channel().id().asLongText(), cause.getMessage());
+        logger.error("MQTT Server exception,{}:{}", channelId, cause.getMessage());
         ctx.close();
     }
 
@@ -154,7 +252,38 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         super.channelActive(ctx);
         //logger.info("MQTT channelActive:{}", ctx.channel().id().asLongText());
-        channelMap.put(ctx.channel().id().asLongText(), ctx.channel());
+        channelId = MqttChannelId.toText(MqttChannelId.next());
+        clientIp = clientIp(ctx.channel().remoteAddress());
+        unthrottle = () -> {
+            //暂停期间已经读到的消息可能让欠的配额更多了，要等全部还清
+            long waitNanos = quota.waitNanos();
+            if (waitNanos > 0) {
+                ctx.executor().schedule(unthrottle, waitNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+            throttled = false;
+            if (!paused && ctx.channel().isActive()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        };
+        ctx.channel().attr(MqttOutboundQueue.KEY).set(new MqttOutboundQueue(ctx.channel(), channelId, outboundQueueSize, slowConsumerPolicy));
+        ctx.channel().attr(MqttInflightWindow.KEY).set(new MqttInflightWindow(ctx.channel(), channelId, option, timer));
+        //收到CONNECT之前用checkOfflineInterval，之后按客户端的keepAlive
+        keepAlive = new MqttKeepAlive(ctx.channel(), channelId, timer, TimeUnit.SECONDS.toNanos(option.getCheckOfflineInterval()));
+        if (admissionControl != null) {
+            if (admissionControl.tryAcquire(clientIp)) {
+                pendingConnect = true;
+            } else {
+                refused = true;
+                logger.debug("too many new connections,refuse ip={},channelId={}", clientIp, channelId);
+                if (option.isSsl()) {
+                    //不做TLS握手，直接断开
+                    ctx.close();
+                } else {
+                    ctx.executor().schedule(() -> ctx.close(), REFUSED_CLOSE_DELAY, TimeUnit.SECONDS);
+                }
+            }
+        }
     }
 
     /**
@@ -165,9 +294,31 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
         super.channelInactive(ctx);
         //某些特殊的情况(设备修改mqtt地址，然后重启)，不会超时也不会异常，直接inactive。所以重复执行ctx.close
         ctx.close();
-        String channelId = ctx.channel().id().asLongText();
         logger.info("MQTT channelInactive:{}", channelId);
-        channelMap.remove(channelId);
+        if (keepAlive != null) {
+            keepAlive.cancel();
+        }
+        MqttOutboundQueue outboundQueue = MqttOutboundQueue.of(ctx.channel());
+        if (outboundQueue != null) {
+            outboundQueue.clear();
+        }
+        MqttInflightWindow inflightWindow = MqttInflightWindow.of(ctx.channel());
+        if (inflightWindow != null) {
+            inflightWindow.close();
+        }
+        dispatcher.cancelPause(channelId, ctx.channel());
+        releaseHeldReads();
+        connected();
+        PendingPublish pending;
+        while ((pending = backlog.poll()) != null) {
+            ReferenceCountUtil.release(pending.message.getPayload());
+        }
+        if (subscriptionTrie != null) {
+            for (String filter : subscriptions) {
+                subscriptionTrie.unsubscribe(filter, ctx.channel());
+            }
+            subscriptions.clear();
+        }
         clientSessionManager.offline(channelId);
     }
 
@@ -177,41 +328,414 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
         super.userEventTriggered(ctx, evt);
-        logger.info("MQTT Server Channel Event:{},{}", ctx.channel().id().asLongText(), evt.toString());
-        if (evt instanceof IdleStateEvent) {
-            ctx.close();
-        }
+        logger.info("MQTT Server Channel Event:{},{}", channelId, evt.toString());
     }
 
 
+    /**
+     * 写缓冲降到低水位以下后，把发送队列里排队的消息发出去
+     */
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         super.channelWritabilityChanged(ctx);
         //logger.info("MQTT channelWritabilityChanged:{}", ctx.channel().id().asLongText());
+        MqttOutboundQueue outboundQueue = MqttOutboundQueue.of(ctx.channel());
+        if (outboundQueue != null && ctx.channel().isWritable()) {
+            outboundQueue.drain();
+        }
     }
 
     /**
      * 发送消息给客户端，需传递channel的id，主题和内容
      */
     public boolean publish(CustomMqttPublishMessage mqttPublishMessage) {
-        if (mqttPublishMessage == null || mqttPublishMessage.isEmpty()) {
-            logger.error("MQTT channel or topic or content must not be null");
-            return false;
-        }
-        String channelId = mqttPublishMessage.getChannelId();
-        if (!channelMap.containsKey(channelId)) {
-            logger.error("not found mqtt channel id={},publish failed", channelId);
-            return false;
-        }
-        Channel channel = channelMap.get(channelId);
-        MqttPublishVariableHeader header = new MqttPublishVariableHeader(mqttPublishMessage.getTopic(), -1);
-        ByteBuf payload = channel.alloc().buffer();
-        byte[] bytes = mqttPublishMessage.getContent().getBytes(defaultCharset);
-        payload.writeBytes(bytes);
+        return publisher.apply(mqttPublishMessage);
+    }
+
+    /**
+     * 发送消息给客户端，QoS0放入发送队列后future就是true，QoS1/2等收到客户端的确认后才是true。
+     * future在通道的io线程里完成，回调里不要做耗时操作
+     */
+    static CompletableFuture<Boolean> send(Channel channel, CustomMqttPublishMessage mqttPublishMessage, Charset charset) {
+        MqttQoS qos = mqttPublishMessage.getQos();
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            MqttOutboundQueue outboundQueue = MqttOutboundQueue.of(channel);
+            if (outboundQueue == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            outboundQueue.offer(newPublishMessage(channel, mqttPublishMessage, charset));
+            return CompletableFuture.completedFuture(true);
+        }
+        MqttInflightWindow inflightWindow = MqttInflightWindow.of(channel);
+        if (inflightWindow == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return inflightWindow.offer(mqttPublishMessage.getTopic(), qos, encode(channel, mqttPublishMessage.getContent(), charset));
+    }
+
+    /**
+     * 构建发送给客户端的QoS0的PUBLISH报文
+     */
+    static MqttPublishMessage newPublishMessage(Channel channel, CustomMqttPublishMessage mqttPublishMessage, Charset charset) {
+        String topic = mqttPublishMessage.getTopic();
+        ByteBuf payload = encode(channel, mqttPublishMessage.getContent(), charset);
         MqttFixedHeader mqttFixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false,
-                bytes.length + 5);
-        channel.writeAndFlush(new MqttPublishMessage(mqttFixedHeader, header, payload));
-        return true;
+                remainingLength(topic, MqttQoS.AT_MOST_ONCE, payload.readableBytes()));
+        //QoS0的报文没有packet id
+        return new MqttPublishMessage(mqttFixedHeader, new MqttPublishVariableHeader(topic, 0), payload);
+    }
+
+    private static ByteBuf encode(Channel channel, String content, Charset charset) {
+        ByteBuf payload = channel.alloc().buffer(content.length());
+        payload.writeCharSequence(content, charset);
+        return payload;
+    }
+
+    /**
+     * PUBLISH报文的剩余长度：topic的长度（2字节）和UTF-8内容、QoS1/2的packet id（2字节）、正文
+     */
+    static int remainingLength(String topic, MqttQoS qos, int payloadLength) {
+        return 2 + ByteBufUtil.utf8Bytes(topic) + (qos == MqttQoS.AT_MOST_ONCE ? 0 : 2) + payloadLength;
+    }
+
+    /**
+     * 把QoS0的PUBLISH编码成整个报文，和MqttEncoder编码的结果一样。QoS0没有packet id，发给每个客户端的报文都相同，
+     * 广播时只编码一次，每个通道写入retainedDuplicate
+     */
+    static ByteBuf encodePublish(ByteBufAllocator alloc, String topic, byte[] payload) {
+        int remainingLength = remainingLength(topic, MqttQoS.AT_MOST_ONCE, payload.length);
+        ByteBuf packet = alloc.buffer(5 + remainingLength);
+        packet.writeByte(MqttMessageType.PUBLISH.value() << 4);
+        int length = remainingLength;
+        do {
+            int digit = length % 128;
+            length /= 128;
+            packet.writeByte(length > 0 ? digit | 0x80 : digit);
+        } while (length > 0);
+        packet.writeShort(ByteBufUtil.utf8Bytes(topic));
+        ByteBufUtil.writeUtf8(packet, topic);
+        packet.writeBytes(payload);
+        return packet;
+    }
+
+    private static int messageId(MqttMessage mqttMessage) {
+        return ((MqttMessageIdVariableHeader) mqttMessage.variableHeader()).messageId();
+    }
+
+    /**
+     * 取远端地址的ip，不是InetSocketAddress的时候（例如EmbeddedChannel）直接用地址的字符串形式
+     */
+    static String clientIp(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress ipSocket = (InetSocketAddress) address;
+            return ipSocket.getAddress() == null ? ipSocket.getHostString() : ipSocket.getAddress().getHostAddress();
+        }
+        return String.valueOf(address);
+    }
+
+    /**
+     * 校验客户端身份。校验在单独的线程池里执行，期间暂停读取，已经读到的报文暂存起来，结果出来后回到io线程回复CONNACK
+     */
+    private void connect(ChannelHandlerContext ctx, MqttConnectMessage connectMessage) {
+        MqttConnectPayload payload = connectMessage.payload();
+        if (refused) {
+            connack(ctx.channel(), connectMessage, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE, false);
+            ctx.close();
+            return;
+        }
+        logger.info("client connected,clientId---{},username---{},ip---{}", payload.clientIdentifier(), payload.userName(), clientIp);
+        if (authenticator == null) {
+            accept(ctx.channel(), connectMessage);
+            return;
+        }
+        CompletableFuture<Boolean> result = authenticator.verify(payload.clientIdentifier(), payload.userName(), payload.passwordInBytes());
+        if (result.isDone()) {
+            //命中缓存
+            verified(ctx, connectMessage, result);
+            return;
+        }
+        connecting = true;
+        ctx.channel().config().setAutoRead(false);
+        Timeout timeout = timer.newTimeout(t -> result.completeExceptionally(new TimeoutException("verify timeout")),
+                option.getVerifyTimeout(), TimeUnit.SECONDS);
+        result.whenComplete((success, cause) -> {
+            timeout.cancel();
+            ctx.executor().execute(() -> verified(ctx, connectMessage, result));
+        });
+    }
+
+    /**
+     * 校验结果出来后在io线程里执行：通过就回复CONNACK并处理暂存的报文，否则断开
+     */
+    private void verified(ChannelHandlerContext ctx, MqttConnectMessage connectMessage, CompletableFuture<Boolean> result) {
+        connecting = false;
+        Channel channel = ctx.channel();
+        if (!channel.isActive()) {
+            releaseHeldReads();
+            return;
+        }
+        MqttConnectPayload payload = connectMessage.payload();
+        boolean success = false;
+        try {
+            success = result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                logger.error("too many clients waiting for verify,reject clientId={},ip={}", payload.clientIdentifier(), clientIp);
+                connack(channel, connectMessage, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE, false);
+                releaseHeldReads();
+                ctx.close();
+                return;
+            }
+            logger.error("verify failed,clientId={},ip={}", payload.clientIdentifier(), clientIp, e.getCause());
+        }
+        if (!success) {
+            metrics.rejectedAuth();
+            logger.info("invalid mqtt username or password---{},clientId={},ip={}", payload.userName(), payload.clientIdentifier(), clientIp);
+            releaseHeldReads();
+            ctx.close();
+            return;
+        }
+        accept(channel, connectMessage);
+        if (!heldReads.isEmpty() || !channel.config().isAutoRead()) {
+            channel.config().setAutoRead(true);
+            Object held;
+            while (!connecting && (held = heldReads.poll()) != null) {
+                try {
+                    channelRead(ctx, held);
+                } catch (Exception e) {
+                    logger.error("channel read failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 校验通过，回复CONNACK，会话上线，补发离线消息
+     */
+    private void accept(Channel channel, MqttConnectMessage connectMessage) {
+        MqttConnectPayload payload = connectMessage.payload();
+        String clientId = payload.clientIdentifier();
+        boolean cleanSession = connectMessage.variableHeader().isCleanSession();
+        String uuid = listener != null ? listener.clientIdToUuid(clientId) : clientId;
+        //只有持久会话并且服务端保存了它的状态时sessionPresent才为true
+        connack(channel, connectMessage, MqttConnectReturnCode.CONNECTION_ACCEPTED,
+                !cleanSession && offlineStore != null && offlineStore.isPersistent(uuid));
+        connected();
+        keepAlive.keepAlive(connectMessage.variableHeader().keepAliveTimeSeconds());
+        MqttQuota clientQuota = server.getQuota(uuid, payload.userName());
+        quota = clientQuota.isUnlimited() ? null : new MqttInboundQuota(clientQuota);
+        //密码只用于校验，不保存在session里
+        session = clientSessionManager.online(clientIp, channel, channelId, publisher, uuid, payload.userName(), cleanSession);
+        restore(channel, uuid, cleanSession);
+    }
+
+    /**
+     * 已经回复CONNACK或者连接断开，不再占用准入控制的等待名额
+     */
+    private void connected() {
+        if (pendingConnect) {
+            pendingConnect = false;
+            admissionControl.release();
+        }
+    }
+
+    private void releaseHeldReads() {
+        Object held;
+        while ((held = heldReads.poll()) != null) {
+            ReferenceCountUtil.release(held);
+        }
+    }
+
+    /**
+     * 持久会话连接后补发离线期间保存的消息，收到客户端确认后才从存储里删除，没有确认的下次连接再补发。
+     * clean session为true时删除之前保存的会话和消息
+     */
+    private void restore(Channel channel, String uuid, boolean cleanSession) {
+        if (offlineStore == null) {
+            return;
+        }
+        if (cleanSession) {
+            offlineStore.setPersistent(uuid, false);
+            return;
+        }
+        offlineStore.setPersistent(uuid, true);
+        MqttInflightWindow inflightWindow = MqttInflightWindow.of(channel);
+        List<MqttOfflineStore.StoredMessage> messages = offlineStore.pending(uuid);
+        if (inflightWindow == null || messages.isEmpty()) {
+            return;
+        }
+        logger.info("resend offline messages,uuid={},count={}", uuid, messages.size());
+        for (MqttOfflineStore.StoredMessage message : messages) {
+            long seq = message.getSeq();
+            inflightWindow.offer(message.getTopic(), message.getQos(), Unpooled.wrappedBuffer(message.getPayload()))
+                    .thenAccept(success -> {
+                        if (success) {
+                            offlineStore.remove(uuid, seq);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * 按overflowStrategy把客户端发布的消息放入队列并回复确认
+     */
+    private void received(ChannelHandlerContext ctx, PendingPublish pending) {
+        Channel channel = ctx.channel();
+        switch (overflowStrategy) {
+            case PAUSE_READ:
+                //已经有暂存的消息时也要排队，保证顺序
+                if (!backlog.isEmpty() || dispatcher.isAboveHighWaterMark(channelId) || !offer(channel, pending)) {
+                    backlog.add(pending);
+                    pause(channel);
+                }
+                break;
+            case WITHHOLD_ACK:
+                if (!offer(channel, pending)) {
+                    ReferenceCountUtil.release(pending.message.getPayload());
+                    logger.error("message add failed,queue is full,ack withheld,channelId={}", channelId);
+                }
+                break;
+            case REJECT:
+                if (!offer(channel, pending)) {
+                    ReferenceCountUtil.release(pending.message.getPayload());
+                    logger.error("message add failed,queue is full,disconnect channelId={}", channelId);
+                    ctx.close();
+                }
+                break;
+            case DROP:
+            default:
+                puback(channel, pending.qos, pending.packetId);
+                accepted(pending, pending.message.getPayload());
+                if (!dispatcher.dispatch(pending.message)) {
+                    ReferenceCountUtil.release(pending.message.getPayload());
+                    logger.error("message add failed,queue is full,channelId={}", channelId);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 放入队列，成功后才回复确认和转发
+     */
+    private boolean offer(Channel channel, PendingPublish pending) {
+        ByteBuf payload = pending.message.getPayload();
+        //放入队列后处理线程随时可能release，转发之前先多持有一次
+        if (payload != null) {
+            payload.retain();
+        }
+        try {
+            if (!dispatcher.dispatch(pending.message)) {
+                return false;
+            }
+            puback(channel, pending.qos, pending.packetId);
+            accepted(pending, payload);
+            return true;
+        } finally {
+            ReferenceCountUtil.release(payload);
+        }
+    }
+
+    /**
+     * 消息已经被接受（回复了确认），保存保留消息并转发。被拒绝、扣下确认或者断开的消息不能改变保留消息
+     */
+    private void accepted(PendingPublish pending, ByteBuf payload) {
+        if (pending.retain && retainedStore != null) {
+            retainedStore.put(pending.message.getTopic(), pending.qos, payload == null ? null : ByteBufUtil.getBytes(payload));
+        }
+        route(pending.message.getTopic(), pending.qos, payload);
+    }
+
+    private void pause(Channel channel) {
+        if (!paused) {
+            paused = true;
+            dispatcher.pause(channelId, channel, () -> resume(channel));
+        }
+    }
+
+    /**
+     * 队列降到低水位以下后，在io线程里把暂存的消息放入队列，全部放入后恢复读取
+     */
+    private void resume(Channel channel) {
+        paused = false;
+        if (!channel.isActive()) {
+            return;
+        }
+        while (!backlog.isEmpty()) {
+            if (!offer(channel, backlog.peek())) {
+                pause(channel);
+                return;
+            }
+            backlog.poll();
+        }
+        if (!throttled) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * 按quotaAction检查配额，返回false表示这条消息不再处理
+     */
+    private boolean withinQuota(ChannelHandlerContext ctx, MqttQoS qos, int packetId, int bytes) {
+        switch (quotaAction) {
+            case DROP:
+                if (quota.tryAcquire(bytes)) {
+                    return true;
+                }
+                metrics.quotaExceeded();
+                //照常确认，避免客户端重发
+                puback(ctx.channel(), qos, packetId);
+                return false;
+            case DISCONNECT:
+                if (quota.tryAcquire(bytes)) {
+                    return true;
+                }
+                metrics.quotaExceeded();
+                logger.info("client exceeded quota,disconnect channelId={},ip={}", channelId, clientIp);
+                ctx.close();
+                return false;
+            case THROTTLE:
+            default:
+                long waitNanos = quota.acquire(bytes);
+                if (waitNanos > 0 && !throttled) {
+                    metrics.quotaExceeded();
+                    throttled = true;
+                    ctx.channel().config().setAutoRead(false);
+                    ctx.executor().schedule(unthrottle, waitNanos, TimeUnit.NANOSECONDS);
+                }
+                return true;
+        }
+    }
+
+    /**
+     * 把客户端发布的消息转发给订阅了匹配topic的通道，正文共享同一个buffer，不复制。
+     * qos取发布的qos和订阅时授予的qos中较小的，QoS1/2经过通道的inflight窗口，等客户端确认，超时重发
+     */
+    private void route(String topic, MqttQoS publishQos, ByteBuf payload) {
+        if (subscriptionTrie == null || payload == null) {
+            return;
+        }
+        Map<Channel, MqttQoS> targets = subscriptionTrie.match(topic);
+        for (Map.Entry<Channel, MqttQoS> target : targets.entrySet()) {
+            Channel channel = target.getKey();
+            if (!channel.isActive()) {
+                continue;
+            }
+            MqttQoS qos = publishQos.value() < target.getValue().value() ? publishQos : target.getValue();
+            if (qos != MqttQoS.AT_MOST_ONCE) {
+                MqttInflightWindow inflightWindow = MqttInflightWindow.of(channel);
+                if (inflightWindow != null) {
+                    inflightWindow.offer(topic, qos, payload.retainedDuplicate());
+                }
+                continue;
+            }
+            MqttOutboundQueue outboundQueue = MqttOutboundQueue.of(channel);
+            if (outboundQueue == null) {
+                continue;
+            }
+            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false,
+                    remainingLength(topic, MqttQoS.AT_MOST_ONCE, payload.readableBytes()));
+            outboundQueue.offer(new MqttPublishMessage(fixedHeader, new MqttPublishVariableHeader(topic, 0), payload.retainedDuplicate()));
+        }
     }
 
     //------------------------------分割-----------------------------------------------------------------
@@ -219,12 +743,10 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
     /**
      * 确认连接请求
      */
-    private void connack(Channel channel, MqttMessage mqttMessage) {
-        MqttConnectMessage mqttConnectMessage = (MqttConnectMessage) mqttMessage;
+    private void connack(Channel channel, MqttConnectMessage mqttConnectMessage, MqttConnectReturnCode returnCode, boolean sessionPresent) {
         MqttFixedHeader mqttFixedHeaderInfo = mqttConnectMessage.fixedHeader();
-        MqttConnectVariableHeader mqttConnectVariableHeaderInfo = mqttConnectMessage.variableHeader();
         //	构建返回报文， 可变报头
-        MqttConnAckVariableHeader mqttConnAckVariableHeaderBack = new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, mqttConnectVariableHeaderInfo.isCleanSession());
+        MqttConnAckVariableHeader mqttConnAckVariableHeaderBack = new MqttConnAckVariableHeader(returnCode, sessionPresent);
         //	构建返回报文， 固定报头
         MqttFixedHeader mqttFixedHeaderBack = new MqttFixedHeader(MqttMessageType.CONNACK, mqttFixedHeaderInfo.isDup(), MqttQoS.AT_MOST_ONCE, mqttFixedHeaderInfo.isRetain(), 0x02);
         //	构建CONNACK消息体
@@ -250,13 +772,7 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
     /**
      * 根据qos发布确认
      */
-    private void puback(Channel channel, MqttMessage mqttMessage) {
-        MqttPublishMessage mqttPublishMessage = (MqttPublishMessage) mqttMessage;
-        MqttFixedHeader mqttFixedHeaderInfo = mqttPublishMessage.fixedHeader();
-        MqttQoS qos = mqttFixedHeaderInfo.qosLevel();
-        byte[] headBytes = new byte[mqttPublishMessage.payload().readableBytes()];
-        mqttPublishMessage.payload().readBytes(headBytes);
-
+    private void puback(Channel channel, MqttQoS qos, int packetId) {
         switch (qos) {
             //	至多一次
             case AT_MOST_ONCE:
@@ -264,9 +780,9 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
             //	至少一次
             case AT_LEAST_ONCE:
                 //	构建返回报文， 可变报头
-                MqttMessageIdVariableHeader mqttMessageIdVariableHeaderBack = MqttMessageIdVariableHeader.from(mqttPublishMessage.variableHeader().packetId());
+                MqttMessageIdVariableHeader mqttMessageIdVariableHeaderBack = MqttMessageIdVariableHeader.from(packetId);
                 //	构建返回报文， 固定报头
-                MqttFixedHeader mqttFixedHeaderBack = new MqttFixedHeader(MqttMessageType.PUBACK, mqttFixedHeaderInfo.isDup(), MqttQoS.AT_MOST_ONCE, mqttFixedHeaderInfo.isRetain(), 0x02);
+                MqttFixedHeader mqttFixedHeaderBack = new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0x02);
                 //	构建PUBACK消息体
                 MqttPubAckMessage pubAck = new MqttPubAckMessage(mqttFixedHeaderBack, mqttMessageIdVariableHeaderBack);
                 //logger.info("AT_LEAST_ONCE puback--" + pubAck.toString());
@@ -277,7 +793,7 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
                 //	构建返回报文， 固定报头
                 MqttFixedHeader mqttFixedHeaderBack2 = new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_LEAST_ONCE, false, 0x02);
                 //	构建返回报文， 可变报头
-                MqttMessageIdVariableHeader mqttMessageIdVariableHeaderBack2 = MqttMessageIdVariableHeader.from(mqttPublishMessage.variableHeader().packetId());
+                MqttMessageIdVariableHeader mqttMessageIdVariableHeaderBack2 = MqttMessageIdVariableHeader.from(packetId);
                 MqttMessage mqttMessageBack = new MqttMessage(mqttFixedHeaderBack2, mqttMessageIdVariableHeaderBack2);
                 //logger.info("EXACTLY_ONCE puback--" + mqttMessageBack.toString());
                 channel.writeAndFlush(mqttMessageBack);
@@ -295,20 +811,55 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
         MqttMessageIdVariableHeader messageIdVariableHeader = mqttSubscribeMessage.variableHeader();
         //	构建返回报文， 可变报头
         MqttMessageIdVariableHeader variableHeaderBack = MqttMessageIdVariableHeader.from(messageIdVariableHeader.messageId());
-        Set<String> topics = mqttSubscribeMessage.payload().topicSubscriptions().stream().map(MqttTopicSubscription::topicName).collect(Collectors.toSet());
-        //logger.info(topics.toString());
-        List<Integer> grantedQosLevels = new ArrayList<>(topics.size());
-        for (int i = 0; i < topics.size(); i++) {
-            grantedQosLevels.add(mqttSubscribeMessage.payload().topicSubscriptions().get(i).qualityOfService().value());
+        List<MqttTopicSubscription> topicSubscriptions = mqttSubscribeMessage.payload().topicSubscriptions();
+        List<Integer> grantedQosLevels = new ArrayList<>(topicSubscriptions.size());
+        for (MqttTopicSubscription subscription : topicSubscriptions) {
+            String filter = subscription.topicName();
+            if (subscriptionTrie == null) {
+                grantedQosLevels.add(subscription.qualityOfService().value());
+            } else if (subscriptionTrie.subscribe(filter, channel, subscription.qualityOfService())) {
+                subscriptions.add(filter);
+                grantedQosLevels.add(subscription.qualityOfService().value());
+            } else {
+                //不合法的filter返回0x80
+                grantedQosLevels.add(MqttQoS.FAILURE.value());
+            }
         }
         //	构建返回报文	有效负载
         MqttSubAckPayload payloadBack = new MqttSubAckPayload(grantedQosLevels);
         //	构建返回报文	固定报头
-        MqttFixedHeader mqttFixedHeaderBack = new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 2 + topics.size());
+        MqttFixedHeader mqttFixedHeaderBack = new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 2 + grantedQosLevels.size());
         //	构建返回报文	订阅确认
         MqttSubAckMessage subAck = new MqttSubAckMessage(mqttFixedHeaderBack, variableHeaderBack, payloadBack);
         //logger.info("suback--"+subAck.toString());
         channel.writeAndFlush(subAck);
+        for (int i = 0; i < topicSubscriptions.size(); i++) {
+            if (grantedQosLevels.get(i) != MqttQoS.FAILURE.value()) {
+                sendRetained(channel, topicSubscriptions.get(i).topicName(), MqttQoS.valueOf(grantedQosLevels.get(i)));
+            }
+        }
+    }
+
+    /**
+     * 订阅成功后把匹配filter的保留消息发给客户端，qos取保留消息和订阅的qos中较小的
+     */
+    private void sendRetained(Channel channel, String filter, MqttQoS grantedQos) {
+        if (retainedStore == null) {
+            return;
+        }
+        MqttOutboundQueue outboundQueue = MqttOutboundQueue.of(channel);
+        MqttInflightWindow inflightWindow = MqttInflightWindow.of(channel);
+        for (MqttRetainedStore.RetainedMessage retained : retainedStore.match(filter)) {
+            MqttQoS qos = retained.getQos().value() < grantedQos.value() ? retained.getQos() : grantedQos;
+            ByteBuf payload = Unpooled.wrappedBuffer(retained.getPayload());
+            if (qos != MqttQoS.AT_MOST_ONCE && inflightWindow != null) {
+                inflightWindow.offer(retained.getTopic(), qos, payload, true);
+            } else if (outboundQueue != null) {
+                MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, true,
+                        remainingLength(retained.getTopic(), MqttQoS.AT_MOST_ONCE, payload.readableBytes()));
+                outboundQueue.offer(new MqttPublishMessage(fixedHeader, new MqttPublishVariableHeader(retained.getTopic(), 0), payload));
+            }
+        }
     }
 
     /**
@@ -316,6 +867,12 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
      */
     private void unsuback(Channel channel, MqttMessage mqttMessage) {
         MqttMessageIdVariableHeader messageIdVariableHeader = (MqttMessageIdVariableHeader) mqttMessage.variableHeader();
+        if (subscriptionTrie != null) {
+            for (String filter : ((MqttUnsubscribeMessage) mqttMessage).payload().topics()) {
+                subscriptionTrie.unsubscribe(filter, channel);
+                subscriptions.remove(filter);
+            }
+        }
         //	构建返回报文	可变报头
         MqttMessageIdVariableHeader variableHeaderBack = MqttMessageIdVariableHeader.from(messageIdVariableHeader.messageId());
         //	构建返回报文	固定报头
@@ -336,4 +893,21 @@ public class MqttChannelInboundHandler extends ChannelInboundHandlerAdapter {
         //logger.info("pingresp--" + mqttMessageBack.toString());
         channel.writeAndFlush(mqttMessageBack);
     }
+
+    /**
+     * 还没有放入队列的消息和回复确认需要的信息
+     */
+    private static final class PendingPublish {
+        private final WrapMqttMessage message;
+        private final MqttQoS qos;
+        private final int packetId;
+        private final boolean retain;
+
+        private PendingPublish(WrapMqttMessage message, MqttQoS qos, int packetId, boolean retain) {
+            this.message = message;
+            this.qos = qos;
+            this.packetId = packetId;
+            this.retain = retain;
+        }
+    }
 }
@@ -0,0 +1,661 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 集群模式下的一个节点。每个节点主动连接clusterNodes里的所有其它节点，连接建立后把本节点在线的uuid和保存了离线消息的uuid发过去，
+ * 之后有设备上线、下线时通知所有节点，这样每个节点都知道每个uuid连在哪个节点上。
+ * 主动建立的连接用来发通知和转发publishToUuid，对方在同一个连接上回复转发的结果。
+ * <p>
+ * 设备重连到了另一个节点时，新节点的上线通知会让旧节点断开旧的连接，并把旧节点上保存的离线消息转发给新节点（会话迁移）。
+ * <p>
+ * 每次上线有一个epoch，取当前时间和已知的这个uuid最大epoch加1中较大的，相同时按节点名比较。
+ * 不同节点发来的上线通知到达的先后不确定，每个节点只接受比已知的更新的上线，旧的上线通知不会断开新的连接。
+ * <p>
+ * 节点之间的报文是4字节长度加上报文内容，报文的第一个字节是类型，字符串是2字节长度加UTF-8，正文是4字节长度加内容。
+ * <p>
+ * 连接后双方各发一个随机数（CHALLENGE），HELLO里带上用clusterSecret对对方的随机数和自己的节点名计算的HMAC，
+ * 双方都校验通过后才处理其它报文
+ *
+ * @author liuyi
+ */
+public class MqttClusterNode implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MqttClusterNode.class);
+    /**
+     * 校验通过对方的CHALLENGE后发送自己的节点名和HMAC
+     */
+    private static final byte HELLO = 1;
+    /**
+     * uuid在发送方上线了，带着这次上线的epoch
+     */
+    private static final byte ONLINE = 2;
+    /**
+     * uuid离线了，但在发送方保存着离线消息，只有没有其它节点声明时才记下来
+     */
+    private static final byte PARKED = 3;
+    /**
+     * uuid在发送方下线了
+     */
+    private static final byte OFFLINE = 4;
+    /**
+     * 请求接收方把消息发给连在它上面的uuid
+     */
+    private static final byte PUBLISH = 5;
+    /**
+     * PUBLISH的结果
+     */
+    private static final byte PUBLISH_ACK = 6;
+    /**
+     * 连接后双方先发送一个随机数
+     */
+    private static final byte CHALLENGE = 7;
+    private static final int NONCE_LENGTH = 16;
+    private static final String HMAC = "HmacSHA256";
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int RECONNECT_INTERVAL = 3;
+    /**
+     * 转发的消息等待对方回复的最长时间，QoS1/2要等设备确认，比较长
+     */
+    private static final int FORWARD_TIMEOUT = 60;
+    private final MqttServerService server;
+    private final String nodeId;
+    private final String host;
+    private final int port;
+    private final byte[] secret;
+    private final Charset charset;
+    private final List<String> nodes;
+    private final MqttTransportFactory transportFactory;
+    private EventLoopGroup group;
+    /**
+     * 每个uuid最新的一次上线在哪个节点上，包括本节点。同一个uuid的比较和替换在compute里原子执行
+     */
+    private final Map<String, Claim> claims = new ConcurrentHashMap<>();
+    /**
+     * 本节点主动连接其它节点的通道，以对方的节点名为key，握手完成后才放进来
+     */
+    private final Map<String, Channel> links = new ConcurrentHashMap<>();
+    /**
+     * 其它节点主动连接本节点的通道，以对方的节点名为key
+     */
+    private final Map<String, Channel> inbound = new ConcurrentHashMap<>();
+    /**
+     * 本节点主动连接的所有通道，包括还没握手完成的，上下线通知发给这些通道
+     */
+    private final Set<Channel> outbound = ConcurrentHashMap.newKeySet();
+    /**
+     * 连接后发现是自己的地址，不再重连
+     */
+    private final Set<String> selfAddresses = ConcurrentHashMap.newKeySet();
+    private final Map<Long, PendingForward> pendingForwards = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder forwardFailed = new LongAdder();
+    private final LongAdder handedOff = new LongAdder();
+    private final SecureRandom random = new SecureRandom();
+    private volatile boolean closed;
+
+    public MqttClusterNode(MqttServerService server, MqttServerServiceOption option) {
+        this.server = server;
+        this.nodeId = option.getClusterNodeId();
+        this.host = option.getClusterHost();
+        this.port = option.getClusterPort();
+        this.secret = option.getClusterSecret() == null ? null : option.getClusterSecret().getBytes(StandardCharsets.UTF_8);
+        this.charset = option.getDefaultCharset();
+        this.nodes = option.getClusterNodes();
+        this.transportFactory = new MqttTransportFactory(option.getTransport());
+    }
+
+    /**
+     * 监听集群端口并连接其它节点，没有设置clusterSecret或者端口被占用时抛出IllegalStateException
+     */
+    public void start() {
+        if (secret == null) {
+            throw new IllegalStateException("clusterSecret is required in cluster mode,nodeId=" + nodeId);
+        }
+        group = transportFactory.newEventLoopGroup(2);
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(group)
+                .channel(transportFactory.getServerChannelClass())
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        initLink(ch, new LinkHandler(null));
+                    }
+                });
+        try {
+            if (host == null) {
+                bootstrap.bind(port).sync();
+            } else {
+                bootstrap.bind(host, port).sync();
+            }
+        } catch (Exception e) {
+            group.shutdownGracefully();
+            throw new IllegalStateException("cluster node bind failed,host=" + host + ",port=" + port, e);
+        }
+        logger.info("cluster node started,nodeId={},host={},port={},nodes={}", nodeId, host, port, nodes);
+        for (String address : nodes) {
+            connect(address);
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * uuid所在的其它节点，不在其它节点上返回null
+     */
+    public String getOwner(String uuid) {
+        Claim claim = claims.get(uuid);
+        return claim == null || claim.node.equals(nodeId) ? null : claim.node;
+    }
+
+    /**
+     * 已经连上的其它节点
+     */
+    public Set<String> getConnectedNodes() {
+        return Collections.unmodifiableSet(links.keySet());
+    }
+
+    /**
+     * 在其它节点上的uuid数
+     */
+    public int getRemoteSessionCount() {
+        int count = 0;
+        for (Claim claim : claims.values()) {
+            if (!claim.node.equals(nodeId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 转发到其它节点并且成功的消息数
+     */
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    /**
+     * 转发失败的消息数，包括节点没连上、超时和对方发送失败
+     */
+    public long getForwardFailedCount() {
+        return forwardFailed.sum();
+    }
+
+    /**
+     * 会话迁移时转给新节点的离线消息数
+     */
+    public long getHandedOffCount() {
+        return handedOff.sum();
+    }
+
+    /**
+     * 请求owner节点把消息发给uuid，future的结果就是owner节点上publishToUuid的结果
+     */
+    public CompletableFuture<Boolean> forward(String owner, String uuid, String topic, String content, MqttQoS qos) {
+        Channel link = links.get(owner);
+        if (link == null) {
+            logger.error("cluster node {} is not connected,uuid={},forward failed", owner, uuid);
+            forwardFailed.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        PendingForward pending = new PendingForward(link, future);
+        pendingForwards.put(requestId, pending);
+        pending.timeout = server.getTimer().newTimeout(timeout -> complete(requestId, false), FORWARD_TIMEOUT, TimeUnit.SECONDS);
+        ByteBuf frame = link.alloc().buffer();
+        frame.writeByte(PUBLISH);
+        frame.writeLong(requestId);
+        writeString(frame, uuid);
+        writeString(frame, topic);
+        frame.writeByte(qos.value());
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        frame.writeInt(bytes.length);
+        frame.writeBytes(bytes);
+        link.writeAndFlush(frame).addListener(f -> {
+            if (!f.isSuccess()) {
+                complete(requestId, false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 本节点有设备上线，由ClientSessionManager调用
+     */
+    void localOnline(String uuid, boolean persistent) {
+        Claim claim = claims.compute(uuid, (key, current) ->
+                new Claim(nodeId, Math.max(System.currentTimeMillis(), current == null ? 0 : current.epoch + 1)));
+        broadcast(ONLINE, uuid, persistent, claim.epoch);
+    }
+
+    /**
+     * 本节点有设备下线，由ClientSessionManager调用。持久会话的离线消息还保存在本节点，不通知其它节点，继续由本节点保存
+     */
+    void localOffline(String uuid, boolean persistent) {
+        if (persistent && server.getOfflineStore() != null) {
+            return;
+        }
+        //已经被其它节点更新的上线顶替时不删除
+        claims.computeIfPresent(uuid, (key, current) -> current.node.equals(nodeId) ? null : current);
+        broadcast(OFFLINE, uuid, false, 0);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (group != null) {
+            group.shutdownGracefully();
+        }
+        for (Long requestId : pendingForwards.keySet()) {
+            complete(requestId, false);
+        }
+    }
+
+    private void initLink(Channel ch, LinkHandler handler) {
+        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+        ch.pipeline().addLast(new LengthFieldPrepender(4));
+        ch.pipeline().addLast(handler);
+    }
+
+    private void connect(String address) {
+        if (closed || selfAddresses.contains(address)) {
+            return;
+        }
+        int colon = address.lastIndexOf(':');
+        String host = address.substring(0, colon);
+        int peerPort = Integer.parseInt(address.substring(colon + 1));
+        new Bootstrap().group(group)
+                .channel(transportFactory.getChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, RECONNECT_INTERVAL * 1000)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        initLink(ch, new LinkHandler(address));
+                    }
+                })
+                .connect(host, peerPort)
+                .addListener((ChannelFutureListener) f -> {
+                    if (!f.isSuccess()) {
+                        logger.debug("connect cluster node {} failed,{}", address, f.cause().toString());
+                        reconnect(address);
+                    }
+                });
+    }
+
+    private void reconnect(String address) {
+        if (closed) {
+            return;
+        }
+        server.getTimer().newTimeout(timeout -> connect(address), RECONNECT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private void broadcast(byte type, String uuid, boolean persistent, long epoch) {
+        for (Channel channel : outbound) {
+            channel.writeAndFlush(announcement(channel, type, uuid, persistent, epoch));
+        }
+    }
+
+    private static ByteBuf announcement(Channel channel, byte type, String uuid, boolean persistent, long epoch) {
+        ByteBuf frame = channel.alloc().buffer();
+        frame.writeByte(type);
+        writeString(frame, uuid);
+        if (type == ONLINE) {
+            frame.writeBoolean(persistent);
+            frame.writeLong(epoch);
+        }
+        return frame;
+    }
+
+    /**
+     * 刚连上某个节点时，把本节点的在线uuid和保存了离线消息的uuid发过去
+     */
+    private void sync(Channel channel) {
+        server.getClientSessionManager().forEachSession(session -> {
+            Claim claim = claims.get(session.getUuid());
+            //已经被其它节点更新的上线顶替、正在断开的不再声明
+            if (claim != null && claim.node.equals(nodeId)) {
+                channel.write(announcement(channel, ONLINE, session.getUuid(), session.isPersistent(), claim.epoch));
+            }
+        });
+        MqttOfflineStore offlineStore = server.getOfflineStore();
+        if (offlineStore != null) {
+            for (String uuid : offlineStore.getPersistentUuids()) {
+                if (server.getClientSessionManager().getSessionByUuid(uuid) == null) {
+                    channel.write(announcement(channel, PARKED, uuid, true, 0));
+                }
+            }
+        }
+        channel.flush();
+    }
+
+    /**
+     * 其它节点上线了uuid：断开本节点上同一个uuid的旧连接，把本节点保存的离线消息转过去。
+     * 比已知的上线旧的通知是晚到的，忽略
+     */
+    private void remoteOnline(String owner, String uuid, boolean persistent, long epoch) {
+        Claim claim = new Claim(owner, epoch);
+        if (claims.merge(uuid, claim, (current, incoming) -> incoming.isNewerThan(current) ? incoming : current) != claim) {
+            logger.info("ignore stale online from cluster node {},uuid={},epoch={}", owner, uuid, epoch);
+            return;
+        }
+        ClientSession session = server.getClientSessionManager().getSessionByUuid(uuid);
+        Channel channel = session == null ? null : session.getChannel();
+        if (channel == null) {
+            handOff(owner, uuid, persistent);
+            return;
+        }
+        logger.info("session moved to cluster node {},close channelId={},uuid={}", owner, session.getChannelId(), uuid);
+        //channelInactive里没确认的消息会存进离线存储，等它执行完再迁移
+        channel.close().addListener(f -> channel.eventLoop().execute(() -> handOff(owner, uuid, persistent)));
+    }
+
+    private void handOff(String owner, String uuid, boolean persistent) {
+        MqttOfflineStore offlineStore = server.getOfflineStore();
+        if (offlineStore == null || !offlineStore.isPersistent(uuid)) {
+            return;
+        }
+        //新的连接是clean session，之前的会话作废
+        if (!persistent) {
+            offlineStore.setPersistent(uuid, false);
+            return;
+        }
+        List<MqttOfflineStore.StoredMessage> messages = offlineStore.pending(uuid);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(messages.size());
+        for (MqttOfflineStore.StoredMessage message : messages) {
+            long seq = message.getSeq();
+            //离线消息是publishToUuid按defaultCharset编码后保存的
+            futures.add(forward(owner, uuid, message.getTopic(), new String(message.getPayload(), charset), message.getQos())
+                    .thenApply(success -> {
+                        if (success) {
+                            handedOff.increment();
+                            offlineStore.remove(uuid, seq);
+                        }
+                        return success;
+                    }));
+        }
+        if (!messages.isEmpty()) {
+            logger.info("hand off offline messages to cluster node {},uuid={},count={}", owner, uuid, messages.size());
+        }
+        //全部转过去之后本节点不再保存这个会话，失败的留着，下次上线再转
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            if (offlineStore.size(uuid) == 0 && owner.equals(getOwner(uuid))) {
+                offlineStore.setPersistent(uuid, false);
+            }
+        });
+    }
+
+    /**
+     * 其它节点请求把消息发给本节点上的uuid，在本节点上找不到就返回失败，不会再转发
+     */
+    private void remotePublish(Channel channel, long requestId, String uuid, String topic, MqttQoS qos, String content) {
+        server.publishToUuid(uuid, topic, content, qos, false).whenComplete((success, e) -> {
+            ByteBuf frame = channel.alloc().buffer(9);
+            frame.writeByte(PUBLISH_ACK);
+            frame.writeLong(requestId);
+            frame.writeBoolean(e == null && Boolean.TRUE.equals(success));
+            channel.writeAndFlush(frame);
+        });
+    }
+
+    private void complete(long requestId, boolean success) {
+        PendingForward pending = pendingForwards.remove(requestId);
+        if (pending == null) {
+            return;
+        }
+        Timeout timeout = pending.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (success) {
+            forwarded.increment();
+        } else {
+            forwardFailed.increment();
+        }
+        pending.future.complete(success);
+    }
+
+    private static void writeString(ByteBuf frame, String value) {
+        frame.writeShort(ByteBufUtil.utf8Bytes(value));
+        frame.writeCharSequence(value, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuf frame) {
+        int length = frame.readUnsignedShort();
+        return frame.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * 用共享密钥对随机数和节点名计算HMAC
+     */
+    private byte[] sign(byte[] nonce, String signer) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret, HMAC));
+            mac.update(nonce);
+            return mac.doFinal(signer.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("cluster hmac failed", e);
+        }
+    }
+
+    /**
+     * 一条节点之间的连接，address不为null的是本节点主动发起的
+     */
+    private final class LinkHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        private final String address;
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+        private byte[] peerNonce;
+        private String peer;
+
+        private LinkHandler(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            super.channelActive(ctx);
+            random.nextBytes(nonce);
+            ByteBuf frame = ctx.alloc().buffer(1 + NONCE_LENGTH);
+            frame.writeByte(CHALLENGE);
+            frame.writeBytes(nonce);
+            ctx.writeAndFlush(frame);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            byte type = frame.readByte();
+            if (type == CHALLENGE) {
+                peerNonce = ByteBufUtil.getBytes(frame, frame.readerIndex(), NONCE_LENGTH);
+                //主动连接的一方收到随机数后先发HELLO，被连接的一方校验通过后再回复
+                if (address != null) {
+                    sendHello(ctx.channel(), ChannelFutureListener.CLOSE_ON_FAILURE);
+                }
+                return;
+            }
+            if (type == HELLO) {
+                String peerNodeId = readString(frame);
+                byte[] signature = ByteBufUtil.getBytes(frame);
+                if (peer != null || peerNonce == null || !MessageDigest.isEqual(signature, sign(nonce, peerNodeId))) {
+                    logger.warn("cluster node authentication failed,node={},remote={}", peerNodeId, ctx.channel().remoteAddress());
+                    ctx.close();
+                    return;
+                }
+                hello(ctx.channel(), peerNodeId);
+                return;
+            }
+            if (peer == null) {
+                return;
+            }
+            switch (type) {
+                case ONLINE:
+                    String uuid = readString(frame);
+                    boolean persistent = frame.readBoolean();
+                    remoteOnline(peer, uuid, persistent, frame.readLong());
+                    break;
+                case PARKED:
+                    String parked = readString(frame);
+                    if (server.getClientSessionManager().getSessionByUuid(parked) == null
+                            && (server.getOfflineStore() == null || !server.getOfflineStore().isPersistent(parked))) {
+                        claims.putIfAbsent(parked, new Claim(peer, 0));
+                    }
+                    break;
+                case OFFLINE:
+                    String offline = readString(frame);
+                    claims.computeIfPresent(offline, (key, current) -> current.node.equals(peer) ? null : current);
+                    break;
+                case PUBLISH:
+                    long requestId = frame.readLong();
+                    String target = readString(frame);
+                    String topic = readString(frame);
+                    MqttQoS qos = MqttQoS.valueOf(frame.readByte());
+                    String content = frame.readCharSequence(frame.readInt(), StandardCharsets.UTF_8).toString();
+                    remotePublish(ctx.channel(), requestId, target, topic, qos, content);
+                    break;
+                case PUBLISH_ACK:
+                    complete(frame.readLong(), frame.readBoolean());
+                    break;
+                default:
+                    logger.warn("unknown cluster frame type {} from node {}", type, peer);
+            }
+        }
+
+        private void hello(Channel channel, String peerNodeId) {
+            if (nodeId.equals(peerNodeId)) {
+                //clusterNodes里包含了自己的地址
+                if (address != null) {
+                    selfAddresses.add(address);
+                    channel.close();
+                } else {
+                    //回复HELLO让主动连接的一方也知道连到了自己，不再重连
+                    sendHello(channel, ChannelFutureListener.CLOSE);
+                }
+                return;
+            }
+            peer = peerNodeId;
+            if (address != null) {
+                Channel previous = links.put(peer, channel);
+                if (previous != null && previous != channel) {
+                    previous.close();
+                }
+                outbound.add(channel);
+                sync(channel);
+                logger.info("cluster node {} connected,address={}", peer, address);
+                return;
+            }
+            Channel previous = inbound.put(peer, channel);
+            if (previous != null) {
+                //对方重连了，旧连接上声明的uuid作废，等新连接重新同步
+                previous.close();
+                claims.values().removeIf(claim -> claim.node.equals(peer));
+            }
+            sendHello(channel, ChannelFutureListener.CLOSE_ON_FAILURE);
+        }
+
+        private void sendHello(Channel channel, ChannelFutureListener listener) {
+            ByteBuf frame = channel.alloc().buffer();
+            frame.writeByte(HELLO);
+            writeString(frame, nodeId);
+            frame.writeBytes(sign(peerNonce, nodeId));
+            channel.writeAndFlush(frame).addListener(listener);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            super.channelInactive(ctx);
+            Channel channel = ctx.channel();
+            if (address != null) {
+                outbound.remove(channel);
+                if (peer != null) {
+                    links.remove(peer, channel);
+                    logger.info("cluster node {} disconnected,address={}", peer, address);
+                }
+                for (Map.Entry<Long, PendingForward> entry : pendingForwards.entrySet()) {
+                    if (entry.getValue().link == channel) {
+                        complete(entry.getKey(), false);
+                    }
+                }
+                reconnect(address);
+            } else if (peer != null && inbound.remove(peer, channel)) {
+                claims.values().removeIf(claim -> claim.node.equals(peer));
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("cluster link error,node={},address={}", peer, address, cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * uuid的一次上线：在哪个节点上，epoch是多少
+     */
+    private static final class Claim {
+        private final String node;
+        private final long epoch;
+
+        private Claim(String node, long epoch) {
+            this.node = node;
+            this.epoch = epoch;
+        }
+
+        /**
+         * 同一个节点重新同步的同一次上线也算，重连后要重新处理
+         */
+        private boolean isNewerThan(Claim other) {
+            return epoch != other.epoch ? epoch > other.epoch : node.compareTo(other.node) >= 0;
+        }
+    }
+
+    private static final class PendingForward {
+        private final Channel link;
+        private final CompletableFuture<Boolean> future;
+        private volatile Timeout timeout;
+
+        private PendingForward(Channel link, CompletableFuture<Boolean> future) {
+            this.link = link;
+            this.future = future;
+        }
+    }
+}
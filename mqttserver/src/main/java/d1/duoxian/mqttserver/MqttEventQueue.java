@@ -0,0 +1,36 @@
+package d1.duoxian.mqttserver;
+
+import java.util.function.Consumer;
+
+/**
+ * 接收队列，多个io线程放入，一个处理线程取出
+ *
+ * @author liuyi
+ */
+public interface MqttEventQueue<E> {
+    /**
+     * 放入一个元素，队列满了返回false，可以在任意线程调用
+     */
+    boolean offer(E e);
+
+    /**
+     * 一直等到队列里有元素，然后最多取出limit个交给consumer，只能由处理线程调用
+     *
+     * @return 取出的数量
+     */
+    int drain(Consumer<E> consumer, int limit) throws InterruptedException;
+
+    /**
+     * 取出一个元素，没有则返回null，只能由处理线程调用
+     */
+    E poll();
+
+    int size();
+
+    static <E> MqttEventQueue<E> create(MqttQueueType type, int capacity) {
+        if (type == MqttQueueType.RING_BUFFER) {
+            return new MpscRingBuffer<>(capacity);
+        }
+        return new LinkedEventQueue<>(capacity);
+    }
+}
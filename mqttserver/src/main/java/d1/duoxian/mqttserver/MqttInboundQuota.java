@@ -0,0 +1,81 @@
+package d1.duoxian.mqttserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个通道的消息数和字节数令牌桶，桶的容量是一秒的配额。只在通道的io线程里访问，不加锁，检查时不分配内存
+ *
+ * @author liuyi
+ */
+public final class MqttInboundQuota {
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final double messageCapacity;
+    private final double byteCapacity;
+    private final double messagesPerNano;
+    private final double bytesPerNano;
+    private double messageTokens;
+    private double byteTokens;
+    private long lastNanos;
+
+    public MqttInboundQuota(MqttQuota quota) {
+        this.messageCapacity = quota.getMessagesPerSecond();
+        this.byteCapacity = quota.getBytesPerSecond();
+        this.messagesPerNano = messageCapacity / NANOS_PER_SECOND;
+        this.bytesPerNano = byteCapacity / NANOS_PER_SECOND;
+        this.messageTokens = messageCapacity;
+        this.byteTokens = byteCapacity;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * 配额足够时扣除并返回true，不够时不扣除。比一整秒配额还大的消息在桶满的时候也允许通过，否则永远发不出去
+     */
+    public boolean tryAcquire(int bytes) {
+        refill(System.nanoTime());
+        if ((messageCapacity > 0 && messageTokens < 1)
+                || (byteCapacity > 0 && byteTokens < Math.min(bytes, byteCapacity))) {
+            return false;
+        }
+        messageTokens -= 1;
+        byteTokens -= bytes;
+        return true;
+    }
+
+    /**
+     * 无论配额是否足够都扣除，返回还要等多少纳秒配额才能恢复到不欠的状态，没有超出返回0
+     */
+    public long acquire(int bytes) {
+        refill(System.nanoTime());
+        messageTokens -= 1;
+        byteTokens -= bytes;
+        return debtNanos();
+    }
+
+    /**
+     * 不扣除，只返回还要等多少纳秒配额才能恢复到不欠的状态
+     */
+    public long waitNanos() {
+        refill(System.nanoTime());
+        return debtNanos();
+    }
+
+    private long debtNanos() {
+        double wait = 0;
+        if (messageCapacity > 0 && messageTokens < 0) {
+            wait = -messageTokens / messagesPerNano;
+        }
+        if (byteCapacity > 0 && byteTokens < 0) {
+            wait = Math.max(wait, -byteTokens / bytesPerNano);
+        }
+        return (long) Math.ceil(wait);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastNanos;
+        if (elapsed > 0) {
+            messageTokens = Math.min(messageCapacity, messageTokens + elapsed * messagesPerNano);
+            byteTokens = Math.min(byteCapacity, byteTokens + elapsed * bytesPerNano);
+            lastNanos = now;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.collection.IntObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个通道以QoS1/2发送给客户端的消息：分配packet id，最多windowSize条等待确认，多出来的排队。
+ * 收到PUBACK（QoS1）或PUBCOMP（QoS2）后future的结果为true，通道断开、排队已满或重发次数用完为false。
+ * 重发由所有通道共用的HashedWheelTimer触发，每个通道只有在有未确认的消息时才占用一个定时任务。
+ * 除了offer，所有方法都在通道的io线程里执行
+ *
+ * @author liuyi
+ */
+public class MqttInflightWindow {
+    static final AttributeKey<MqttInflightWindow> KEY = AttributeKey.valueOf("mqttInflightWindow");
+    private static final Logger logger = LoggerFactory.getLogger(MqttInflightWindow.class);
+    private final Channel channel;
+    private final String channelId;
+    private final int windowSize;
+    private final int maxWaiting;
+    private final long retransmitNanos;
+    private final int maxRetransmit;
+    private final Timer timer;
+    /**
+     * 以packet id为key的未确认消息
+     */
+    private final IntObjectHashMap<Entry> inflight = new IntObjectHashMap<>();
+    /**
+     * 未确认消息的发送顺序，重发时按这个顺序，已确认的在遍历时顺便删除
+     */
+    private final ArrayDeque<Entry> order = new ArrayDeque<>();
+    private final ArrayDeque<Entry> waiting = new ArrayDeque<>();
+    private int nextPacketId = 1;
+    private Timeout timeout;
+
+    MqttInflightWindow(Channel channel, String channelId, MqttServerServiceOption option, Timer timer) {
+        this.channel = channel;
+        this.channelId = channelId;
+        this.windowSize = option.getInflightWindow();
+        this.maxWaiting = option.getOutboundQueueSize();
+        this.retransmitNanos = TimeUnit.SECONDS.toNanos(option.getRetransmitInterval());
+        this.maxRetransmit = option.getMaxRetransmit();
+        this.timer = timer;
+    }
+
+    static MqttInflightWindow of(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * 发送一条QoS1/2的消息，可以在任意线程调用，payload的所有权交给这里
+     */
+    public CompletableFuture<Boolean> offer(String topic, MqttQoS qos, ByteBuf payload) {
+        return offer(topic, qos, payload, false);
+    }
+
+    /**
+     * @param retain 是否设置PUBLISH报文的retain标志，发送保留消息时为true
+     */
+    public CompletableFuture<Boolean> offer(String topic, MqttQoS qos, ByteBuf payload, boolean retain) {
+        Entry entry = new Entry(topic, qos, payload, retain);
+        if (channel.eventLoop().inEventLoop()) {
+            offer(entry);
+        } else {
+            channel.eventLoop().execute(() -> offer(entry));
+        }
+        return entry.future;
+    }
+
+    private void offer(Entry entry) {
+        if (!channel.isActive()) {
+            finish(entry, false);
+        } else if (inflight.size() < windowSize) {
+            send(entry);
+        } else if (waiting.size() < maxWaiting) {
+            waiting.add(entry);
+        } else {
+            logger.info("mqtt inflight queue is full,pending={},drop message channelId={}", waiting.size(), channelId);
+            finish(entry, false);
+        }
+    }
+
+    private void send(Entry entry) {
+        do {
+            entry.packetId = nextPacketId;
+            nextPacketId = nextPacketId % 0xFFFF + 1;
+        } while (inflight.containsKey(entry.packetId));
+        inflight.put(entry.packetId, entry);
+        order.add(entry);
+        entry.sentNanos = System.nanoTime();
+        write(entry, false);
+        schedule();
+    }
+
+    private void write(Entry entry, boolean dup) {
+        if (entry.released) {
+            channel.writeAndFlush(new MqttMessage(new MqttFixedHeader(MqttMessageType.PUBREL, dup, MqttQoS.AT_LEAST_ONCE, false, 2),
+                    MqttMessageIdVariableHeader.from(entry.packetId)));
+        } else {
+            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, dup, entry.qos, entry.retain,
+                    MqttChannelInboundHandler.remainingLength(entry.topic, entry.qos, entry.payload.readableBytes()));
+            channel.writeAndFlush(new MqttPublishMessage(fixedHeader, new MqttPublishVariableHeader(entry.topic, entry.packetId),
+                    entry.payload.retainedDuplicate()));
+        }
+    }
+
+    /**
+     * 收到PUBACK
+     */
+    void ack(int packetId) {
+        Entry entry = inflight.get(packetId);
+        if (entry != null && entry.qos == MqttQoS.AT_LEAST_ONCE) {
+            acknowledged(entry);
+        }
+    }
+
+    /**
+     * 收到PUBREC，回复PUBREL，之后重发的也是PUBREL
+     */
+    void received(int packetId) {
+        Entry entry = inflight.get(packetId);
+        if (entry != null && entry.qos == MqttQoS.EXACTLY_ONCE && !entry.released) {
+            entry.released = true;
+            entry.retries = 0;
+            entry.sentNanos = System.nanoTime();
+            //已经不会再重发PUBLISH，正文可以释放了
+            ReferenceCountUtil.release(entry.payload);
+            entry.payload = null;
+        }
+        //即使不认识这个packet id，也按协议回复PUBREL，让客户端结束这个流程
+        channel.writeAndFlush(new MqttMessage(new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 2),
+                MqttMessageIdVariableHeader.from(packetId)));
+    }
+
+    /**
+     * 收到PUBCOMP
+     */
+    void complete(int packetId) {
+        Entry entry = inflight.get(packetId);
+        if (entry != null && entry.released) {
+            acknowledged(entry);
+        }
+    }
+
+    private void acknowledged(Entry entry) {
+        inflight.remove(entry.packetId);
+        finish(entry, true);
+        //队头已经确认的直接删掉，乱序确认的留到重发或者队列过长时再清理
+        while (!order.isEmpty() && order.peek().done) {
+            order.poll();
+        }
+        if (order.size() > windowSize * 2) {
+            order.removeIf(e -> e.done);
+        }
+        next();
+    }
+
+    private void next() {
+        while (inflight.size() < windowSize && !waiting.isEmpty()) {
+            send(waiting.poll());
+        }
+    }
+
+    private void schedule() {
+        if (timeout == null && retransmitNanos > 0 && !inflight.isEmpty()) {
+            timeout = timer.newTimeout(t -> channel.eventLoop().execute(this::retransmit), retransmitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 定时检查，超时没有确认的按发送顺序重发，重发次数用完的放弃
+     */
+    private void retransmit() {
+        timeout = null;
+        if (!channel.isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<Entry> expired = null;
+        for (Iterator<Entry> iterator = order.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.done) {
+                iterator.remove();
+            } else if (now - entry.sentNanos >= retransmitNanos) {
+                if (entry.retries >= maxRetransmit) {
+                    iterator.remove();
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(entry);
+                } else {
+                    entry.retries++;
+                    entry.sentNanos = now;
+                    write(entry, true);
+                }
+            }
+        }
+        if (expired != null) {
+            logger.info("mqtt message not acknowledged after {} retransmits,count={},channelId={}", maxRetransmit, expired.size(), channelId);
+            for (Entry entry : expired) {
+                inflight.remove(entry.packetId);
+                finish(entry, false);
+            }
+            next();
+        }
+        schedule();
+    }
+
+    /**
+     * 通道断开，所有未确认和排队的消息都算发送失败
+     */
+    void close() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        for (Entry entry : order) {
+            finish(entry, false);
+        }
+        order.clear();
+        inflight.clear();
+        Entry entry;
+        while ((entry = waiting.poll()) != null) {
+            finish(entry, false);
+        }
+    }
+
+    private void finish(Entry entry, boolean delivered) {
+        if (entry.done) {
+            return;
+        }
+        entry.done = true;
+        ReferenceCountUtil.release(entry.payload);
+        entry.payload = null;
+        entry.future.complete(delivered);
+    }
+
+    /**
+     * 等待确认和排队的消息数
+     */
+    public int size() {
+        return inflight.size() + waiting.size();
+    }
+
+    private static final class Entry {
+        private final String topic;
+        private final MqttQoS qos;
+        private final boolean retain;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private ByteBuf payload;
+        private int packetId;
+        private long sentNanos;
+        private int retries;
+        /**
+         * QoS2已经收到PUBREC，等待PUBCOMP
+         */
+        private boolean released;
+        private boolean done;
+
+        private Entry(String topic, MqttQoS qos, ByteBuf payload, boolean retain) {
+            this.topic = topic;
+            this.qos = qos;
+            this.retain = retain;
+            this.payload = payload;
+        }
+    }
+}
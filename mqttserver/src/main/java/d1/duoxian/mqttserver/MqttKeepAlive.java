@@ -0,0 +1,96 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.channel.Channel;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 通道的心跳检测，代替每个通道一个IdleStateHandler。所有通道共用服务端的HashedWheelTimer，
+ * 收到报文时只记录一个long型的时间，不动定时任务；定时任务到期时再看距离最后一次收到报文过了多久，
+ * 没有超时就按剩下的时间重新放进时间轮，所以每个通道每个超时周期最多只有一次定时操作。
+ * 超时时间是客户端CONNECT里keepAlive的1.5倍，收到CONNECT之前或者keepAlive为0时用checkOfflineInterval
+ *
+ * @author liuyi
+ */
+public class MqttKeepAlive implements TimerTask {
+    private static final Logger logger = LoggerFactory.getLogger(MqttKeepAlive.class);
+    private static final AtomicLongFieldUpdater<MqttKeepAlive> LAST_ACTIVITY =
+            AtomicLongFieldUpdater.newUpdater(MqttKeepAlive.class, "lastActivity");
+    private final Channel channel;
+    private final String channelId;
+    private final Timer timer;
+    /**
+     * 最后一次收到报文的System.nanoTime()，io线程写，时间轮线程读
+     */
+    private volatile long lastActivity;
+    private volatile long timeoutNanos;
+    /**
+     * 当前有效的定时任务，过期的任务到期后什么都不做
+     */
+    private volatile Timeout timeout;
+
+    public MqttKeepAlive(Channel channel, String channelId, Timer timer, long timeoutNanos) {
+        this.channel = channel;
+        this.channelId = channelId;
+        this.timer = timer;
+        this.timeoutNanos = timeoutNanos;
+        this.lastActivity = System.nanoTime();
+        this.timeout = timer.newTimeout(this, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 按客户端CONNECT里的keepAlive秒数修改超时时间，为0时不修改
+     */
+    public void keepAlive(int keepAliveSeconds) {
+        if (keepAliveSeconds <= 0) {
+            return;
+        }
+        long nanos = TimeUnit.MILLISECONDS.toNanos(keepAliveSeconds * 1500L);
+        long previousNanos = timeoutNanos;
+        timeoutNanos = nanos;
+        //比原来长的话，已经排好的任务到期时会按新的时间重新排；比原来短才需要马上重新排
+        if (nanos >= previousNanos) {
+            return;
+        }
+        Timeout previous = timeout;
+        long remaining = Math.max(0, nanos - (System.nanoTime() - lastActivity));
+        timeout = timer.newTimeout(this, remaining, TimeUnit.NANOSECONDS);
+        previous.cancel();
+    }
+
+    /**
+     * 收到报文时调用，只写一个long，不加内存屏障
+     */
+    public void touch(long now) {
+        LAST_ACTIVITY.lazySet(this, now);
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void cancel() {
+        timeout.cancel();
+    }
+
+    @Override
+    public void run(Timeout t) {
+        if (t != timeout || !channel.isActive()) {
+            return;
+        }
+        long limit = timeoutNanos;
+        long idle = System.nanoTime() - lastActivity;
+        if (idle < limit) {
+            timeout = timer.newTimeout(this, limit - idle, TimeUnit.NANOSECONDS);
+            return;
+        }
+        logger.info("MQTT keepalive timeout,channelId={},idle={}ms", channelId, TimeUnit.NANOSECONDS.toMillis(idle));
+        channel.close();
+    }
+}
@@ -0,0 +1,230 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把接收到的消息分发给多个处理线程（通道），同一个channelId的消息总是进入同一个通道，
+ * 这样同一个设备的消息保持顺序，不同设备的消息可以并行处理
+ *
+ * @author liuyi
+ */
+public class MqttMessageDispatcher {
+    /**
+     * 处理线程每次最多从队列里取出的消息数
+     */
+    private static final int DRAIN_BATCH = 64;
+    private final Logger logger = LoggerFactory.getLogger(MqttMessageDispatcher.class);
+    private final IMqttMessageListener listener;
+    private final Charset defaultCharset;
+    private final Lane[] lanes;
+    /**
+     * 所有通道里等待处理的消息总数
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * 每个处理通道的高水位和低水位，由总的水位按通道数平分。
+     * 通道的容量也是平分的，只看总数的话，一个很忙的通道满了而总数还在低水位以下，恢复后马上又放不进去，会反复暂停和恢复
+     */
+    private final int laneHighWaterMark;
+    private final int laneLowWaterMark;
+    private final MqttQueueType queueType;
+    private final MqttMetrics metrics;
+
+    public MqttMessageDispatcher(MqttServerServiceOption option) {
+        this(option, new MqttMetrics());
+    }
+
+    public MqttMessageDispatcher(MqttServerServiceOption option, MqttMetrics metrics) {
+        this.metrics = metrics;
+        this.listener = option.getMessageListener();
+        this.defaultCharset = option.getDefaultCharset();
+        int laneNumber = option.getDispatchThreadNumber();
+        //总的队列大小按通道数平分，保证占用的内存上限和以前一样
+        int laneCapacity = Math.max(1, option.getMaxMessageCount() / laneNumber);
+        //低水位一定低于通道容量，恢复后至少能放进去一条
+        this.laneHighWaterMark = Math.min(laneCapacity, Math.max(1, option.getQueueHighWaterMark() / laneNumber));
+        this.laneLowWaterMark = Math.min(laneHighWaterMark - 1, option.getQueueLowWaterMark() / laneNumber);
+        this.queueType = option.getQueueType();
+        this.lanes = new Lane[laneNumber];
+        for (int i = 0; i < laneNumber; i++) {
+            lanes[i] = new Lane(i, laneCapacity);
+        }
+    }
+
+    public void start() {
+        for (Lane lane : lanes) {
+            lane.start();
+        }
+    }
+
+    /**
+     * 把消息放入对应的通道，通道满了返回false
+     */
+    public boolean dispatch(WrapMqttMessage message) {
+        //先计数再放入，否则处理线程可能先减到负数
+        Lane lane = laneOf(message.getChannelId());
+        int depth = size.incrementAndGet();
+        lane.size.incrementAndGet();
+        if (lane.queue.offer(message)) {
+            metrics.queueDepth(depth);
+            return true;
+        }
+        lane.size.decrementAndGet();
+        size.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * 所有通道里等待处理的消息总数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * channelId对应的处理通道是否超过了高水位
+     */
+    public boolean isAboveHighWaterMark(String channelId) {
+        return laneOf(channelId).size.get() >= laneHighWaterMark;
+    }
+
+    /**
+     * 暂停读取通道，等channelId对应的处理通道降到低水位以下后，在通道的io线程里执行onResume，由onResume负责恢复读取
+     */
+    public void pause(String channelId, Channel channel, Runnable onResume) {
+        channel.config().setAutoRead(false);
+        Lane lane = laneOf(channelId);
+        lane.pausedChannels.put(channel, onResume);
+        //暂停的同时队列可能已经被处理完了，这种情况没有线程会再来恢复，这里检查一下
+        if (lane.size.get() <= laneLowWaterMark) {
+            lane.resumeAll();
+        }
+    }
+
+    /**
+     * 通道断开了，不再需要恢复
+     */
+    public void cancelPause(String channelId, Channel channel) {
+        laneOf(channelId).pausedChannels.remove(channel);
+    }
+
+    public int getLaneNumber() {
+        return lanes.length;
+    }
+
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+    }
+
+    private Lane laneOf(String channelId) {
+        if (lanes.length == 1 || channelId == null) {
+            return lanes[0];
+        }
+        return lanes[(channelId.hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    private void handle(WrapMqttMessage message) {
+        ByteBuf payload = message.getPayload();
+        long start = System.nanoTime();
+        metrics.getQueueLatency().record(start - message.getReceivedNanos());
+        try {
+            if (listener instanceof IMqttBinaryMessageListener) {
+                ((IMqttBinaryMessageListener) listener).onMessage(message.getClientIp(), message.getChannelId(), message.getTopic(),
+                        payload == null ? Unpooled.EMPTY_BUFFER : payload.asReadOnly(), message.getPublisher());
+            } else if (listener != null) {
+                //字符串在处理线程里才转换，不占用netty的io线程
+                String content = message.getContent();
+                if (content == null) {
+                    content = payload == null ? "receive message，payload is null，maybe big message length" : payload.toString(defaultCharset);
+                }
+                listener.onMessage(message.getClientIp(), message.getChannelId(), message.getTopic(), content, message.getPublisher());
+            }
+        } finally {
+            metrics.getHandleLatency().record(System.nanoTime() - start);
+            ReferenceCountUtil.release(payload);
+        }
+    }
+
+    public MqttQueueType getQueueType() {
+        return queueType;
+    }
+
+    private class Lane extends Thread {
+        private final MqttEventQueue<WrapMqttMessage> queue;
+        /**
+         * 本通道里等待处理的消息数
+         */
+        private final AtomicInteger size = new AtomicInteger();
+        /**
+         * 因为本通道超过高水位而暂停读取的连接，以及恢复时在连接io线程里执行的回调
+         */
+        private final Map<Channel, Runnable> pausedChannels = new ConcurrentHashMap<>();
+        /**
+         * 批量取出的消息先放在这里，只有本线程访问
+         */
+        private final WrapMqttMessage[] batch = new WrapMqttMessage[DRAIN_BATCH];
+        private int batchSize;
+
+        Lane(int index, int capacity) {
+            super("mqtt-dispatch-" + index);
+            this.queue = MqttEventQueue.create(queueType, capacity);
+        }
+
+        private void add(WrapMqttMessage message) {
+            batch[batchSize++] = message;
+        }
+
+        private void resumeAll() {
+            for (Map.Entry<Channel, Runnable> entry : pausedChannels.entrySet()) {
+                if (pausedChannels.remove(entry.getKey(), entry.getValue())) {
+                    entry.getKey().eventLoop().execute(entry.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            //从队列里去消息处理，可以提供mqttsever的并发处理能力
+            while (!isInterrupted()) {
+                try {
+                    int count = queue.drain(this::add, DRAIN_BATCH);
+                    MqttMessageDispatcher.this.size.addAndGet(-count);
+                    if (size.addAndGet(-count) <= laneLowWaterMark && !pausedChannels.isEmpty()) {
+                        resumeAll();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    logger.error("take message failed", e);
+                }
+                for (int i = 0; i < batchSize; i++) {
+                    WrapMqttMessage message = batch[i];
+                    batch[i] = null;
+                    try {
+                        handle(message);
+                    } catch (Exception e) {
+                        logger.error("handle message failed", e);
+                    }
+                }
+                batchSize = 0;
+            }
+            //退出后队列里剩下的消息不再处理，释放掉正文
+            WrapMqttMessage message;
+            while ((message = queue.poll()) != null) {
+                ReferenceCountUtil.release(message.getPayload());
+            }
+        }
+    }
+}
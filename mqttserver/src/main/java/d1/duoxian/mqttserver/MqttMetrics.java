@@ -0,0 +1,194 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.handler.codec.mqtt.MqttMessageType;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务端的运行指标：各种报文的收发数量、收发字节数、接收队列的长度和最大长度、在线会话数、认证失败数，
+ * 以及消息在队列里的等待时间和onMessage的执行时间。所有计数都是预先分配的原子变量，不加锁不分配内存，
+ * 可以在生产环境一直开着。通过MqttServerService.getMetrics()获取
+ *
+ * @author liuyi
+ */
+public class MqttMetrics {
+    private final LongAdder[] inbound = newCounters();
+    private final LongAdder[] outbound = newCounters();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder rejectedAuths = new LongAdder();
+    private final LongAdder quotaExceeded = new LongAdder();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    /**
+     * 从channelRead收到消息到开始调用onMessage
+     */
+    private final MqttLatencyHistogram queueLatency = new MqttLatencyHistogram();
+    /**
+     * onMessage的执行时间
+     */
+    private final MqttLatencyHistogram handleLatency = new MqttLatencyHistogram();
+    private volatile MqttMessageDispatcher dispatcher;
+    private volatile ClientSessionManager clientSessionManager;
+    private volatile MqttAdmissionControl admissionControl;
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[MqttMessageType.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    void bind(MqttMessageDispatcher dispatcher, ClientSessionManager clientSessionManager, MqttAdmissionControl admissionControl) {
+        this.dispatcher = dispatcher;
+        this.clientSessionManager = clientSessionManager;
+        this.admissionControl = admissionControl;
+    }
+
+    void inbound(MqttMessageType type) {
+        inbound[type.ordinal()].increment();
+    }
+
+    void outbound(MqttMessageType type) {
+        outbound[type.ordinal()].increment();
+    }
+
+    void bytesIn(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void bytesOut(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void rejectedAuth() {
+        rejectedAuths.increment();
+    }
+
+    void quotaExceeded() {
+        quotaExceeded.increment();
+    }
+
+    void queueDepth(int depth) {
+        int current;
+        while (depth > (current = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(current, depth)) {
+            //并发更新最大值，失败了再比较一次
+        }
+    }
+
+    /**
+     * 收到的某种报文的数量
+     */
+    public long getInboundCount(MqttMessageType type) {
+        return inbound[type.ordinal()].sum();
+    }
+
+    /**
+     * 发出的某种报文的数量
+     */
+    public long getOutboundCount(MqttMessageType type) {
+        return outbound[type.ordinal()].sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * 用户名密码验证失败的次数
+     */
+    public long getRejectedAuthCount() {
+        return rejectedAuths.sum();
+    }
+
+    /**
+     * 客户端超过配额的次数：THROTTLE时是暂停读取的次数，DROP时是丢弃的消息数，DISCONNECT时是断开的次数
+     */
+    public long getQuotaExceededCount() {
+        return quotaExceeded.sum();
+    }
+
+    /**
+     * 接收队列里等待处理的消息数
+     */
+    public int getQueueDepth() {
+        MqttMessageDispatcher dispatcher = this.dispatcher;
+        return dispatcher == null ? 0 : dispatcher.size();
+    }
+
+    /**
+     * 接收队列出现过的最大长度
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * 在线的会话数
+     */
+    public int getSessionCount() {
+        ClientSessionManager clientSessionManager = this.clientSessionManager;
+        return clientSessionManager == null ? 0 : clientSessionManager.getClientsMap().size();
+    }
+
+    /**
+     * 准入控制接受的新连接数
+     */
+    public long getAcceptedConnectionCount() {
+        MqttAdmissionControl admissionControl = this.admissionControl;
+        return admissionControl == null ? 0 : admissionControl.getAcceptedCount();
+    }
+
+    /**
+     * 准入控制拒绝的新连接数，按原因分开的计数见MqttServerService.getAdmissionControl()
+     */
+    public long getRejectedConnectionCount() {
+        MqttAdmissionControl admissionControl = this.admissionControl;
+        return admissionControl == null ? 0 : admissionControl.getRejectedCount();
+    }
+
+    /**
+     * 当前等待CONNACK的连接数
+     */
+    public int getPendingConnectCount() {
+        MqttAdmissionControl admissionControl = this.admissionControl;
+        return admissionControl == null ? 0 : admissionControl.getPendingCount();
+    }
+
+    public MqttLatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    public MqttLatencyHistogram getHandleLatency() {
+        return handleLatency;
+    }
+
+    /**
+     * 清空累计的最大队列长度和延迟统计，计数器不清空
+     */
+    public void reset() {
+        maxQueueDepth.set(0);
+        queueLatency.reset();
+        handleLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "MqttMetrics{" +
+                "in=" + getInboundCount(MqttMessageType.PUBLISH) + " publish/" + bytesIn.sum() + " bytes" +
+                ", out=" + getOutboundCount(MqttMessageType.PUBLISH) + " publish/" + bytesOut.sum() + " bytes" +
+                ", sessions=" + getSessionCount() +
+                ", connects=" + getAcceptedConnectionCount() + "/" + getRejectedConnectionCount() + " rejected/" + getPendingConnectCount() + " pending" +
+                ", rejectedAuths=" + rejectedAuths.sum() +
+                ", quotaExceeded=" + quotaExceeded.sum() +
+                ", queueDepth=" + getQueueDepth() + "/" + maxQueueDepth.get() +
+                ", queueLatency=[" + queueLatency + "]" +
+                ", handleLatency=[" + handleLatency + "]" +
+                '}';
+    }
+}
@@ -0,0 +1,65 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+
+/**
+ * 统计收发的字节数和报文数量，所有通道共用。
+ * 在pipeline里放两个：放在decoder前面的统计字节数；放在decoder后面的统计报文数量，
+ * 这个位置写出的ByteBuf是已经编码好的整个报文（例如广播），按第一个字节的报文类型统计
+ *
+ * @author liuyi
+ */
+@ChannelHandler.Sharable
+public class MqttMetricsHandler extends ChannelDuplexHandler {
+    private final MqttMetrics metrics;
+    /**
+     * 是否放在decoder后面统计报文数量
+     */
+    private final boolean messages;
+
+    /**
+     * 同一个实例放在编解码前后两个位置，已经编码好的报文会被当作字节数统计两次，用两个参数的构造方法
+     */
+    public MqttMetricsHandler(MqttMetrics metrics) {
+        this(metrics, false);
+    }
+
+    /**
+     * @param messages 为true时放在decoder后面统计报文数量，为false时放在decoder前面统计字节数
+     */
+    public MqttMetricsHandler(MqttMetrics metrics, boolean messages) {
+        this.metrics = metrics;
+        this.messages = messages;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            metrics.bytesIn(((ByteBuf) msg).readableBytes());
+        } else if (msg instanceof MqttMessage && ((MqttMessage) msg).fixedHeader() != null) {
+            metrics.inbound(((MqttMessage) msg).fixedHeader().messageType());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ByteBuf buf = (ByteBuf) msg;
+            if (!messages) {
+                metrics.bytesOut(buf.readableBytes());
+            } else if (buf.isReadable()) {
+                metrics.outbound(MqttMessageType.valueOf(buf.getUnsignedByte(buf.readerIndex()) >> 4));
+            }
+        } else if (msg instanceof MqttMessage && ((MqttMessage) msg).fixedHeader() != null) {
+            metrics.outbound(((MqttMessage) msg).fixedHeader().messageType());
+        }
+        ctx.write(msg, promise);
+    }
+}
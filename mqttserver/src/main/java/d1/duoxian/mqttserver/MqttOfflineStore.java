@@ -0,0 +1,713 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 持久会话（clean session为false）的离线消息存储。消息追加写入分段的内存映射文件，每段的大小在创建时确定，写满后换下一段；
+ * 内存里按uuid保存每条消息在文件里的位置。删除也是追加一条删除记录，后台线程定期把有效记录很少的旧段里的有效记录
+ * 复制到当前段，然后删除旧段。启动时按顺序扫描所有段恢复索引，进程重启后离线消息还在。
+ * 文件每秒刷一次盘，操作系统崩溃时可能丢失最后一秒的数据。
+ * 读写索引的方法都在io线程里调用，刷盘在锁外执行，压缩每次只复制一小批记录就释放锁，不会长时间阻塞io线程
+ *
+ * @author liuyi
+ */
+public class MqttOfflineStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MqttOfflineStore.class);
+    private static final String SUFFIX = ".log";
+    /**
+     * 记录头：正文长度和正文的CRC32
+     */
+    private static final int HEADER = 8;
+    private static final byte APPEND = 1;
+    private static final byte DELETE = 2;
+    /**
+     * 删除某个uuid的seq及以前的所有消息
+     */
+    private static final byte DISCARD = 3;
+    /**
+     * 标记uuid是否为持久会话
+     */
+    private static final byte SESSION = 4;
+    /**
+     * 压缩时每次持有锁最多检查的记录数
+     */
+    private static final int COMPACT_BATCH = 256;
+    private final File dir;
+    private final int segmentSize;
+    private final int maxMessages;
+    /**
+     * 以段的序号排序，最后一段是正在写的段
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, UuidIndex> index = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final ScheduledExecutorService scheduler;
+    private Segment active;
+    private long nextSeq = 1;
+    private long messageCount;
+    private boolean closed;
+
+    /**
+     * @param dir         存放文件的目录，不存在会自动创建
+     * @param segmentSize 每段文件的字节数，单条消息不能超过这个大小
+     * @param maxMessages 每个uuid最多保存的消息数，超过后删除最早的
+     */
+    public MqttOfflineStore(String dir, int segmentSize, int maxMessages) throws IOException {
+        this.dir = new File(dir);
+        this.segmentSize = segmentSize;
+        this.maxMessages = maxMessages;
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("can not create offline store dir " + dir);
+        }
+        load();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-offline-store", true));
+        this.scheduler.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 保存一条离线消息
+     *
+     * @return 消息太大或者已经关闭返回false
+     */
+    public synchronized boolean append(String uuid, String topic, MqttQoS qos, byte[] payload) {
+        if (closed) {
+            return false;
+        }
+        Location location = write(APPEND, nextSeq, uuid, topic, qos, payload, false);
+        if (location == null) {
+            logger.error("offline message is too large,uuid={},topic={},bytes={}", uuid, topic, payload.length);
+            return false;
+        }
+        nextSeq++;
+        UuidIndex uuidIndex = index.computeIfAbsent(uuid, k -> new UuidIndex());
+        uuidIndex.messages.put(location.seq, location);
+        messageCount++;
+        //超过上限，删除最早的
+        for (Iterator<Location> iterator = uuidIndex.messages.values().iterator(); uuidIndex.messages.size() > maxMessages; ) {
+            Location oldest = iterator.next();
+            iterator.remove();
+            write(DELETE, oldest.seq, uuid, null, null, null, false);
+            dead(oldest);
+        }
+        return true;
+    }
+
+    /**
+     * uuid还没有确认的离线消息，按保存的顺序。消息被确认后要调用remove，否则下次上线还会再补发
+     */
+    public synchronized List<StoredMessage> pending(String uuid) {
+        UuidIndex uuidIndex = index.get(uuid);
+        if (uuidIndex == null || uuidIndex.messages.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<StoredMessage> result = new ArrayList<>(uuidIndex.messages.size());
+        for (Location location : uuidIndex.messages.values()) {
+            result.add(read(location));
+        }
+        return result;
+    }
+
+    /**
+     * 客户端已经确认，删除这条消息
+     */
+    public synchronized void remove(String uuid, long seq) {
+        UuidIndex uuidIndex = index.get(uuid);
+        if (closed || uuidIndex == null) {
+            return;
+        }
+        Location location = uuidIndex.messages.remove(seq);
+        if (location != null) {
+            write(DELETE, seq, uuid, null, null, null, false);
+            dead(location);
+        }
+        if (uuidIndex.isEmpty()) {
+            index.remove(uuid);
+        }
+    }
+
+    /**
+     * 设置uuid是否为持久会话，设为false时同时删除它的所有离线消息
+     */
+    public synchronized void setPersistent(String uuid, boolean persistent) {
+        if (closed) {
+            return;
+        }
+        UuidIndex uuidIndex = index.get(uuid);
+        if (persistent) {
+            if (uuidIndex == null) {
+                uuidIndex = new UuidIndex();
+                index.put(uuid, uuidIndex);
+            }
+            if (uuidIndex.session == null) {
+                uuidIndex.session = write(SESSION, nextSeq++, uuid, null, null, null, true);
+            }
+            return;
+        }
+        if (uuidIndex == null) {
+            return;
+        }
+        if (!uuidIndex.messages.isEmpty()) {
+            //uuid的所有消息的seq都小于nextSeq
+            write(DISCARD, nextSeq - 1, uuid, null, null, null, false);
+            for (Location location : uuidIndex.messages.values()) {
+                dead(location);
+            }
+            uuidIndex.messages.clear();
+        }
+        if (uuidIndex.session != null) {
+            write(SESSION, nextSeq++, uuid, null, null, null, false);
+            uuidIndex.session.segment.live--;
+            uuidIndex.session = null;
+        }
+        index.remove(uuid);
+    }
+
+    public synchronized boolean isPersistent(String uuid) {
+        UuidIndex uuidIndex = index.get(uuid);
+        return uuidIndex != null && uuidIndex.session != null;
+    }
+
+    /**
+     * 所有持久会话的uuid
+     */
+    public synchronized List<String> getPersistentUuids() {
+        List<String> uuids = new ArrayList<>();
+        for (Map.Entry<String, UuidIndex> entry : index.entrySet()) {
+            if (entry.getValue().session != null) {
+                uuids.add(entry.getKey());
+            }
+        }
+        return uuids;
+    }
+
+    /**
+     * 所有uuid的离线消息总数
+     */
+    public synchronized long size() {
+        return messageCount;
+    }
+
+    public synchronized int size(String uuid) {
+        UuidIndex uuidIndex = index.get(uuid);
+        return uuidIndex == null ? 0 : uuidIndex.messages.size();
+    }
+
+    /**
+     * 段文件的个数
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.force();
+                segment.free();
+            }
+            segments.clear();
+            index.clear();
+        }
+    }
+
+    private void dead(Location location) {
+        location.segment.live--;
+        messageCount--;
+    }
+
+    /**
+     * 追加一条记录，当前段放不下时换新的一段
+     *
+     * @return 记录的位置，记录比一整段还大时返回null
+     */
+    private Location write(byte type, long seq, String uuid, String topic, MqttQoS qos, byte[] payload, boolean flag) {
+        byte[] uuidBytes = uuid.getBytes(StandardCharsets.UTF_8);
+        byte[] topicBytes = topic == null ? null : topic.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 8 + 2 + uuidBytes.length;
+        if (type == APPEND) {
+            bodyLength += 1 + 2 + topicBytes.length + 4 + payload.length;
+        } else if (type == SESSION) {
+            bodyLength += 1;
+        }
+        int total = HEADER + bodyLength;
+        if (total > segmentSize) {
+            return null;
+        }
+        //重启后的最后一段是按原来的段大小创建的，可能和现在配置的不一样，按段自身的大小判断
+        if (active.position + total > active.buffer.capacity()) {
+            roll(segmentSize);
+        }
+        int offset = active.position;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset + HEADER);
+        buffer.put(type).putLong(seq).putShort((short) uuidBytes.length).put(uuidBytes);
+        if (type == APPEND) {
+            buffer.put((byte) qos.value()).putShort((short) topicBytes.length).put(topicBytes).putInt(payload.length).put(payload);
+        } else if (type == SESSION) {
+            buffer.put((byte) (flag ? 1 : 0));
+        }
+        seal(buffer, offset, bodyLength);
+        active.position += total;
+        active.records++;
+        active.dirty = true;
+        Location location = new Location(seq, active, offset);
+        if (type == APPEND || (type == SESSION && flag)) {
+            active.live++;
+        }
+        return location;
+    }
+
+    /**
+     * 写入记录头，最后写长度，长度为0的位置就是段里数据的结尾
+     */
+    private void seal(ByteBuffer buffer, int offset, int bodyLength) {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(offset + HEADER + bodyLength).position(offset + HEADER);
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, bodyLength);
+    }
+
+    private StoredMessage read(Location location) {
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset + HEADER);
+        buffer.get();
+        long seq = buffer.getLong();
+        skip(buffer, buffer.getShort() & 0xFFFF);
+        MqttQoS qos = MqttQoS.valueOf(buffer.get());
+        byte[] topic = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(topic);
+        byte[] payload = new byte[buffer.getInt()];
+        buffer.get(payload);
+        return new StoredMessage(seq, new String(topic, StandardCharsets.UTF_8), qos, payload);
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * 换下一段，写满的段由后台线程刷盘
+     *
+     * @param size 新段的字节数，压缩时复制的记录来自调小段大小之前的段，可能比现在的段大小还大
+     */
+    private void roll(int size) {
+        try {
+            long id = active == null ? 1 : active.id + 1;
+            active = Segment.open(new File(dir, String.format("%020d%s", id, SUFFIX)), id, size);
+            segments.put(id, active);
+        } catch (IOException e) {
+            throw new IllegalStateException("can not create offline store segment in " + dir, e);
+        }
+    }
+
+    /**
+     * 按顺序扫描所有段，恢复索引
+     */
+    private void load() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    segments.put(id, Segment.open(file, id, (int) file.length()));
+                } catch (NumberFormatException e) {
+                    logger.warn("ignore unknown file in offline store,{}", file);
+                }
+            }
+        }
+        for (Segment segment : segments.values()) {
+            scan(segment);
+        }
+        for (UuidIndex uuidIndex : index.values()) {
+            //压缩时复制过来的记录在文件里排在后面，按seq重新排序
+            List<Location> sorted = new ArrayList<>(uuidIndex.messages.values());
+            sorted.sort(Comparator.comparingLong(l -> l.seq));
+            uuidIndex.messages.clear();
+            for (Location location : sorted) {
+                uuidIndex.messages.put(location.seq, location);
+            }
+            messageCount += sorted.size();
+        }
+        index.values().removeIf(UuidIndex::isEmpty);
+        if (segments.isEmpty()) {
+            roll(segmentSize);
+        } else {
+            active = segments.lastEntry().getValue();
+            //最后一段可能写了一半，把结尾之后的内容清零
+            ByteBuffer buffer = active.buffer.duplicate();
+            for (int i = active.position; i < buffer.limit(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        logger.info("offline store loaded,dir={},segments={},messages={},sessions={}", dir, segments.size(), messageCount, index.size());
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + HEADER <= buffer.limit()) {
+            int bodyLength = buffer.getInt(position);
+            if (bodyLength <= 0 || position + HEADER + bodyLength > buffer.limit()) {
+                break;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.limit(position + HEADER + bodyLength).position(position + HEADER);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                logger.warn("offline store record is broken,segment={},offset={}", segment.file, position);
+                break;
+            }
+            buffer.position(position + HEADER);
+            byte type = buffer.get();
+            long seq = buffer.getLong();
+            byte[] uuidBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(uuidBytes);
+            String uuid = new String(uuidBytes, StandardCharsets.UTF_8);
+            UuidIndex uuidIndex = index.computeIfAbsent(uuid, k -> new UuidIndex());
+            Location location = new Location(seq, segment, position);
+            segment.records++;
+            nextSeq = Math.max(nextSeq, seq + 1);
+            switch (type) {
+                case APPEND:
+                    //压缩到一半时进程退出，同一条消息可能有两份，保留后面的
+                    removeMessage(uuidIndex, seq);
+                    uuidIndex.messages.put(seq, location);
+                    segment.live++;
+                    break;
+                case DELETE:
+                    removeMessage(uuidIndex, seq);
+                    break;
+                case DISCARD:
+                    discardMessages(uuidIndex, seq);
+                    break;
+                case SESSION:
+                    if (uuidIndex.session != null) {
+                        uuidIndex.session.segment.live--;
+                        uuidIndex.session = null;
+                    }
+                    if (buffer.get() == 1) {
+                        uuidIndex.session = location;
+                        segment.live++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            position += HEADER + bodyLength;
+        }
+        segment.position = position;
+    }
+
+    private static void removeMessage(UuidIndex uuidIndex, long seq) {
+        Location location = uuidIndex.messages.remove(seq);
+        if (location != null) {
+            location.segment.live--;
+        }
+    }
+
+    /**
+     * 删除seq及以前的所有消息
+     */
+    private static void discardMessages(UuidIndex uuidIndex, long seq) {
+        for (Iterator<Location> iterator = uuidIndex.messages.values().iterator(); iterator.hasNext(); ) {
+            Location location = iterator.next();
+            if (location.seq <= seq) {
+                iterator.remove();
+                location.segment.live--;
+            }
+        }
+    }
+
+    /**
+     * 后台定时执行：刷盘，压缩旧段
+     */
+    void maintain() {
+        try {
+            flush();
+            compact();
+        } catch (Exception e) {
+            logger.error("offline store maintain failed", e);
+        }
+    }
+
+    /**
+     * 在锁里找出有新数据的段，在锁外刷盘。刷盘的同时io线程可以继续写入，新写入的数据下次再刷
+     */
+    private void flush() {
+        List<Segment> dirty = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        }
+        for (Segment segment : dirty) {
+            segment.force();
+        }
+    }
+
+    /**
+     * 只从最早的段开始处理：删除记录只会出现在被删除的消息之后，先删掉后面的段会让前面段里已经删除的消息在重启后复活。
+     * 最早的段没有有效记录就直接删除；有效记录不到一半，或者后面有已经完全无效的段，就把有效记录复制到当前段再删除。
+     * 每次持有锁只复制COMPACT_BATCH条记录，复制过去的记录刷盘以后才删除旧段
+     */
+    private void compact() {
+        while (true) {
+            Segment oldest;
+            synchronized (this) {
+                if (closed || segments.size() <= 1) {
+                    return;
+                }
+                oldest = segments.firstEntry().getValue();
+                if (oldest == active) {
+                    return;
+                }
+                if (oldest.compacted == 0 && oldest.live > 0 && oldest.live * 2 > oldest.records && !hasEmptySegmentAfter(oldest)) {
+                    return;
+                }
+                if (relocate(oldest)) {
+                    continue;
+                }
+                segments.remove(oldest.id);
+            }
+            flush();
+            oldest.free();
+            if (!oldest.file.delete()) {
+                logger.warn("can not delete offline store segment {}", oldest.file);
+            }
+        }
+    }
+
+    private boolean hasEmptySegmentAfter(Segment oldest) {
+        for (Segment segment : segments.tailMap(oldest.id, false).values()) {
+            if (segment != active && segment.live == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从上次停下的位置继续按顺序检查段里的记录，把有效记录原样复制到当前段，并更新索引里的位置
+     *
+     * @return 检查了COMPACT_BATCH条还没有处理完时返回true
+     */
+    private boolean relocate(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        for (int i = 0; segment.live > 0 && segment.compacted < segment.position; i++) {
+            if (i == COMPACT_BATCH) {
+                return true;
+            }
+            int offset = segment.compacted;
+            Location location = liveLocation(segment, buffer, offset);
+            if (location != null) {
+                copy(location);
+            }
+            segment.compacted = offset + HEADER + buffer.getInt(offset);
+        }
+        return false;
+    }
+
+    /**
+     * offset处的记录如果仍然有效，返回索引里它的位置，否则返回null
+     */
+    private Location liveLocation(Segment segment, ByteBuffer buffer, int offset) {
+        buffer.position(offset + HEADER);
+        byte type = buffer.get();
+        long seq = buffer.getLong();
+        byte[] uuidBytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(uuidBytes);
+        UuidIndex uuidIndex = index.get(new String(uuidBytes, StandardCharsets.UTF_8));
+        if (uuidIndex == null) {
+            return null;
+        }
+        Location location = null;
+        if (type == APPEND) {
+            location = uuidIndex.messages.get(seq);
+        } else if (type == SESSION) {
+            location = uuidIndex.session;
+        }
+        if (location == null || location.segment != segment || location.offset != offset) {
+            return null;
+        }
+        return location;
+    }
+
+    private void copy(Location location) {
+        ByteBuffer source = location.segment.buffer.duplicate();
+        int total = HEADER + source.getInt(location.offset);
+        if (active.position + total > active.buffer.capacity()) {
+            roll(Math.max(segmentSize, total));
+        }
+        source.limit(location.offset + total).position(location.offset);
+        ByteBuffer target = active.buffer.duplicate();
+        target.position(active.position + 4);
+        //先复制长度以外的部分，最后写长度
+        source.position(location.offset + 4);
+        target.put(source);
+        target.putInt(active.position, total - HEADER);
+        location.segment.live--;
+        location.segment = active;
+        location.offset = active.position;
+        active.position += total;
+        active.records++;
+        active.live++;
+        active.dirty = true;
+    }
+
+    /**
+     * 一条离线消息
+     */
+    public static class StoredMessage {
+        private final long seq;
+        private final String topic;
+        private final MqttQoS qos;
+        private final byte[] payload;
+
+        StoredMessage(long seq, String topic, MqttQoS qos, byte[] payload) {
+            this.seq = seq;
+            this.topic = topic;
+            this.qos = qos;
+            this.payload = payload;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public MqttQoS getQos() {
+            return qos;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static final class Location {
+        private final long seq;
+        private Segment segment;
+        private int offset;
+
+        private Location(long seq, Segment segment, int offset) {
+            this.seq = seq;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static final class UuidIndex {
+        /**
+         * 按seq查找，遍历时按保存的顺序
+         */
+        private final LinkedHashMap<Long, Location> messages = new LinkedHashMap<>();
+        /**
+         * 持久会话标记记录的位置，不是持久会话为null
+         */
+        private Location session;
+
+        private boolean isEmpty() {
+            return messages.isEmpty() && session == null;
+        }
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        /**
+         * 下一条记录写入的位置
+         */
+        private int position;
+        /**
+         * 段里的记录总数和其中仍然有效的记录数
+         */
+        private int records;
+        private int live;
+        /**
+         * 压缩时已经检查到的位置
+         */
+        private int compacted;
+        private boolean dirty;
+        private boolean freed;
+
+        private Segment(long id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private static Segment open(File file, long id, int size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new Segment(id, file, channel, buffer);
+            }
+        }
+
+        /**
+         * 后台线程在store的锁外刷盘，和释放互斥，避免访问已经释放的内存
+         */
+        private synchronized void force() {
+            if (!freed) {
+                buffer.force();
+            }
+        }
+
+        private synchronized void free() {
+            if (!freed) {
+                freed = true;
+                PlatformDependent.freeDirectBuffer(buffer);
+            }
+        }
+    }
+}
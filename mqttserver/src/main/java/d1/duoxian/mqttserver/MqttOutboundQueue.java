@@ -0,0 +1,167 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * 每个通道发送给客户端的PUBLISH消息队列。通道可写（未超过写缓冲的高水位）时直接写入，
+ * 不可写时先放入有限长度的队列，等通道重新可写后再发送，队列满了按MqttSlowConsumerPolicy处理。
+ * 队列里是MqttPublishMessage，或者广播时已经编码好的整个报文（ByteBuf）
+ * 除了计数器，所有方法都在通道的io线程里执行
+ *
+ * @author liuyi
+ */
+public class MqttOutboundQueue {
+    static final AttributeKey<MqttOutboundQueue> KEY = AttributeKey.valueOf("mqttOutboundQueue");
+    private static final Logger logger = LoggerFactory.getLogger(MqttOutboundQueue.class);
+    private final Channel channel;
+    private final String channelId;
+    private final int maxSize;
+    private final MqttSlowConsumerPolicy policy;
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+    private volatile long queuedBytes;
+    private volatile long droppedCount;
+
+    MqttOutboundQueue(Channel channel, String channelId, int maxSize, MqttSlowConsumerPolicy policy) {
+        this.channel = channel;
+        this.channelId = channelId;
+        this.maxSize = maxSize;
+        this.policy = policy;
+    }
+
+    static MqttOutboundQueue of(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * 发送消息，可以在任意线程调用
+     */
+    public void offer(MqttPublishMessage message) {
+        if (channel.eventLoop().inEventLoop()) {
+            offer(message, true);
+        } else {
+            channel.eventLoop().execute(() -> offer(message, true));
+        }
+    }
+
+    /**
+     * 发送消息，只能在io线程调用
+     *
+     * @param flush 是否马上flush，批量发送的时候最后再调用flush()
+     */
+    void offer(MqttPublishMessage message, boolean flush) {
+        enqueue(message, flush);
+    }
+
+    /**
+     * 发送已经编码好的PUBLISH报文，不经过MqttEncoder，只能在io线程调用
+     */
+    void offer(ByteBuf packet, boolean flush) {
+        enqueue(packet, flush);
+    }
+
+    private void enqueue(Object message, boolean flush) {
+        if (!channel.isActive()) {
+            ReferenceCountUtil.release(message);
+            return;
+        }
+        //队列里还有消息的时候也要排队，保证顺序
+        if (queue.isEmpty() && channel.isWritable()) {
+            if (flush) {
+                channel.writeAndFlush(message);
+            } else {
+                channel.write(message);
+            }
+            return;
+        }
+        if (queue.size() >= maxSize) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    release(queue.poll());
+                    droppedCount++;
+                    break;
+                case DROP_NEWEST:
+                    ReferenceCountUtil.release(message);
+                    droppedCount++;
+                    return;
+                case DISCONNECT:
+                default:
+                    logger.info("mqtt client is too slow,pending={},disconnect channelId={}", queue.size(), channelId);
+                    ReferenceCountUtil.release(message);
+                    droppedCount++;
+                    clear();
+                    channel.close();
+                    return;
+            }
+        }
+        queue.offer(message);
+        queuedBytes += bytes(message);
+    }
+
+    void flush() {
+        channel.flush();
+    }
+
+    /**
+     * 通道重新可写后把排队的消息发出去，直到再次不可写
+     */
+    void drain() {
+        boolean written = false;
+        while (channel.isWritable()) {
+            Object message = queue.poll();
+            if (message == null) {
+                break;
+            }
+            queuedBytes -= bytes(message);
+            channel.write(message);
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    /**
+     * 通道断开时释放排队的消息
+     */
+    void clear() {
+        Object message;
+        while ((message = queue.poll()) != null) {
+            release(message);
+        }
+    }
+
+    private void release(Object message) {
+        if (message != null) {
+            queuedBytes -= bytes(message);
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    private static int bytes(Object message) {
+        return message instanceof ByteBuf ? ((ByteBuf) message).readableBytes() : ((MqttPublishMessage) message).payload().readableBytes();
+    }
+
+    /**
+     * 还没有发送出去的字节数，包括排队的消息和netty写缓冲里的数据
+     */
+    public long getPendingBytes() {
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return queuedBytes + (outboundBuffer == null ? 0 : outboundBuffer.totalPendingWriteBytes());
+    }
+
+    /**
+     * 因为客户端太慢而丢弃的消息数量
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,27 @@
+package d1.duoxian.mqttserver;
+
+/**
+ * 接收队列满了以后的处理策略
+ *
+ * @author liuyi
+ */
+public enum MqttOverflowStrategy {
+    /**
+     * 先回复PUBACK再放入队列，放不进去的消息丢弃并记录日志，这是以前的处理方式
+     */
+    DROP,
+    /**
+     * 队列超过高水位后暂停读取这个通道（autoRead=false），利用TCP让客户端慢下来，
+     * 队列降到低水位以下再恢复读取，已经读到的消息会暂存起来，恢复后再放入队列，不会丢失。
+     * 暂停的时间超过checkOfflineInterval会被当成离线
+     */
+    PAUSE_READ,
+    /**
+     * 放入队列成功后才回复PUBACK/PUBREC，放不进去的消息不回复，由QoS1/QoS2的客户端重发
+     */
+    WITHHOLD_ACK,
+    /**
+     * 放不进去的消息不回复，并断开这个客户端
+     */
+    REJECT
+}
@@ -0,0 +1,17 @@
+package d1.duoxian.mqttserver;
+
+/**
+ * 接收队列的实现方式
+ *
+ * @author liuyi
+ */
+public enum MqttQueueType {
+    /**
+     * LinkedBlockingQueue，每条消息分配一个节点，放入和取出都要加锁
+     */
+    LINKED,
+    /**
+     * 预先分配好的环形数组，多个io线程用CAS放入，处理线程不加锁批量取出，适合io线程很多、消息量很大的情况
+     */
+    RING_BUFFER
+}
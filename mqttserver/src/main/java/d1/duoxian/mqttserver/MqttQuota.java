@@ -0,0 +1,37 @@
+package d1.duoxian.mqttserver;
+
+/**
+ * 客户端每秒最多可以发送的消息数和字节数（PUBLISH的正文），0表示不限制
+ *
+ * @author liuyi
+ */
+public class MqttQuota {
+    /**
+     * 不限制
+     */
+    public static final MqttQuota UNLIMITED = new MqttQuota(0, 0);
+    private final int messagesPerSecond;
+    private final long bytesPerSecond;
+
+    public MqttQuota(int messagesPerSecond, long bytesPerSecond) {
+        this.messagesPerSecond = Math.max(messagesPerSecond, 0);
+        this.bytesPerSecond = Math.max(bytesPerSecond, 0);
+    }
+
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return messagesPerSecond == 0 && bytesPerSecond == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "MqttQuota{" + messagesPerSecond + " msg/s, " + bytesPerSecond + " bytes/s}";
+    }
+}
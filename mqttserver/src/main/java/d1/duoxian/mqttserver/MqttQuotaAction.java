@@ -0,0 +1,21 @@
+package d1.duoxian.mqttserver;
+
+/**
+ * 客户端发送的消息超过配额后的处理方式
+ *
+ * @author liuyi
+ */
+public enum MqttQuotaAction {
+    /**
+     * 已经读到的消息照常处理，然后暂停读取这个通道，等配额恢复后再读，利用TCP让客户端慢下来
+     */
+    THROTTLE,
+    /**
+     * 照常回复PUBACK/PUBREC，但是丢弃消息，不交给messageListener也不转发
+     */
+    DROP,
+    /**
+     * 丢弃消息并断开这个客户端
+     */
+    DISCONNECT
+}
@@ -0,0 +1,384 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 保留消息（retain为true的PUBLISH），每个topic只保留最后一条，客户端订阅时把匹配filter的保留消息发给它。
+ * 和订阅树一样按topic的层级组织成一棵树，用filter查询时只走匹配的分支，不用遍历所有topic。
+ * 查询不加锁，修改加锁。可以限制总条数和总字节数，超过后删除最早更新的；可以定时把所有保留消息写到快照文件，启动时读回来
+ *
+ * @author liuyi
+ */
+public class MqttRetainedStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MqttRetainedStore.class);
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+    private static final int SNAPSHOT_MAGIC = 0x4D525331;
+    private final Node root = new Node();
+    /**
+     * 所有保留消息，按更新顺序排列，淘汰时从最早的开始，由this的锁保护
+     */
+    private final LinkedHashMap<String, RetainedMessage> messages = new LinkedHashMap<>();
+    private final int maxMessages;
+    private final long maxBytes;
+    private final File snapshotFile;
+    private final ScheduledExecutorService scheduler;
+    private volatile long bytes;
+    private volatile int size;
+    /**
+     * 上次快照之后是否有修改，没有修改就不用再写文件
+     */
+    private volatile boolean dirty;
+    private long evicted;
+
+    /**
+     * @param maxMessages      最多保留多少条，0或负数不限制
+     * @param maxBytes         所有保留消息topic和正文的总字节数上限，0或负数不限制
+     * @param snapshotFile     快照文件，null不写快照
+     * @param snapshotInterval 写快照的间隔秒数，0或负数只在close时写
+     */
+    public MqttRetainedStore(int maxMessages, long maxBytes, String snapshotFile, int snapshotInterval) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.snapshotFile = snapshotFile == null ? null : new File(snapshotFile);
+        if (this.snapshotFile != null) {
+            load();
+        }
+        if (this.snapshotFile != null && snapshotInterval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-retained-snapshot", true));
+            scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * 保存一条保留消息，覆盖同一个topic之前的消息；正文为空表示删除这个topic的保留消息
+     *
+     * @return 消息太大超过了maxBytes返回false
+     */
+    public boolean put(String topic, MqttQoS qos, byte[] payload) {
+        if (payload == null || payload.length == 0) {
+            remove(topic);
+            return true;
+        }
+        RetainedMessage message = new RetainedMessage(topic, qos, payload);
+        if (maxBytes > 0 && message.bytes() > maxBytes) {
+            logger.info("retained message is too large,topic={},bytes={}", topic, payload.length);
+            return false;
+        }
+        synchronized (this) {
+            RetainedMessage previous = messages.remove(topic);
+            if (previous != null) {
+                bytes -= previous.bytes();
+            }
+            messages.put(topic, message);
+            bytes += message.bytes();
+            node(topic).message = message;
+            while ((maxMessages > 0 && messages.size() > maxMessages) || (maxBytes > 0 && bytes > maxBytes)) {
+                Iterator<RetainedMessage> iterator = messages.values().iterator();
+                RetainedMessage oldest = iterator.next();
+                iterator.remove();
+                bytes -= oldest.bytes();
+                clear(oldest.topic);
+                evicted++;
+            }
+            size = messages.size();
+            dirty = true;
+        }
+        return true;
+    }
+
+    public RetainedMessage remove(String topic) {
+        synchronized (this) {
+            RetainedMessage previous = messages.remove(topic);
+            if (previous == null) {
+                return null;
+            }
+            bytes -= previous.bytes();
+            clear(topic);
+            size = messages.size();
+            dirty = true;
+            return previous;
+        }
+    }
+
+    public RetainedMessage get(String topic) {
+        Node node = root;
+        for (String level : MqttSubscriptionTrie.split(topic)) {
+            Map<String, Node> children = node.children;
+            node = children == null ? null : children.get(level);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.message;
+    }
+
+    /**
+     * 找出和filter匹配的所有保留消息，filter支持+和#通配符
+     */
+    public List<RetainedMessage> match(String filter) {
+        List<RetainedMessage> result = new ArrayList<>();
+        if (size == 0 || !MqttSubscriptionTrie.isValidFilter(filter)) {
+            return result;
+        }
+        match(root, MqttSubscriptionTrie.split(filter), 0, result);
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 所有保留消息topic和正文的总字节数
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 因为超过条数或字节数上限被删除的消息数
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * 把所有保留消息写到快照文件，先写临时文件再改名，写到一半退出不会破坏之前的快照
+     */
+    public void snapshot() throws IOException {
+        if (snapshotFile == null) {
+            return;
+        }
+        List<RetainedMessage> copy;
+        synchronized (this) {
+            copy = new ArrayList<>(messages.values());
+            dirty = false;
+        }
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        File parent = snapshotFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("can not create dir " + parent);
+        }
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(copy.size());
+            for (RetainedMessage message : copy) {
+                out.writeUTF(message.topic);
+                out.writeByte(message.qos.value());
+                out.writeInt(message.payload.length);
+                out.write(message.payload);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (snapshotFile != null) {
+            snapshotQuietly();
+        }
+    }
+
+    private void snapshotQuietly() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            snapshot();
+            logger.debug("retained snapshot written,messages={},cost={}ms", size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            dirty = true;
+            logger.error("write retained snapshot failed,file={}", snapshotFile, e);
+        }
+    }
+
+    private void load() {
+        if (!snapshotFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 64 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                logger.error("unknown retained snapshot file {}", snapshotFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String topic = in.readUTF();
+                MqttQoS qos = MqttQoS.valueOf(in.readByte());
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                put(topic, qos, payload);
+            }
+            dirty = false;
+            logger.info("retained snapshot loaded,file={},messages={}", snapshotFile, size);
+        } catch (IOException e) {
+            logger.error("read retained snapshot failed,file={},loaded={}", snapshotFile, size, e);
+        }
+    }
+
+    /**
+     * 找到或者创建topic对应的节点，在this的锁里调用
+     */
+    private Node node(String topic) {
+        Node node = root;
+        for (String level : MqttSubscriptionTrie.split(topic)) {
+            if (node.children == null) {
+                node.children = new ConcurrentHashMap<>(4);
+            }
+            node = node.children.computeIfAbsent(level, k -> new Node());
+        }
+        return node;
+    }
+
+    /**
+     * 清除topic对应节点上的消息，并删除因此变空的节点，在this的锁里调用
+     */
+    private void clear(String topic) {
+        String[] levels = MqttSubscriptionTrie.split(topic);
+        Node[] path = new Node[levels.length + 1];
+        path[0] = root;
+        for (int i = 0; i < levels.length; i++) {
+            Map<String, Node> children = path[i].children;
+            path[i + 1] = children == null ? null : children.get(levels[i]);
+            if (path[i + 1] == null) {
+                return;
+            }
+        }
+        path[levels.length].message = null;
+        for (int i = levels.length; i > 0; i--) {
+            if (!path[i].isEmpty()) {
+                return;
+            }
+            path[i - 1].children.remove(levels[i - 1]);
+        }
+    }
+
+    private void match(Node node, String[] levels, int index, List<RetainedMessage> result) {
+        if (index == levels.length) {
+            RetainedMessage message = node.message;
+            if (message != null) {
+                result.add(message);
+            }
+            return;
+        }
+        String level = levels[index];
+        Map<String, Node> children = node.children;
+        if (MULTI_LEVEL.equals(level)) {
+            //a/#也匹配a
+            if (index > 0 && node.message != null) {
+                result.add(node.message);
+            }
+            if (children != null) {
+                for (Map.Entry<String, Node> entry : children.entrySet()) {
+                    if (index > 0 || !entry.getKey().startsWith("$")) {
+                        collect(entry.getValue(), result);
+                    }
+                }
+            }
+            return;
+        }
+        if (children == null) {
+            return;
+        }
+        if (SINGLE_LEVEL.equals(level)) {
+            for (Map.Entry<String, Node> entry : children.entrySet()) {
+                //以$开头的topic不能被第一层的通配符匹配
+                if (index > 0 || !entry.getKey().startsWith("$")) {
+                    match(entry.getValue(), levels, index + 1, result);
+                }
+            }
+            return;
+        }
+        Node child = children.get(level);
+        if (child != null) {
+            match(child, levels, index + 1, result);
+        }
+    }
+
+    private void collect(Node node, List<RetainedMessage> result) {
+        RetainedMessage message = node.message;
+        if (message != null) {
+            result.add(message);
+        }
+        Map<String, Node> children = node.children;
+        if (children != null) {
+            for (Node child : children.values()) {
+                collect(child, result);
+            }
+        }
+    }
+
+    /**
+     * 一条保留消息，创建后不再修改
+     */
+    public static class RetainedMessage {
+        private final String topic;
+        private final MqttQoS qos;
+        private final byte[] payload;
+
+        RetainedMessage(String topic, MqttQoS qos, byte[] payload) {
+            this.topic = topic;
+            this.qos = qos;
+            this.payload = payload;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public MqttQoS getQos() {
+            return qos;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        private long bytes() {
+            return topic.length() + payload.length;
+        }
+    }
+
+    private static final class Node {
+        private volatile ConcurrentHashMap<String, Node> children;
+        private volatile RetainedMessage message;
+
+        private boolean isEmpty() {
+            return message == null && (children == null || children.isEmpty());
+        }
+    }
+}
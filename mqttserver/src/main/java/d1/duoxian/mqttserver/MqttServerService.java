@@ -1,26 +1,46 @@
 package d1.duoxian.mqttserver;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * @author Buter
@@ -28,15 +48,131 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class MqttServerService {
     private final Logger logger = LoggerFactory.getLogger(MqttServerService.class);
-    private NioEventLoopGroup bossGroup;
-    private NioEventLoopGroup workGroup;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workGroup;
     private ClientSessionManager clientSessionManager;
-    private LinkedBlockingQueue<WrapMqttMessage> eventQueue;
+    private MqttMessageDispatcher dispatcher;
+    private MqttSubscriptionTrie<Channel> subscriptionTrie;
+    /**
+     * 所有session和上行消息共用的发送回调，不用为每个连接和每条消息各创建一个
+     */
+    private final Function<CustomMqttPublishMessage, Boolean> publisher = this::send;
+    private final MqttMetrics metrics = new MqttMetrics();
+    /**
+     * 所有通道共用的时间轮，用于QoS1/2的重发
+     */
+    private HashedWheelTimer timer;
+    /**
+     * 持久会话的离线消息存储，没有设置sessionStoreDir时为null
+     */
+    private MqttOfflineStore offlineStore;
+    /**
+     * 保留消息，retainAvailable为false时为null
+     */
+    private MqttRetainedStore retainedStore;
+    /**
+     * 在单独的线程池里校验客户端身份，没有设置verifyListener时为null
+     */
+    private MqttAuthenticator authenticator;
+    private MqttAdmissionControl admissionControl;
+    /**
+     * 集群中的本节点，没有设置clusterNodeId时为null
+     */
+    private MqttClusterNode cluster;
+    /**
+     * 按uuid或用户名单独设置的配额
+     */
+    private final Map<String, MqttQuota> quotaOverrides = new ConcurrentHashMap<>();
+    private MqttQuota defaultQuota = MqttQuota.UNLIMITED;
+    private Charset defaultCharset = StandardCharsets.UTF_8;
     private SslContext sslContext = null;
     public ClientSessionManager getClientSessionManager() {
         return clientSessionManager;
     }
 
+    /**
+     * 客户端的订阅关系，没有开启subscriptionRouting的时候为null
+     */
+    public MqttSubscriptionTrie<Channel> getSubscriptionTrie() {
+        return subscriptionTrie;
+    }
+
+    /**
+     * 运行指标，收发数量、队列长度、延迟等
+     */
+    public MqttMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 持久会话的离线消息存储，没有设置sessionStoreDir时为null
+     */
+    public MqttOfflineStore getOfflineStore() {
+        return offlineStore;
+    }
+
+    /**
+     * 保留消息，可以直接put设置某个topic的保留消息，retainAvailable为false时为null
+     */
+    public MqttRetainedStore getRetainedStore() {
+        return retainedStore;
+    }
+
+    /**
+     * 客户端身份校验，可以查看缓存命中和被拒绝的次数，或者在修改密码后清除缓存，没有设置verifyListener时为null
+     */
+    public MqttAuthenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * 新连接的准入控制，可以查看接受、拒绝和等待CONNACK的连接数
+     */
+    public MqttAdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * 集群中的本节点，可以查看连上的节点和转发的消息数，没有设置clusterNodeId时为null
+     */
+    public MqttClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * 单独设置某个uuid或用户名的配额，对之后连接的客户端生效，uuid优先于用户名
+     */
+    public void setQuota(String uuidOrUsername, MqttQuota quota) {
+        if (quota == null) {
+            quotaOverrides.remove(uuidOrUsername);
+        } else {
+            quotaOverrides.put(uuidOrUsername, quota);
+        }
+    }
+
+    /**
+     * 客户端连接时使用的配额：先按uuid找，再按用户名找，都没有就是缺省配额
+     */
+    public MqttQuota getQuota(String uuid, String username) {
+        MqttQuota quota = uuid == null ? null : quotaOverrides.get(uuid);
+        if (quota == null && username != null) {
+            quota = quotaOverrides.get(username);
+        }
+        return quota == null ? defaultQuota : quota;
+    }
+
+    Timer getTimer() {
+        return timer;
+    }
+
+    MqttMessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    Function<CustomMqttPublishMessage, Boolean> getPublisher() {
+        return publisher;
+    }
+
     /**
      * @param port     监听的端口
      * @param listener 消息监听的实现
@@ -94,16 +230,21 @@ public class MqttServerService {
             return;
         }
         try {
-            eventQueue = new LinkedBlockingQueue<>(option.getMaxMessageCount());
-            queueHandle(option);
-            this.clientSessionManager = new ClientSessionManager();
-            bossGroup = new NioEventLoopGroup(option.getBossThreadNumber());
-            workGroup = option.getWorkThreadGroup();
+            prepare(option);
+            MqttTransportFactory transportFactory = new MqttTransportFactory(option.getTransport());
+            int acceptors = option.getAcceptorNumber();
             ServerBootstrap bootstrap = new ServerBootstrap();
+            if (acceptors > 1 && !transportFactory.enableReusePort(bootstrap)) {
+                logger.warn("SO_REUSEPORT is not supported by transport {},bind only one acceptor", transportFactory.getTransport());
+                acceptors = 1;
+            }
+            //每个监听socket注册到不同的boss线程上
+            bossGroup = transportFactory.newEventLoopGroup(Math.max(option.getBossThreadNumber(), acceptors));
+            workGroup = transportFactory.newEventLoopGroup(option.getWorkThreadNumber());
             bootstrap.group(bossGroup, workGroup);
             MqttServerServiceManager.getInstance().register(this);
-            //设置通道模式为非阻塞Server Socket
-            bootstrap.channel(NioServerSocketChannel.class);
+            //设置通道模式为非阻塞Server Socket，linux下缺省是epoll
+            bootstrap.channel(transportFactory.getServerChannelClass());
             //SO_REUSEADDR允许在同一端口上启动同一服务器的多个实例，只要每个实例捆绑一个不同的本地IP地址即可
             bootstrap.option(ChannelOption.SO_REUSEADDR, false);
             //标识当服务器请求处理线程全满时，用于临时存放已完成三次握手的请求的队列的最大长度
@@ -114,55 +255,360 @@ public class MqttServerService {
             bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true);
             //非JVM管理的，由os管理的内存,减少数据传输的一次copy
             bootstrap.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+            //写缓冲超过高水位后通道不可写，消息先进入MqttOutboundQueue，避免慢速客户端占用大量内存
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, option.getWriteBufferWaterMark());
             bootstrap.handler(new LoggingHandler(LogLevel.INFO));
             // 创建SSL上下文
             if (option.isSsl()) {
                 sslContext = SslContextBuilder.forServer(new File(option.getServerCertFile()), new File(option.getKeyFile()))
                         .trustManager(new File(option.getCaCertFile())).build();
             }
+            MqttMetricsHandler metricsBytes = new MqttMetricsHandler(metrics, false);
+            MqttMetricsHandler metricsMessages = new MqttMetricsHandler(metrics, true);
             bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel ch) {
                     ChannelPipeline channelPipeline = ch.pipeline();
+                    if (option.getFlushConsolidation() > 0) {
+                        //合并flush，读的过程中产生的ack和其它线程publish的消息都只在最后flush一次，减少系统调用
+                        channelPipeline.addLast("flushConsolidation", new FlushConsolidationHandler(option.getFlushConsolidation(), true));
+                    }
                     if(sslContext!=null) {
                         // 将SSL上下文添加到ChannelPipeline中
                         channelPipeline.addLast(sslContext.newHandler(ch.alloc()));
                     }
-                    // 设置读写空闲超时时间，单位是秒.这里只考虑读，也就是channelRead() 方法超过 readerIdleTime 时间未被调用则会触发超时事件调用 userEventTrigger()。
-                    channelPipeline.addLast(new IdleStateHandler(option.getCheckOfflineInterval(), 0, 0));
+                    //统计handler放在编解码前后两个位置，分别统计字节数和报文数量
+                    channelPipeline.addLast("metricsBytes", metricsBytes);
                     channelPipeline.addLast("encoder", MqttEncoder.INSTANCE);
                     channelPipeline.addLast("decoder", new MqttDecoder(option.getMaxBytesInMessage()));
-                    channelPipeline.addLast(new MqttChannelInboundHandler(option, clientSessionManager, eventQueue));
+                    channelPipeline.addLast("metricsMessages", metricsMessages);
+                    channelPipeline.addLast(new MqttChannelInboundHandler(option, MqttServerService.this));
                 }
             });
-            ChannelFuture f = bootstrap.bind(option.getPort()).sync();
-            f.channel().closeFuture().sync();
+            List<Channel> serverChannels = new ArrayList<>(acceptors);
+            for (int i = 0; i < acceptors; i++) {
+                serverChannels.add(bootstrap.bind(option.getPort()).sync().channel());
+            }
+            if (acceptors > 1) {
+                logger.info("mqtt server bind {} acceptors on port {} with SO_REUSEPORT", acceptors, option.getPort());
+            }
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().sync();
+            }
 
         } catch (Exception e) {
             logger.error("mqtt server startup failed", e);
         } finally {
-            if (workGroup != null && bossGroup != null) {
-                workGroup.shutdownGracefully();
-                bossGroup.shutdownGracefully();
+            close();
+        }
+    }
+
+    /**
+     * 创建并启动消息分发线程、订阅关系和会话管理，但不监听端口，startup会先调用它。
+     * 单独调用后可以用EmbeddedChannel加上MqttChannelInboundHandler在测试和benchmark里模拟客户端
+     */
+    public void prepare(MqttServerServiceOption option) {
+        defaultCharset = option.getDefaultCharset();
+        dispatcher = new MqttMessageDispatcher(option, metrics);
+        dispatcher.start();
+        if (option.isSubscriptionRouting()) {
+            subscriptionTrie = new MqttSubscriptionTrie<>();
+        }
+        this.clientSessionManager = new ClientSessionManager();
+        timer = new HashedWheelTimer(new DefaultThreadFactory("mqtt-timer", true), 100, TimeUnit.MILLISECONDS, 512);
+        if (option.getVerifyListener() != null) {
+            authenticator = new MqttAuthenticator(option.getVerifyListener(), option);
+        }
+        if (option.isRetainAvailable()) {
+            retainedStore = new MqttRetainedStore(option.getMaxRetainedMessages(), option.getMaxRetainedBytes(),
+                    option.getRetainedSnapshotFile(), option.getRetainedSnapshotInterval());
+        }
+        if (option.getSessionStoreDir() != null) {
+            try {
+                offlineStore = new MqttOfflineStore(option.getSessionStoreDir(), option.getSessionStoreSegmentSize(), option.getMaxOfflineMessages());
+            } catch (IOException e) {
+                throw new IllegalStateException("open offline store failed,dir=" + option.getSessionStoreDir(), e);
             }
         }
+        defaultQuota = option.getDefaultQuota();
+        quotaOverrides.putAll(option.getQuotaOverrides());
+        admissionControl = new MqttAdmissionControl(option.getMaxConnectRate(), option.getMaxConnectRatePerIp(), option.getMaxPendingConnects());
+        if (option.getMaxConnectRatePerIp() > 0) {
+            scheduleEvictIdle();
+        }
+        metrics.bind(dispatcher, clientSessionManager, admissionControl);
+        if (option.getClusterNodeId() != null) {
+            cluster = new MqttClusterNode(this, option);
+            clientSessionManager.setCluster(cluster);
+            cluster.start();
+        }
     }
 
-    private void queueHandle(MqttServerServiceOption option) {
-        //从队列里去消息处理，可以提供mqttsever的并发处理能力
-        new Thread(() -> {
-            while (true) {
-                try {
-                    WrapMqttMessage message = eventQueue.take();
-                    IMqttMessageListener listener = option.getMessageListener();
-                    if (listener != null) {
-                        listener.onMessage(message.getClientIp(), message.getChannelId(), message.getTopic(), message.getContent(), message.getPublisher());
+    /**
+     * 每10秒清理一次已经空闲的ip令牌桶
+     */
+    private void scheduleEvictIdle() {
+        timer.newTimeout(timeout -> {
+            admissionControl.evictIdle();
+            scheduleEvictIdle();
+        }, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 获取通道的发送队列，可以查看还没发送出去的字节数和丢弃的消息数，通道不存在返回null
+     */
+    public MqttOutboundQueue getOutboundQueue(String channelId) {
+        Channel channel = clientSessionManager.getChannel(channelId);
+        return channel == null ? null : MqttOutboundQueue.of(channel);
+    }
+
+    /**
+     * 通道还没有发送出去的字节数，通道不存在返回-1
+     */
+    public long getPendingBytes(String channelId) {
+        MqttOutboundQueue outboundQueue = getOutboundQueue(channelId);
+        return outboundQueue == null ? -1 : outboundQueue.getPendingBytes();
+    }
+
+    /**
+     * 发送消息给客户端，按消息的qos发送。QoS0放入发送队列后future的结果就是true；
+     * QoS1/2在收到客户端的PUBACK/PUBCOMP后为true，通道不存在、断开或者重发次数用完为false。
+     * future在通道的io线程里完成，回调里不要做耗时操作
+     */
+    public CompletableFuture<Boolean> publish(CustomMqttPublishMessage message) {
+        if (message == null || message.isEmpty()) {
+            logger.error("MQTT channel or topic or content must not be null");
+            return CompletableFuture.completedFuture(false);
+        }
+        Channel channel = clientSessionManager.getChannel(message.getChannelId());
+        if (channel == null) {
+            logger.error("not found mqtt channel id={},publish failed", message.getChannelId());
+            return CompletableFuture.completedFuture(false);
+        }
+        return MqttChannelInboundHandler.send(channel, message, defaultCharset);
+    }
+
+    /**
+     * session和onMessage里的发送回调，放入发送队列就返回true，不等客户端确认
+     */
+    private Boolean send(CustomMqttPublishMessage message) {
+        if (message == null || message.isEmpty()) {
+            logger.error("MQTT channel or topic or content must not be null");
+            return false;
+        }
+        Channel channel = clientSessionManager.getChannel(message.getChannelId());
+        if (channel == null || MqttOutboundQueue.of(channel) == null) {
+            logger.error("not found mqtt channel id={},publish failed", message.getChannelId());
+            return false;
+        }
+        MqttChannelInboundHandler.send(channel, message, defaultCharset);
+        return true;
+    }
+
+    /**
+     * 按uuid发送消息给客户端。客户端在线时和publish一样；客户端是持久会话（clean session为false）并且开启了sessionStoreDir时，
+     * QoS1/2的消息在客户端离线或者发送失败时保存下来，客户端重新连接后补发，保存成功future的结果就是true。
+     * 集群模式下客户端连在其它节点上时转发给那个节点，future的结果是那个节点上发送的结果
+     */
+    public CompletableFuture<Boolean> publishToUuid(String uuid, String topic, String content, MqttQoS qos) {
+        return publishToUuid(uuid, topic, content, qos, true);
+    }
+
+    /**
+     * @param forward 客户端在其它节点上时是否转发，处理其它节点转过来的消息时为false，避免来回转发
+     */
+    CompletableFuture<Boolean> publishToUuid(String uuid, String topic, String content, MqttQoS qos, boolean forward) {
+        if (uuid == null || topic == null || content == null || qos == null) {
+            logger.error("MQTT uuid or topic or content or qos must not be null");
+            return CompletableFuture.completedFuture(false);
+        }
+        ClientSession session = clientSessionManager.getSessionByUuid(uuid);
+        Channel channel = session == null ? null : session.getChannel();
+        if (channel != null && !channel.isActive()) {
+            //通道已经断开但还没来得及下线，当作离线
+            channel = null;
+        }
+        String owner = channel == null && forward && cluster != null ? cluster.getOwner(uuid) : null;
+        if (owner != null) {
+            return cluster.forward(owner, uuid, topic, content, qos);
+        }
+        boolean storable = offlineStore != null && qos != MqttQoS.AT_MOST_ONCE;
+        if (channel == null) {
+            if (storable && offlineStore.isPersistent(uuid)) {
+                return CompletableFuture.completedFuture(offlineStore.append(uuid, topic, qos, content.getBytes(defaultCharset)));
+            }
+            logger.error("mqtt client is offline,uuid={},publish failed", uuid);
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> future = MqttChannelInboundHandler.send(channel, new CustomMqttPublishMessage(session.getChannelId(), topic, content, qos), defaultCharset);
+        if (!storable || !session.isPersistent()) {
+            return future;
+        }
+        //发送失败（通道断开或者重发次数用完）时保存下来，下次连接再补发
+        return future.thenApply(success -> success || offlineStore.append(uuid, topic, qos, content.getBytes(defaultCharset)));
+    }
+
+    /**
+     * 批量发送消息给客户端，按通道所在的io线程分组，每个io线程只提交一次任务，每个通道只flush一次。
+     * 适合给大量设备下发命令
+     *
+     * @param messages 要发送的消息，channelId不存在的消息会被忽略
+     * @return 成功提交发送的消息数量
+     */
+    public int publishBatch(List<CustomMqttPublishMessage> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return 0;
+        }
+        Map<EventLoop, Map<Channel, List<CustomMqttPublishMessage>>> groups = new HashMap<>();
+        int count = 0;
+        for (CustomMqttPublishMessage message : messages) {
+            if (message == null || message.isEmpty()) {
+                continue;
+            }
+            Channel channel = clientSessionManager.getChannel(message.getChannelId());
+            if (channel == null) {
+                logger.error("not found mqtt channel id={},publish failed", message.getChannelId());
+                continue;
+            }
+            groups.computeIfAbsent(channel.eventLoop(), k -> new LinkedHashMap<>())
+                    .computeIfAbsent(channel, k -> new ArrayList<>()).add(message);
+            count++;
+        }
+        for (Map.Entry<EventLoop, Map<Channel, List<CustomMqttPublishMessage>>> group : groups.entrySet()) {
+            Map<Channel, List<CustomMqttPublishMessage>> channels = group.getValue();
+            group.getKey().execute(() -> {
+                for (Map.Entry<Channel, List<CustomMqttPublishMessage>> entry : channels.entrySet()) {
+                    Channel channel = entry.getKey();
+                    MqttOutboundQueue outboundQueue = MqttOutboundQueue.of(channel);
+                    if (outboundQueue == null) {
+                        continue;
+                    }
+                    for (CustomMqttPublishMessage message : entry.getValue()) {
+                        if (message.getQos() == MqttQoS.AT_MOST_ONCE) {
+                            outboundQueue.offer(MqttChannelInboundHandler.newPublishMessage(channel, message, defaultCharset), false);
+                        } else {
+                            MqttChannelInboundHandler.send(channel, message, defaultCharset);
+                        }
                     }
-                } catch (Exception e) {
-                    logger.error("take message failed", e);
+                    outboundQueue.flush();
+                }
+            });
+        }
+        return count;
+    }
+
+    /**
+     * 发送给本节点所有在线的设备，见publishToGroup
+     *
+     * @return 提交发送的通道数量
+     */
+    public int publishToAll(String topic, String content, MqttQoS qos) {
+        return publishToGroup(session -> true, topic, content, qos);
+    }
+
+    /**
+     * 发送给本节点上满足条件的在线设备，适合下发固件更新通知、配置变更等同样的内容。
+     * 内容只编码一次：QoS0整个报文只编码一次，每个通道写入同一块内存的retainedDuplicate；QoS1/2每个通道的packet id不同，只共用正文。
+     * 按通道所在的io线程分组，每个io线程只提交一次任务。集群模式下不会发给其它节点上的设备
+     *
+     * @param predicate 在调用线程里对每个session调用一次
+     * @return 提交发送的通道数量
+     */
+    public int publishToGroup(Predicate<ClientSession> predicate, String topic, String content, MqttQoS qos) {
+        if (predicate == null || topic == null || content == null || qos == null) {
+            logger.error("MQTT predicate or topic or content or qos must not be null");
+            return 0;
+        }
+        Map<EventLoop, List<Channel>> groups = new HashMap<>();
+        int[] count = new int[1];
+        clientSessionManager.forEachSession(session -> {
+            if (predicate.test(session) && group(groups, session)) {
+                count[0]++;
+            }
+        });
+        broadcast(groups, topic, content, qos);
+        return count[0];
+    }
+
+    /**
+     * 发送给一批设备，本节点在线的设备和publishToGroup一样只编码一次、按io线程分组发送；
+     * 其它的按publishToUuid处理，集群模式下转发给设备所在的节点，持久会话的QoS1/2消息保存为离线消息
+     *
+     * @return 本节点提交发送的通道数量，转发和保存离线消息的不算在内
+     */
+    public int publishToUuids(Collection<String> uuids, String topic, String content, MqttQoS qos) {
+        if (uuids == null || topic == null || content == null || qos == null) {
+            logger.error("MQTT uuids or topic or content or qos must not be null");
+            return 0;
+        }
+        Map<EventLoop, List<Channel>> groups = new HashMap<>();
+        int count = 0;
+        boolean fallback = cluster != null || (offlineStore != null && qos != MqttQoS.AT_MOST_ONCE);
+        for (String uuid : uuids) {
+            ClientSession session = uuid == null ? null : clientSessionManager.getSessionByUuid(uuid);
+            if (session != null && group(groups, session)) {
+                count++;
+            } else if (uuid != null && fallback) {
+                publishToUuid(uuid, topic, content, qos);
+            }
+        }
+        broadcast(groups, topic, content, qos);
+        return count;
+    }
+
+    /**
+     * 把session的通道放进所在io线程的分组，通道不存在或者已经断开返回false
+     */
+    private static boolean group(Map<EventLoop, List<Channel>> groups, ClientSession session) {
+        Channel channel = session.getChannel();
+        if (channel == null || !channel.isActive()) {
+            return false;
+        }
+        groups.computeIfAbsent(channel.eventLoop(), k -> new ArrayList<>()).add(channel);
+        return true;
+    }
+
+    private void broadcast(Map<EventLoop, List<Channel>> groups, String topic, String content, MqttQoS qos) {
+        if (groups.isEmpty()) {
+            return;
+        }
+        byte[] bytes = content.getBytes(defaultCharset);
+        ByteBuf shared = qos == MqttQoS.AT_MOST_ONCE
+                ? MqttChannelInboundHandler.encodePublish(PooledByteBufAllocator.DEFAULT, topic, bytes)
+                : Unpooled.wrappedBuffer(bytes);
+        try {
+            for (Map.Entry<EventLoop, List<Channel>> group : groups.entrySet()) {
+                List<Channel> channels = group.getValue();
+                //每个io线程持有一个引用，写完自己的通道后释放
+                shared.retain();
+                try {
+                    group.getKey().execute(() -> {
+                        try {
+                            for (Channel channel : channels) {
+                                if (qos == MqttQoS.AT_MOST_ONCE) {
+                                    MqttOutboundQueue outboundQueue = MqttOutboundQueue.of(channel);
+                                    if (outboundQueue != null) {
+                                        outboundQueue.offer(shared.retainedDuplicate(), true);
+                                    }
+                                } else {
+                                    MqttInflightWindow inflightWindow = MqttInflightWindow.of(channel);
+                                    if (inflightWindow != null) {
+                                        inflightWindow.offer(topic, qos, shared.retainedDuplicate());
+                                    }
+                                }
+                            }
+                        } finally {
+                            shared.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    shared.release();
+                    logger.error("mqtt io thread is shutting down,drop {} messages", channels.size());
                 }
             }
-        }).start();
+        } finally {
+            shared.release();
+        }
     }
 
     /**
@@ -173,5 +619,23 @@ public class MqttServerService {
             workGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
         }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        if (timer != null) {
+            timer.stop();
+        }
+        if (offlineStore != null) {
+            offlineStore.close();
+        }
+        if (retainedStore != null) {
+            retainedStore.close();
+        }
+        if (authenticator != null) {
+            authenticator.close();
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
     }
 }
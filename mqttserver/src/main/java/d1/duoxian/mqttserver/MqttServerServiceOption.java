@@ -1,9 +1,14 @@
 package d1.duoxian.mqttserver;
 
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * server启动有多个参数，所以增加一个option类
@@ -29,16 +34,102 @@ public class MqttServerServiceOption {
      * 校验客户端身份的接口实现实例
      */
     private IMqttVerifyListener verifyListener;
+    /**
+     * 调用verifyListener的线程数，缺省是4，传0或负数则为缺省，大于100的数则为100。
+     * 校验不在io线程里执行，校验期间这个连接的其它报文先暂存，结果出来后再回复CONNACK
+     */
+    private Integer verifyThreadNumber = 4;
+    /**
+     * 等待校验的连接数上限，缺省是10000，超过后直接回复CONNACK（服务不可用）并断开
+     */
+    private Integer verifyQueueSize = 10000;
+    /**
+     * 校验的超时时间，缺省是10秒，超时后断开连接
+     */
+    private Integer verifyTimeout = 10;
+    /**
+     * 缓存校验结果的条数，缺省是0，不缓存。以clientId、用户名和密码的SHA-256为key，超过后删除最久没用过的
+     */
+    private Integer verifyCacheSize = 0;
+    /**
+     * 校验通过的结果缓存多少秒，缺省是300秒
+     */
+    private Integer verifyCacheTtl = 300;
+    /**
+     * 校验不通过的结果缓存多少秒，缺省是30秒，传0则不缓存不通过的结果
+     */
+    private Integer verifyNegativeCacheTtl = 30;
+    /**
+     * 全局每秒最多接受的新连接数，缺省是0，不限制。超过的连接回复CONNACK（服务不可用）后断开，
+     * ssl连接不做TLS握手直接断开。允许一秒的突发量
+     */
+    private Integer maxConnectRate = 0;
+    /**
+     * 每个ip每秒最多接受的新连接数，缺省是0，不限制
+     */
+    private Integer maxConnectRatePerIp = 0;
+    /**
+     * 最多有多少连接在等待CONNACK（TLS握手、等待CONNECT报文、校验身份），缺省是0，不限制，超过的新连接直接拒绝
+     */
+    private Integer maxPendingConnects = 0;
+    /**
+     * 每个客户端每秒最多发送的PUBLISH消息数，缺省是0，不限制
+     */
+    private Integer maxInboundMessageRate = 0;
+    /**
+     * 每个客户端每秒最多发送的PUBLISH正文字节数，缺省是0，不限制
+     */
+    private Long maxInboundByteRate = 0L;
+    /**
+     * 客户端超过配额后的处理方式，缺省是THROTTLE
+     */
+    private MqttQuotaAction quotaAction = MqttQuotaAction.THROTTLE;
+    /**
+     * 按uuid或用户名单独设置的配额，uuid优先，没有设置的使用maxInboundMessageRate和maxInboundByteRate。
+     * 运行中可以用MqttServerService.setQuota修改，对之后连接的客户端生效
+     */
+    private Map<String, MqttQuota> quotaOverrides;
+    /**
+     * 集群中本节点的名字，各节点不能重复，为null时不开启集群
+     */
+    private String clusterNodeId;
+    /**
+     * 节点之间通信监听的端口，缺省是1884
+     */
+    private Integer clusterPort = 1884;
+    /**
+     * 集群端口绑定的地址，应该是内网网卡的地址，缺省为null，绑定所有网卡
+     */
+    private String clusterHost;
+    /**
+     * 节点之间握手用的共享密钥，开启集群时必须设置，所有节点相同。握手时只发送用它计算的HMAC，不发送密钥本身，
+     * 之后的报文不加密，节点之间应该走内网
+     */
+    private String clusterSecret;
+    /**
+     * 所有节点的集群地址，格式是host:port，可以包含本节点自己的地址，这样所有节点可以用同一份配置
+     */
+    private List<String> clusterNodes;
     /**
      * 负责接收accept消息的线程数，通常1个线程(缺省）即可，传0或负数则为1，大于5的数则为5
      */
     private Integer bossThreadNumber = 0;
+    /**
+     * 在同一个端口上用SO_REUSEPORT绑定多少个监听socket，每个socket由各自的boss线程accept，由内核在它们之间分配新连接。
+     * 只有epoll支持，其它传输方式只绑定一个。缺省是1，传0或负数则为1，大于64的数则为64
+     */
+    private Integer acceptorNumber = 1;
     /**
      * 负责处理事务的线程数，缺省是cpu的核心*2个数量，传0或负数则为缺省，大于100的数则为100
      */
     private Integer workThreadNumber = 0;
     /**
-     * 判断是否离线的时间间隔，缺省是90秒
+     * 网络传输的实现方式，缺省是AUTO，linux下有epoll就用epoll，原生库不可用时自动退回到nio
+     */
+    private MqttTransport transport = MqttTransport.AUTO;
+    /**
+     * 判断是否离线的时间间隔，缺省是90秒。客户端CONNECT里的keepAlive不为0时按keepAlive的1.5倍判断，
+     * 这个值只用于还没收到CONNECT和keepAlive为0的连接
      */
     private Integer checkOfflineInterval = 90;
     /**
@@ -49,6 +140,99 @@ public class MqttServerServiceOption {
      * 接收到的消息先存入队列，这个值是缺省的队列大小，如果队列满了，就无法接收新的数据，请确保快速处理队列里的数据
      */
     private Integer maxMessageCount = 100000;
+    /**
+     * 处理队列消息（调用onMessage）的线程数，缺省是1个线程，传0或负数则为1，大于100的数则为100。
+     * 同一个通道的消息总是由同一个线程按顺序处理，不同通道的消息并行处理，
+     * 大于1的时候请确保onMessage的实现是线程安全的。maxMessageCount会平分给每个线程的队列
+     */
+    private Integer dispatchThreadNumber = 1;
+    /**
+     * 接收队列的实现，缺省是LINKED。io线程很多、消息量很大时可以用RING_BUFFER，
+     * 它按maxMessageCount（向上取2的幂）预先分配数组，放入和取出都不加锁，处理线程批量取出
+     */
+    private MqttQueueType queueType = MqttQueueType.LINKED;
+    /**
+     * 接收队列满了以后的处理策略，缺省是DROP
+     */
+    private MqttOverflowStrategy overflowStrategy = MqttOverflowStrategy.DROP;
+    /**
+     * PAUSE_READ策略下，队列里的消息数超过高水位就暂停读取，降到低水位以下恢复读取，
+     * 缺省分别是maxMessageCount的80%和50%。和队列容量一样按dispatchThreadNumber平分，每个处理线程的队列单独判断
+     */
+    private Integer queueHighWaterMark;
+    private Integer queueLowWaterMark;
+    /**
+     * 是否在服务端按订阅关系转发消息，缺省是false。开启后客户端PUBLISH的消息除了交给messageListener，
+     * 还会转发给订阅了匹配topic的其它客户端，支持+和#通配符。没有订阅权限控制，任何客户端订阅#都能收到所有客户端的消息，
+     * 只在客户端都可信的时候开启
+     */
+    private boolean subscriptionRouting = false;
+    /**
+     * 合并flush，每个通道最多积累多少次flush才真正写一次socket，缺省是256，传0或负数则不合并
+     */
+    private Integer flushConsolidation = 256;
+    /**
+     * 每个通道写缓冲的低水位和高水位（字节），超过高水位后通道变为不可写，要发送的消息先进入发送队列，
+     * 降到低水位以下再继续发送，缺省是32K和64K
+     */
+    private Integer writeBufferLowWaterMark = 32 * 1024;
+    private Integer writeBufferHighWaterMark = 64 * 1024;
+    /**
+     * 每个通道发送队列的最大消息数，缺省是1000，队列满了按slowConsumerPolicy处理
+     */
+    private Integer outboundQueueSize = 1000;
+    /**
+     * 客户端接收太慢，发送队列满了以后的处理策略，缺省是丢弃最早的消息
+     */
+    private MqttSlowConsumerPolicy slowConsumerPolicy = MqttSlowConsumerPolicy.DROP_OLDEST;
+    /**
+     * 每个通道以QoS1/2发送、还没有收到确认的消息数上限，缺省是32，超过的先排队，排队的上限是outboundQueueSize
+     */
+    private Integer inflightWindow = 32;
+    /**
+     * QoS1/2的消息多少秒没有收到确认就重发，缺省是10秒，传0或负数则不重发
+     */
+    private Integer retransmitInterval = 10;
+    /**
+     * 最多重发几次，缺省是3次，超过后放弃，publish返回的future结果为false
+     */
+    private Integer maxRetransmit = 3;
+    /**
+     * 持久会话（clean session为false）离线消息的存储目录，缺省为null，不保存离线消息。
+     * 设置后，客户端以clean session为false连接时，服务端给它发送的QoS1/2消息在它离线期间保存到这个目录，
+     * 重新连接后补发，进程重启后也不会丢失
+     */
+    private String sessionStoreDir;
+    /**
+     * 离线消息存储每个文件的字节数，缺省是64MB，单条消息不能超过这个大小
+     */
+    private Integer sessionStoreSegmentSize = 64 * 1024 * 1024;
+    /**
+     * 每个客户端最多保存的离线消息数，缺省是1000，超过后删除最早的
+     */
+    private Integer maxOfflineMessages = 1000;
+    /**
+     * 是否保存保留消息，缺省是false。开启后客户端PUBLISH时retain为true的消息按topic保存最后一条，
+     * 客户端订阅时把匹配的保留消息发给它，正文为空的保留消息表示删除。保存在内存里，任何客户端都可以写入，用下面两个上限控制占用
+     */
+    private boolean retainAvailable = false;
+    /**
+     * 最多保存的保留消息条数，缺省是100000，超过后删除最早更新的
+     */
+    private Integer maxRetainedMessages = 100000;
+    /**
+     * 保留消息topic和正文的总字节数上限，缺省是64M，超过后删除最早更新的
+     */
+    private Long maxRetainedBytes = 64L * 1024 * 1024;
+    /**
+     * 保留消息的快照文件，缺省为null，不写快照。设置后启动时从这个文件读回保留消息，
+     * 每隔retainedSnapshotInterval秒（有修改时）和关闭时写一次
+     */
+    private String retainedSnapshotFile;
+    /**
+     * 写保留消息快照的间隔，缺省是60秒，传0或负数只在关闭时写
+     */
+    private Integer retainedSnapshotInterval = 60;
     /**
      * 缺省不支持 SSL
      */
@@ -79,11 +263,53 @@ public class MqttServerServiceOption {
         this.port = builder.port;
         this.messageListener = builder.messageListener;
         this.verifyListener = builder.verifyListener;
+        this.verifyThreadNumber = builder.verifyThreadNumber;
+        this.verifyQueueSize = builder.verifyQueueSize;
+        this.verifyTimeout = builder.verifyTimeout;
+        this.verifyCacheSize = builder.verifyCacheSize;
+        this.verifyCacheTtl = builder.verifyCacheTtl;
+        this.verifyNegativeCacheTtl = builder.verifyNegativeCacheTtl;
+        this.maxConnectRate = builder.maxConnectRate;
+        this.maxConnectRatePerIp = builder.maxConnectRatePerIp;
+        this.maxPendingConnects = builder.maxPendingConnects;
+        this.maxInboundMessageRate = builder.maxInboundMessageRate;
+        this.maxInboundByteRate = builder.maxInboundByteRate;
+        this.quotaAction = builder.quotaAction;
+        this.quotaOverrides = builder.quotaOverrides;
+        this.clusterNodeId = builder.clusterNodeId;
+        this.clusterPort = builder.clusterPort;
+        this.clusterHost = builder.clusterHost;
+        this.clusterSecret = builder.clusterSecret;
+        this.clusterNodes = builder.clusterNodes;
         this.bossThreadNumber = builder.bossThreadNumber;
+        this.acceptorNumber = builder.acceptorNumber;
         this.workThreadNumber = builder.workThreadNumber;
+        this.transport = builder.transport;
         this.checkOfflineInterval = builder.checkOfflineInterval;
         this.maxBytesInMessage = builder.maxBytesInMessage;
         this.maxMessageCount = builder.maxMessageCount;
+        this.dispatchThreadNumber = builder.dispatchThreadNumber;
+        this.queueType = builder.queueType;
+        this.overflowStrategy = builder.overflowStrategy;
+        this.queueHighWaterMark = builder.queueHighWaterMark;
+        this.queueLowWaterMark = builder.queueLowWaterMark;
+        this.subscriptionRouting = builder.subscriptionRouting;
+        this.flushConsolidation = builder.flushConsolidation;
+        this.writeBufferLowWaterMark = builder.writeBufferLowWaterMark;
+        this.writeBufferHighWaterMark = builder.writeBufferHighWaterMark;
+        this.outboundQueueSize = builder.outboundQueueSize;
+        this.slowConsumerPolicy = builder.slowConsumerPolicy;
+        this.inflightWindow = builder.inflightWindow;
+        this.retransmitInterval = builder.retransmitInterval;
+        this.maxRetransmit = builder.maxRetransmit;
+        this.sessionStoreDir = builder.sessionStoreDir;
+        this.sessionStoreSegmentSize = builder.sessionStoreSegmentSize;
+        this.maxOfflineMessages = builder.maxOfflineMessages;
+        this.retainAvailable = builder.retainAvailable;
+        this.maxRetainedMessages = builder.maxRetainedMessages;
+        this.maxRetainedBytes = builder.maxRetainedBytes;
+        this.retainedSnapshotFile = builder.retainedSnapshotFile;
+        this.retainedSnapshotInterval = builder.retainedSnapshotInterval;
         this.ssl = builder.ssl;
         this.caCertFile = builder.caCertFile;
         this.serverCertFile = builder.serverCertFile;
@@ -95,11 +321,53 @@ public class MqttServerServiceOption {
         private Integer port;
         private IMqttMessageListener messageListener;
         private IMqttVerifyListener verifyListener;
+        private Integer verifyThreadNumber;
+        private Integer verifyQueueSize;
+        private Integer verifyTimeout;
+        private Integer verifyCacheSize;
+        private Integer verifyCacheTtl;
+        private Integer verifyNegativeCacheTtl;
+        private Integer maxConnectRate;
+        private Integer maxConnectRatePerIp;
+        private Integer maxPendingConnects;
+        private Integer maxInboundMessageRate;
+        private Long maxInboundByteRate;
+        private MqttQuotaAction quotaAction;
+        private Map<String, MqttQuota> quotaOverrides;
+        private String clusterNodeId;
+        private Integer clusterPort;
+        private String clusterHost;
+        private String clusterSecret;
+        private List<String> clusterNodes;
         private Integer bossThreadNumber;
+        private Integer acceptorNumber;
         private Integer workThreadNumber;
+        private MqttTransport transport;
         private Integer checkOfflineInterval;
         private Integer maxBytesInMessage;
         private Integer maxMessageCount = 100000;
+        private Integer dispatchThreadNumber;
+        private MqttQueueType queueType;
+        private MqttOverflowStrategy overflowStrategy;
+        private Integer queueHighWaterMark;
+        private Integer queueLowWaterMark;
+        private boolean subscriptionRouting = false;
+        private Integer flushConsolidation = 256;
+        private Integer writeBufferLowWaterMark;
+        private Integer writeBufferHighWaterMark;
+        private Integer outboundQueueSize;
+        private MqttSlowConsumerPolicy slowConsumerPolicy;
+        private Integer inflightWindow;
+        private Integer retransmitInterval;
+        private Integer maxRetransmit;
+        private String sessionStoreDir;
+        private Integer sessionStoreSegmentSize;
+        private Integer maxOfflineMessages;
+        private boolean retainAvailable = false;
+        private Integer maxRetainedMessages;
+        private Long maxRetainedBytes;
+        private String retainedSnapshotFile;
+        private Integer retainedSnapshotInterval;
         private boolean ssl = false;
         private String caCertFile;
         private String serverCertFile;
@@ -114,6 +382,108 @@ public class MqttServerServiceOption {
             return this;
         }
 
+        public Builder dispatchThreadNumber(Integer dispatchThreadNumber) {
+            this.dispatchThreadNumber = dispatchThreadNumber;
+            return this;
+        }
+
+        public Builder queueType(MqttQueueType queueType) {
+            this.queueType = queueType;
+            return this;
+        }
+
+        public Builder overflowStrategy(MqttOverflowStrategy overflowStrategy) {
+            this.overflowStrategy = overflowStrategy;
+            return this;
+        }
+
+        public Builder queueWaterMark(Integer low, Integer high) {
+            this.queueLowWaterMark = low;
+            this.queueHighWaterMark = high;
+            return this;
+        }
+
+        public Builder subscriptionRouting(boolean subscriptionRouting) {
+            this.subscriptionRouting = subscriptionRouting;
+            return this;
+        }
+
+        public Builder flushConsolidation(Integer flushConsolidation) {
+            this.flushConsolidation = flushConsolidation;
+            return this;
+        }
+
+        public Builder writeBufferWaterMark(Integer low, Integer high) {
+            this.writeBufferLowWaterMark = low;
+            this.writeBufferHighWaterMark = high;
+            return this;
+        }
+
+        public Builder outboundQueueSize(Integer outboundQueueSize) {
+            this.outboundQueueSize = outboundQueueSize;
+            return this;
+        }
+
+        public Builder slowConsumerPolicy(MqttSlowConsumerPolicy slowConsumerPolicy) {
+            this.slowConsumerPolicy = slowConsumerPolicy;
+            return this;
+        }
+
+        public Builder inflightWindow(Integer inflightWindow) {
+            this.inflightWindow = inflightWindow;
+            return this;
+        }
+
+        public Builder retransmitInterval(Integer retransmitInterval) {
+            this.retransmitInterval = retransmitInterval;
+            return this;
+        }
+
+        public Builder maxRetransmit(Integer maxRetransmit) {
+            this.maxRetransmit = maxRetransmit;
+            return this;
+        }
+
+        public Builder sessionStoreDir(String sessionStoreDir) {
+            this.sessionStoreDir = sessionStoreDir;
+            return this;
+        }
+
+        public Builder sessionStoreSegmentSize(Integer sessionStoreSegmentSize) {
+            this.sessionStoreSegmentSize = sessionStoreSegmentSize;
+            return this;
+        }
+
+        public Builder maxOfflineMessages(Integer maxOfflineMessages) {
+            this.maxOfflineMessages = maxOfflineMessages;
+            return this;
+        }
+
+        public Builder retainAvailable(boolean retainAvailable) {
+            this.retainAvailable = retainAvailable;
+            return this;
+        }
+
+        public Builder maxRetainedMessages(Integer maxRetainedMessages) {
+            this.maxRetainedMessages = maxRetainedMessages;
+            return this;
+        }
+
+        public Builder maxRetainedBytes(Long maxRetainedBytes) {
+            this.maxRetainedBytes = maxRetainedBytes;
+            return this;
+        }
+
+        public Builder retainedSnapshotFile(String retainedSnapshotFile) {
+            this.retainedSnapshotFile = retainedSnapshotFile;
+            return this;
+        }
+
+        public Builder retainedSnapshotInterval(Integer retainedSnapshotInterval) {
+            this.retainedSnapshotInterval = retainedSnapshotInterval;
+            return this;
+        }
+
         public Builder defaultCharset(Charset defaultCharset) {
             this.defaultCharset = defaultCharset;
             return this;
@@ -134,6 +504,96 @@ public class MqttServerServiceOption {
             return this;
         }
 
+        public Builder verifyThreadNumber(Integer verifyThreadNumber) {
+            this.verifyThreadNumber = verifyThreadNumber;
+            return this;
+        }
+
+        public Builder verifyQueueSize(Integer verifyQueueSize) {
+            this.verifyQueueSize = verifyQueueSize;
+            return this;
+        }
+
+        public Builder verifyTimeout(Integer verifyTimeout) {
+            this.verifyTimeout = verifyTimeout;
+            return this;
+        }
+
+        public Builder verifyCacheSize(Integer verifyCacheSize) {
+            this.verifyCacheSize = verifyCacheSize;
+            return this;
+        }
+
+        public Builder verifyCacheTtl(Integer verifyCacheTtl) {
+            this.verifyCacheTtl = verifyCacheTtl;
+            return this;
+        }
+
+        public Builder verifyNegativeCacheTtl(Integer verifyNegativeCacheTtl) {
+            this.verifyNegativeCacheTtl = verifyNegativeCacheTtl;
+            return this;
+        }
+
+        public Builder maxConnectRate(Integer maxConnectRate) {
+            this.maxConnectRate = maxConnectRate;
+            return this;
+        }
+
+        public Builder maxConnectRatePerIp(Integer maxConnectRatePerIp) {
+            this.maxConnectRatePerIp = maxConnectRatePerIp;
+            return this;
+        }
+
+        public Builder maxPendingConnects(Integer maxPendingConnects) {
+            this.maxPendingConnects = maxPendingConnects;
+            return this;
+        }
+
+        public Builder maxInboundMessageRate(Integer maxInboundMessageRate) {
+            this.maxInboundMessageRate = maxInboundMessageRate;
+            return this;
+        }
+
+        public Builder maxInboundByteRate(Long maxInboundByteRate) {
+            this.maxInboundByteRate = maxInboundByteRate;
+            return this;
+        }
+
+        public Builder quotaAction(MqttQuotaAction quotaAction) {
+            this.quotaAction = quotaAction;
+            return this;
+        }
+
+        public Builder quotaOverrides(Map<String, MqttQuota> quotaOverrides) {
+            this.quotaOverrides = quotaOverrides;
+            return this;
+        }
+
+        public Builder clusterNodeId(String clusterNodeId) {
+            this.clusterNodeId = clusterNodeId;
+            return this;
+        }
+
+        public Builder clusterPort(Integer clusterPort) {
+            this.clusterPort = clusterPort;
+            return this;
+        }
+
+        public Builder clusterHost(String clusterHost) {
+            this.clusterHost = clusterHost;
+            return this;
+        }
+
+        public Builder clusterSecret(String clusterSecret) {
+            this.clusterSecret = clusterSecret;
+            return this;
+        }
+
+        public Builder clusterNodes(List<String> clusterNodes) {
+            this.clusterNodes = clusterNodes;
+            return this;
+        }
+
         public Builder bossThreadNumber(Integer bossThreadNumber) {
             this.bossThreadNumber = bossThreadNumber;
             return this;
@@ -144,6 +604,16 @@ public class MqttServerServiceOption {
             return this;
         }
 
+        public Builder acceptorNumber(Integer acceptorNumber) {
+            this.acceptorNumber = acceptorNumber;
+            return this;
+        }
+
+        public Builder transport(MqttTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
         public Builder checkOfflineInterval(Integer checkOfflineInterval) {
             this.checkOfflineInterval = checkOfflineInterval;
             return this;
@@ -170,6 +640,162 @@ public class MqttServerServiceOption {
         return maxMessageCount;
     }
 
+    public Integer getDispatchThreadNumber() {
+        if (dispatchThreadNumber == null || dispatchThreadNumber <= 0) {
+            return 1;
+        }
+        if (dispatchThreadNumber > 100) {
+            return 100;
+        }
+        return dispatchThreadNumber;
+    }
+
+    public MqttQueueType getQueueType() {
+        if (queueType == null) {
+            return MqttQueueType.LINKED;
+        }
+        return queueType;
+    }
+
+    public MqttOverflowStrategy getOverflowStrategy() {
+        if (overflowStrategy == null) {
+            return MqttOverflowStrategy.DROP;
+        }
+        return overflowStrategy;
+    }
+
+    public Integer getQueueHighWaterMark() {
+        if (queueHighWaterMark == null || queueHighWaterMark <= 0 || queueHighWaterMark > getMaxMessageCount()) {
+            return getMaxMessageCount() / 10 * 8;
+        }
+        return queueHighWaterMark;
+    }
+
+    public Integer getQueueLowWaterMark() {
+        if (queueLowWaterMark == null || queueLowWaterMark < 0 || queueLowWaterMark > getQueueHighWaterMark()) {
+            return getQueueHighWaterMark() / 8 * 5;
+        }
+        return queueLowWaterMark;
+    }
+
+    public boolean isSubscriptionRouting() {
+        return subscriptionRouting;
+    }
+
+    public Integer getFlushConsolidation() {
+        if (flushConsolidation == null || flushConsolidation <= 0) {
+            return 0;
+        }
+        return flushConsolidation;
+    }
+
+    public WriteBufferWaterMark getWriteBufferWaterMark() {
+        if (writeBufferLowWaterMark == null || writeBufferHighWaterMark == null
+                || writeBufferLowWaterMark <= 0 || writeBufferHighWaterMark < writeBufferLowWaterMark) {
+            return WriteBufferWaterMark.DEFAULT;
+        }
+        return new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+    }
+
+    public Integer getOutboundQueueSize() {
+        if (outboundQueueSize == null || outboundQueueSize <= 0) {
+            return 1000;
+        }
+        return outboundQueueSize;
+    }
+
+    public MqttSlowConsumerPolicy getSlowConsumerPolicy() {
+        if (slowConsumerPolicy == null) {
+            return MqttSlowConsumerPolicy.DROP_OLDEST;
+        }
+        return slowConsumerPolicy;
+    }
+
+    public Integer getInflightWindow() {
+        if (inflightWindow == null || inflightWindow <= 0) {
+            return 32;
+        }
+        //packet id只有65535个
+        if (inflightWindow > 65535) {
+            return 65535;
+        }
+        return inflightWindow;
+    }
+
+    public Integer getRetransmitInterval() {
+        if (retransmitInterval == null) {
+            return 10;
+        }
+        if (retransmitInterval <= 0) {
+            return 0;
+        }
+        return retransmitInterval;
+    }
+
+    public Integer getMaxRetransmit() {
+        if (maxRetransmit == null || maxRetransmit < 0) {
+            return 3;
+        }
+        return maxRetransmit;
+    }
+
+    public String getSessionStoreDir() {
+        if (sessionStoreDir == null || sessionStoreDir.trim().isEmpty()) {
+            return null;
+        }
+        return sessionStoreDir;
+    }
+
+    public Integer getSessionStoreSegmentSize() {
+        if (sessionStoreSegmentSize == null || sessionStoreSegmentSize <= 0) {
+            return 64 * 1024 * 1024;
+        }
+        //至少要放得下一条最大的报文
+        return Math.max(sessionStoreSegmentSize, getMaxBytesInMessage() + 1024);
+    }
+
+    public Integer getMaxOfflineMessages() {
+        if (maxOfflineMessages == null || maxOfflineMessages <= 0) {
+            return 1000;
+        }
+        return maxOfflineMessages;
+    }
+
+    public boolean isRetainAvailable() {
+        return retainAvailable;
+    }
+
+    public Integer getMaxRetainedMessages() {
+        if (maxRetainedMessages == null || maxRetainedMessages <= 0) {
+            return 100000;
+        }
+        return maxRetainedMessages;
+    }
+
+    public Long getMaxRetainedBytes() {
+        if (maxRetainedBytes == null || maxRetainedBytes <= 0) {
+            return 64L * 1024 * 1024;
+        }
+        return maxRetainedBytes;
+    }
+
+    public String getRetainedSnapshotFile() {
+        if (retainedSnapshotFile == null || retainedSnapshotFile.trim().isEmpty()) {
+            return null;
+        }
+        return retainedSnapshotFile;
+    }
+
+    public Integer getRetainedSnapshotInterval() {
+        if (retainedSnapshotInterval == null) {
+            return 60;
+        }
+        if (retainedSnapshotInterval <= 0) {
+            return 0;
+        }
+        return retainedSnapshotInterval;
+    }
+
     public Charset getDefaultCharset() {
         if (defaultCharset == null) {
             return StandardCharsets.UTF_8;
@@ -189,6 +815,130 @@ public class MqttServerServiceOption {
         return verifyListener;
     }
 
+    public Integer getVerifyThreadNumber() {
+        if (verifyThreadNumber == null || verifyThreadNumber <= 0) {
+            return 4;
+        }
+        if (verifyThreadNumber > 100) {
+            return 100;
+        }
+        return verifyThreadNumber;
+    }
+
+    public Integer getVerifyQueueSize() {
+        if (verifyQueueSize == null || verifyQueueSize <= 0) {
+            return 10000;
+        }
+        return verifyQueueSize;
+    }
+
+    public Integer getVerifyTimeout() {
+        if (verifyTimeout == null || verifyTimeout <= 0) {
+            return 10;
+        }
+        return verifyTimeout;
+    }
+
+    public Integer getVerifyCacheSize() {
+        if (verifyCacheSize == null || verifyCacheSize <= 0) {
+            return 0;
+        }
+        return verifyCacheSize;
+    }
+
+    public Integer getVerifyCacheTtl() {
+        if (verifyCacheTtl == null || verifyCacheTtl <= 0) {
+            return 300;
+        }
+        return verifyCacheTtl;
+    }
+
+    public Integer getVerifyNegativeCacheTtl() {
+        if (verifyNegativeCacheTtl == null) {
+            return 30;
+        }
+        if (verifyNegativeCacheTtl <= 0) {
+            return 0;
+        }
+        return verifyNegativeCacheTtl;
+    }
+
+    public Integer getMaxConnectRate() {
+        if (maxConnectRate == null || maxConnectRate <= 0) {
+            return 0;
+        }
+        return maxConnectRate;
+    }
+
+    public Integer getMaxConnectRatePerIp() {
+        if (maxConnectRatePerIp == null || maxConnectRatePerIp <= 0) {
+            return 0;
+        }
+        return maxConnectRatePerIp;
+    }
+
+    public Integer getMaxPendingConnects() {
+        if (maxPendingConnects == null || maxPendingConnects <= 0) {
+            return 0;
+        }
+        return maxPendingConnects;
+    }
+
+    /**
+     * 缺省的配额，由maxInboundMessageRate和maxInboundByteRate组成
+     */
+    public MqttQuota getDefaultQuota() {
+        int messages = maxInboundMessageRate == null ? 0 : maxInboundMessageRate;
+        long bytes = maxInboundByteRate == null ? 0 : maxInboundByteRate;
+        return new MqttQuota(messages, bytes);
+    }
+
+    public MqttQuotaAction getQuotaAction() {
+        if (quotaAction == null) {
+            return MqttQuotaAction.THROTTLE;
+        }
+        return quotaAction;
+    }
+
+    public Map<String, MqttQuota> getQuotaOverrides() {
+        if (quotaOverrides == null) {
+            return Collections.emptyMap();
+        }
+        return quotaOverrides;
+    }
+
+    public String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    public Integer getClusterPort() {
+        if (clusterPort == null || clusterPort <= 0) {
+            return 1884;
+        }
+        return clusterPort;
+    }
+
+    public String getClusterHost() {
+        if (clusterHost == null || clusterHost.trim().isEmpty()) {
+            return null;
+        }
+        return clusterHost;
+    }
+
+    public String getClusterSecret() {
+        if (clusterSecret == null || clusterSecret.isEmpty()) {
+            return null;
+        }
+        return clusterSecret;
+    }
+
+    public List<String> getClusterNodes() {
+        if (clusterNodes == null) {
+            return Collections.emptyList();
+        }
+        return clusterNodes;
+    }
+
     public Integer getBossThreadNumber() {
         if (bossThreadNumber == null) {
             return 1;
@@ -203,16 +953,48 @@ public class MqttServerServiceOption {
         return bossThreadNumber;
     }
 
-    public NioEventLoopGroup getWorkThreadGroup() {
-        //负责接收读写消息的线程组,缺省是cpu的核心*2个数量
+    public Integer getAcceptorNumber() {
+        if (acceptorNumber == null || acceptorNumber <= 0) {
+            return 1;
+        }
+        if (acceptorNumber > 64) {
+            return 64;
+        }
+        return acceptorNumber;
+    }
+
+    public Integer getWorkThreadNumber() {
+        //负责接收读写消息的线程组,缺省(0)是cpu的核心*2个数量
         if (workThreadNumber == null || workThreadNumber <= 0) {
-            return new NioEventLoopGroup();
+            return 0;
         } else if (workThreadNumber > 100) {
             //最大100
-            return new NioEventLoopGroup(100);
+            return 100;
         } else {
-            return new NioEventLoopGroup(workThreadNumber);
+            return workThreadNumber;
+        }
+    }
+
+    /**
+     * 按transport创建负责读写的线程组，可能是epoll、io_uring或者nio
+     */
+    public EventLoopGroup getWorkEventLoopGroup() {
+        return new MqttTransportFactory(getTransport()).newEventLoopGroup(getWorkThreadNumber());
+    }
+
+    /**
+     * @deprecated 总是创建nio线程组，不考虑transport，改用{@link #getWorkEventLoopGroup()}
+     */
+    @Deprecated
+    public NioEventLoopGroup getWorkThreadGroup() {
+        return new NioEventLoopGroup(getWorkThreadNumber());
+    }
+
+    public MqttTransport getTransport() {
+        if (transport == null) {
+            return MqttTransport.AUTO;
         }
+        return transport;
     }
 
     public Integer getCheckOfflineInterval() {
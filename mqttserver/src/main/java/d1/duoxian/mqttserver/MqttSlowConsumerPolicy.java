@@ -0,0 +1,21 @@
+package d1.duoxian.mqttserver;
+
+/**
+ * 客户端接收太慢，发送队列满了以后的处理策略
+ *
+ * @author liuyi
+ */
+public enum MqttSlowConsumerPolicy {
+    /**
+     * 丢弃队列里最早的消息
+     */
+    DROP_OLDEST,
+    /**
+     * 丢弃新的消息
+     */
+    DROP_NEWEST,
+    /**
+     * 断开这个客户端
+     */
+    DISCONNECT
+}
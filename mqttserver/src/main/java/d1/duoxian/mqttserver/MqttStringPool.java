@@ -0,0 +1,42 @@
+package d1.duoxian.mqttserver;
+
+/**
+ * 有界的字符串去重池，用来让大量session共用同一个ip、用户名对象。
+ * 固定大小的数组按hash取槽位，槽位里是相等的字符串就返回它，否则放入新的，冲突时直接覆盖，内存不会增长。
+ * 不加锁：数组元素的读写是原子的，并发时最坏只是少去重一次
+ *
+ * @author liuyi
+ */
+final class MqttStringPool {
+    private final String[] table;
+    private final int mask;
+
+    /**
+     * @param size 槽位数，取不小于它的2的幂
+     */
+    MqttStringPool(int size) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.table = new String[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 返回池里和value相等的对象，没有时把value放进池里并返回它
+     */
+    String dedup(String value) {
+        if (value == null) {
+            return null;
+        }
+        int hash = value.hashCode();
+        int index = (hash ^ (hash >>> 16)) & mask;
+        String cached = table[index];
+        if (value.equals(cached)) {
+            return cached;
+        }
+        table[index] = value;
+        return value;
+    }
+}
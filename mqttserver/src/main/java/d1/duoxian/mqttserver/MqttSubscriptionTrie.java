@@ -0,0 +1,233 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 订阅关系的索引，按topic的层级（以/分隔）组织成一棵树，支持+和#通配符。
+ * 查询不加锁，订阅和取消订阅只锁住经过的节点，空的节点会被及时删除，适合百万级的订阅数量
+ *
+ * @param <T> 订阅者，服务端里是Channel
+ * @author liuyi
+ */
+public class MqttSubscriptionTrie<T> {
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+    private final Node<T> root = new Node<>();
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * 增加一个订阅，同一个订阅者重复订阅同一个filter只更新qos
+     *
+     * @return filter不合法返回false
+     */
+    public boolean subscribe(String filter, T subscriber, MqttQoS qos) {
+        if (!isValidFilter(filter)) {
+            return false;
+        }
+        String[] levels = split(filter);
+        retry:
+        while (true) {
+            Node<T> node = root;
+            for (String level : levels) {
+                synchronized (node) {
+                    if (node.removed) {
+                        continue retry;
+                    }
+                    if (node.children == null) {
+                        node.children = new ConcurrentHashMap<>(4);
+                    }
+                    node = node.children.computeIfAbsent(level, k -> new Node<>());
+                }
+            }
+            synchronized (node) {
+                //节点刚好被并发的取消订阅删除了，从头再来一次
+                if (node.removed) {
+                    continue;
+                }
+                if (node.subscribers == null) {
+                    node.subscribers = new ConcurrentHashMap<>(4);
+                }
+                if (node.subscribers.put(subscriber, qos) == null) {
+                    count.increment();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 取消一个订阅，并删除因此变空的节点
+     */
+    public boolean unsubscribe(String filter, T subscriber) {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        String[] levels = split(filter);
+        List<Node<T>> path = new ArrayList<>(levels.length + 1);
+        Node<T> node = root;
+        path.add(node);
+        for (String level : levels) {
+            Map<String, Node<T>> children = node.children;
+            node = children == null ? null : children.get(level);
+            if (node == null) {
+                return false;
+            }
+            path.add(node);
+        }
+        Map<T, MqttQoS> subscribers = node.subscribers;
+        if (subscribers == null || subscribers.remove(subscriber) == null) {
+            return false;
+        }
+        count.decrement();
+        for (int i = levels.length; i > 0; i--) {
+            Node<T> parent = path.get(i - 1);
+            Node<T> child = path.get(i);
+            synchronized (parent) {
+                synchronized (child) {
+                    if (child.removed || !child.isEmpty()) {
+                        return true;
+                    }
+                    child.removed = true;
+                    parent.children.remove(levels[i - 1], child);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 找出和topic匹配的所有订阅者，同一个订阅者匹配多个filter时只返回一次，qos取最大的
+     */
+    public Map<T, MqttQoS> match(String topic) {
+        if (count.sum() == 0 || topic == null || topic.isEmpty()
+                || topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0) {
+            return Collections.emptyMap();
+        }
+        Map<T, MqttQoS> result = new HashMap<>();
+        match(root, split(topic), 0, topic.charAt(0) == '$', result);
+        return result;
+    }
+
+    /**
+     * 当前订阅的总数
+     */
+    public long size() {
+        return count.sum();
+    }
+
+    /**
+     * 树上除了根节点没有别的节点，测试用来检查取消订阅后空节点都删掉了
+     */
+    boolean isEmpty() {
+        synchronized (root) {
+            return root.isEmpty();
+        }
+    }
+
+    private void match(Node<T> node, String[] levels, int index, boolean systemTopic, Map<T, MqttQoS> result) {
+        Map<String, Node<T>> children = node.children;
+        if (index == levels.length) {
+            collect(node, result);
+            //a/#也匹配a
+            if (children != null) {
+                Node<T> multi = children.get(MULTI_LEVEL);
+                if (multi != null) {
+                    collect(multi, result);
+                }
+            }
+            return;
+        }
+        if (children == null) {
+            return;
+        }
+        //以$开头的topic不能被第一层的通配符匹配
+        if (index > 0 || !systemTopic) {
+            Node<T> multi = children.get(MULTI_LEVEL);
+            if (multi != null) {
+                collect(multi, result);
+            }
+            Node<T> single = children.get(SINGLE_LEVEL);
+            if (single != null) {
+                match(single, levels, index + 1, systemTopic, result);
+            }
+        }
+        Node<T> exact = children.get(levels[index]);
+        if (exact != null) {
+            match(exact, levels, index + 1, systemTopic, result);
+        }
+    }
+
+    private void collect(Node<T> node, Map<T, MqttQoS> result) {
+        Map<T, MqttQoS> subscribers = node.subscribers;
+        if (subscribers == null) {
+            return;
+        }
+        for (Map.Entry<T, MqttQoS> entry : subscribers.entrySet()) {
+            result.merge(entry.getKey(), entry.getValue(), (a, b) -> a.value() >= b.value() ? a : b);
+        }
+    }
+
+    /**
+     * #只能单独出现在最后一层，+只能单独占一层
+     */
+    public static boolean isValidFilter(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        String[] levels = split(filter);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.indexOf('#') >= 0 && (!MULTI_LEVEL.equals(level) || i != levels.length - 1)) {
+                return false;
+            }
+            if (level.indexOf('+') >= 0 && !SINGLE_LEVEL.equals(level)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按/分隔，保留空的层级，例如"/a/"分成"","a",""
+     */
+    static String[] split(String topic) {
+        int size = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                size++;
+            }
+        }
+        String[] levels = new String[size];
+        int start = 0;
+        int index = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                levels[index++] = topic.substring(start, i);
+                start = i + 1;
+            }
+        }
+        levels[index] = topic.substring(start);
+        return levels;
+    }
+
+    private static final class Node<T> {
+        private volatile ConcurrentHashMap<String, Node<T>> children;
+        private volatile ConcurrentHashMap<T, MqttQoS> subscribers;
+        /**
+         * 已经从树上删除，由节点自身的锁保护
+         */
+        private boolean removed;
+
+        private boolean isEmpty() {
+            return (children == null || children.isEmpty()) && (subscribers == null || subscribers.isEmpty());
+        }
+    }
+}
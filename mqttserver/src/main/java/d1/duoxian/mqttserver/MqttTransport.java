@@ -0,0 +1,25 @@
+package d1.duoxian.mqttserver;
+
+/**
+ * 网络传输的实现方式
+ *
+ * @author liuyi
+ */
+public enum MqttTransport {
+    /**
+     * linux下有epoll就用epoll，否则用nio
+     */
+    AUTO,
+    /**
+     * java nio，所有平台都支持
+     */
+    NIO,
+    /**
+     * linux原生epoll，边缘触发，比nio更少的内存分配和系统调用
+     */
+    EPOLL,
+    /**
+     * linux io_uring，需要内核5.9以上，并且自己引入io.netty.incubator:netty-incubator-transport-native-io_uring
+     */
+    IO_URING
+}
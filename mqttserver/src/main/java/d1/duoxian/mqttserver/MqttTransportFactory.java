@@ -0,0 +1,149 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 根据MqttTransport创建对应的EventLoopGroup和ServerChannel，原生的库不可用时退回到nio。
+ * io_uring还在netty的incubator里，没有直接依赖，通过反射加载
+ *
+ * @author liuyi
+ */
+public class MqttTransportFactory {
+    private static final Logger logger = LoggerFactory.getLogger(MqttTransportFactory.class);
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+    private final MqttTransport transport;
+
+    public MqttTransportFactory(MqttTransport requested) {
+        this.transport = resolve(requested == null ? MqttTransport.AUTO : requested);
+        logger.info("mqtt server transport={},requested={}", transport, requested);
+    }
+
+    /**
+     * 实际使用的传输方式
+     */
+    public MqttTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param threads 线程数，0表示netty的缺省值（cpu的核心*2）
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        switch (transport) {
+            case EPOLL:
+                return new EpollEventLoopGroup(threads);
+            case IO_URING:
+                try {
+                    return (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup")
+                            .getConstructor(int.class).newInstance(threads);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("create io_uring event loop group failed", e);
+                }
+            case NIO:
+            default:
+                return new NioEventLoopGroup(threads);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Class<? extends ServerChannel> getServerChannelClass() {
+        switch (transport) {
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            case IO_URING:
+                try {
+                    return (Class<? extends ServerChannel>) Class.forName(IO_URING_PACKAGE + "IOUringServerSocketChannel");
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("io_uring server channel not found", e);
+                }
+            case NIO:
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+
+    /**
+     * 主动连接其它服务时使用的通道类型，和getServerChannelClass对应
+     */
+    @SuppressWarnings("unchecked")
+    public Class<? extends Channel> getChannelClass() {
+        switch (transport) {
+            case EPOLL:
+                return EpollSocketChannel.class;
+            case IO_URING:
+                try {
+                    return (Class<? extends Channel>) Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel");
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("io_uring channel not found", e);
+                }
+            case NIO:
+            default:
+                return NioSocketChannel.class;
+        }
+    }
+
+    /**
+     * 设置SO_REUSEPORT，允许多个监听socket绑定同一个端口，目前只支持epoll
+     *
+     * @return 不支持时返回false，没有修改bootstrap
+     */
+    public boolean enableReusePort(ServerBootstrap bootstrap) {
+        if (transport != MqttTransport.EPOLL) {
+            return false;
+        }
+        bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        return true;
+    }
+
+    private static MqttTransport resolve(MqttTransport requested) {
+        switch (requested) {
+            case IO_URING:
+                if (isIoUringAvailable()) {
+                    return MqttTransport.IO_URING;
+                }
+                logger.warn("io_uring is not available,fall back");
+                return resolve(MqttTransport.AUTO);
+            case EPOLL:
+                if (isEpollAvailable()) {
+                    return MqttTransport.EPOLL;
+                }
+                logger.warn("epoll is not available,fall back to nio");
+                return MqttTransport.NIO;
+            case AUTO:
+                return isEpollAvailable() ? MqttTransport.EPOLL : MqttTransport.NIO;
+            case NIO:
+            default:
+                return MqttTransport.NIO;
+        }
+    }
+
+    private static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (Throwable e) {
+            //netty-transport-classes-epoll不在classpath里
+            return false;
+        }
+    }
+
+    private static boolean isIoUringAvailable() {
+        try {
+            return (Boolean) Class.forName(IO_URING_PACKAGE + "IOUring").getMethod("isAvailable").invoke(null);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
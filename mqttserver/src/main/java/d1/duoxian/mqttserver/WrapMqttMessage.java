@@ -1,5 +1,7 @@
 package d1.duoxian.mqttserver;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.function.Function;
 
 /**
@@ -10,6 +12,14 @@ import java.util.function.Function;
 public class WrapMqttMessage extends CustomMqttPublishMessage {
     private String clientIp;
     private Function<CustomMqttPublishMessage, Boolean> publisher;
+    /**
+     * 未转换成字符串的消息正文，已经retain过，处理完后要release
+     */
+    private ByteBuf payload;
+    /**
+     * 收到消息时的System.nanoTime()，用来统计在队列里等待的时间
+     */
+    private long receivedNanos = System.nanoTime();
 
     public WrapMqttMessage(String clientIp, String channelId, String topic, String content, Function<CustomMqttPublishMessage, Boolean> publisher) {
         super(channelId, topic, content);
@@ -17,6 +27,29 @@ public class WrapMqttMessage extends CustomMqttPublishMessage {
         this.publisher = publisher;
     }
 
+    public WrapMqttMessage(String clientIp, String channelId, String topic, ByteBuf payload, Function<CustomMqttPublishMessage, Boolean> publisher) {
+        super(channelId, topic, null);
+        this.clientIp = clientIp;
+        this.publisher = publisher;
+        this.payload = payload;
+    }
+
+    public ByteBuf getPayload() {
+        return payload;
+    }
+
+    public void setPayload(ByteBuf payload) {
+        this.payload = payload;
+    }
+
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
     public String getClientIp() {
         return clientIp;
     }
@@ -32,4 +65,18 @@ public class WrapMqttMessage extends CustomMqttPublishMessage {
     public void setPublisher(Function<CustomMqttPublishMessage, Boolean> publisher) {
         this.publisher = publisher;
     }
+
+    /**
+     * 二进制正文没有content，只打印正文的字节数，不转换成字符串
+     */
+    @Override
+    public String toString() {
+        if (getContent() != null) {
+            return super.toString();
+        }
+        return "\n{\n" +
+                "   topic='" + getTopic() + '\'' +
+                ",\n   payload=" + (payload == null ? "null" : payload.readableBytes() + " bytes") +
+                "\n}";
+    }
 }
@@ -0,0 +1,216 @@
+package d1.duoxian.mqttserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 多个线程同时上线、下线同一批uuid，检查clientsMap、通道索引和活跃时间索引始终一致。
+ * 模拟基站掉线后设备集中重连：旧通道的offline可能在新通道的online之后才执行，不能把新通道的session删掉
+ *
+ * @author liuyi
+ */
+public class ClientSessionManagerTest {
+    private static final int THREADS = 8;
+    private static final int UUIDS = 64;
+    private static final int ROUNDS = 20000;
+
+    /**
+     * 每个线程反复让随机的uuid在自己的新通道上线，再让这个通道下线。
+     * 所有通道最后都下线了，注册表必须为空，不能有残留的session，也不能有被误删后又加回来的通道
+     */
+    @Test
+    public void onlineOfflineRaceLeavesNoSession() throws Exception {
+        ClientSessionManager manager = new ClientSessionManager();
+        run(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < ROUNDS; i++) {
+                String uuid = "device-" + random.nextInt(UUIDS);
+                String channelId = MqttChannelId.toText(MqttChannelId.next());
+                manager.online("10.0.0.1", channelId, null, uuid, "user", true);
+                //别的线程上这个uuid的session可能正在下线，收到报文移动索引不能把它加回去
+                ClientSession session = manager.getSessionByUuid(uuid);
+                if (session != null) {
+                    manager.touch(session, System.currentTimeMillis() + random.nextInt(5000));
+                }
+                if (random.nextBoolean()) {
+                    //模拟同一个通道触发两次offline
+                    manager.offline(channelId);
+                }
+                manager.offline(channelId);
+            }
+        });
+        assertTrue(manager.getClientsMap().isEmpty());
+        assertTrue(manager.getChannelsMap().isEmpty());
+        assertTrue(manager.getIdleSessions(-TimeUnit.MINUTES.toMillis(1)).isEmpty());
+    }
+
+    /**
+     * 同一个uuid在多个通道上同时上线，只下线其中一部分。
+     * 每个uuid最多只能有一个session，session当前的通道能查到它，被顶替的通道查不到
+     */
+    @Test
+    public void takeoverKeepsOneChannelPerUuid() throws Exception {
+        ClientSessionManager manager = new ClientSessionManager();
+        List<List<String>> channels = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            channels.add(new ArrayList<>());
+        }
+        int[] thread = new int[1];
+        run(() -> {
+            List<String> own;
+            synchronized (thread) {
+                own = channels.get(thread[0]++);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < ROUNDS; i++) {
+                String uuid = "device-" + random.nextInt(UUIDS);
+                String channelId = MqttChannelId.toText(MqttChannelId.next());
+                manager.online("10.0.0.1", channelId, null, uuid, "user", true);
+                if (random.nextInt(4) == 0) {
+                    manager.offline(channelId);
+                } else {
+                    own.add(channelId);
+                }
+            }
+        });
+        assertTrue(manager.getClientsMap().size() <= UUIDS);
+        assertEquals(manager.getClientsMap().size(), manager.getChannelsMap().size());
+        for (ClientSession session : manager.getClientsMap().values()) {
+            assertSame(session, manager.getSessionByChannelId(session.getChannelId()));
+            assertSame(session, manager.getSessionByUuid(session.getUuid()));
+        }
+        int current = 0;
+        for (List<String> own : channels) {
+            for (String channelId : own) {
+                ClientSession session = manager.getSessionByChannelId(channelId);
+                if (session != null) {
+                    assertEquals(channelId, session.getChannelId());
+                    current++;
+                }
+            }
+        }
+        assertEquals(manager.getClientsMap().size(), current);
+        assertEquals(manager.getClientsMap().size(), manager.getIdleSessions(-TimeUnit.MINUTES.toMillis(1)).size());
+    }
+
+    /**
+     * 收到报文时跨过时间段就移动索引，查询空闲设备只按最后活跃时间判断，下线的设备不再出现
+     */
+    @Test
+    public void idleSessionsFollowTouch() {
+        AtomicLong now = new AtomicLong(TimeUnit.DAYS.toMillis(1));
+        ClientSessionManager manager = new ClientSessionManager(now::get);
+        for (String uuid : new String[]{"a", "b", "c", "d"}) {
+            manager.online("10.0.0.1", MqttChannelId.toText(MqttChannelId.next()), null, uuid, "user", true);
+        }
+        now.addAndGet(TimeUnit.MINUTES.toMillis(10));
+        manager.touch(manager.getSessionByUuid("b"), now.get());
+        manager.offline(manager.getSessionByUuid("d").getChannelId());
+        assertEquals(uuids("a", "c"), uuids(manager.getIdleSessions(TimeUnit.MINUTES.toMillis(5))));
+        //同一段里的报文只更新时间
+        now.addAndGet(100);
+        manager.touch(manager.getSessionByUuid("b"), now.get());
+        now.addAndGet(TimeUnit.MINUTES.toMillis(6));
+        manager.touch(manager.getSessionByUuid("a"), now.get());
+        assertEquals(uuids("b", "c"), uuids(manager.getIdleSessions(TimeUnit.MINUTES.toMillis(5))));
+        assertEquals(uuids("c"), uuids(manager.getIdleSessions(TimeUnit.MINUTES.toMillis(15))));
+        assertTrue(manager.getIdleSessions(TimeUnit.HOURS.toMillis(1)).isEmpty());
+        //重新上线的设备按上线时间重新计算
+        manager.online("10.0.0.1", MqttChannelId.toText(MqttChannelId.next()), null, "c", "user", true);
+        assertEquals(uuids("b"), uuids(manager.getIdleSessions(TimeUnit.MINUTES.toMillis(5))));
+    }
+
+    /**
+     * 换通道后旧通道id查不到，两个视图和forEachSession都只看到一次；相等的ip和用户名共用同一个对象
+     */
+    @Test
+    public void registryFollowsChannelAndDedupsStrings() {
+        ClientSessionManager manager = new ClientSessionManager();
+        String first = MqttChannelId.toText(MqttChannelId.next());
+        String second = MqttChannelId.toText(MqttChannelId.next());
+        manager.online(new String("10.0.0.1"), first, null, "a", new String("user"), true);
+        manager.online(new String("10.0.0.1"), MqttChannelId.toText(MqttChannelId.next()), null, "b", new String("user"), true);
+        ClientSession a = manager.getSessionByUuid("a");
+        ClientSession b = manager.getSessionByUuid("b");
+        assertSame(a.getIp(), b.getIp());
+        assertSame(a.getUsername(), b.getUsername());
+
+        manager.online("10.0.0.2", second, null, "a", "user", false);
+        assertSame(a, manager.getSessionByUuid("a"));
+        assertEquals(second, a.getChannelId());
+        assertNull(manager.getSessionByChannelId(first));
+        assertNull(manager.getChannel(first));
+        assertSame(a, manager.getChannelsMap().get(second));
+        assertFalse(manager.getChannelsMap().containsKey(first));
+        assertTrue(manager.getClientsMap().containsKey("a"));
+        assertEquals(2, manager.getClientsMap().size());
+        assertEquals(uuids("a", "b"), manager.getClientsMap().keySet());
+        Set<String> channelIds = new HashSet<>(manager.getChannelsMap().keySet());
+        assertEquals(2, channelIds.size());
+        assertTrue(channelIds.contains(second));
+        List<ClientSession> visited = new ArrayList<>();
+        manager.forEachSession(visited::add);
+        assertEquals(uuids("a", "b"), uuids(visited));
+
+        //旧通道的offline不影响新通道
+        manager.offline(first);
+        assertSame(a, manager.getSessionByUuid("a"));
+        manager.offline(second);
+        assertNull(manager.getSessionByUuid("a"));
+        assertFalse(manager.getClientsMap().containsKey("a"));
+        assertEquals(1, manager.getChannelsMap().size());
+    }
+
+    private static Set<String> uuids(String... uuids) {
+        Set<String> set = new HashSet<>();
+        for (String uuid : uuids) {
+            set.add(uuid);
+        }
+        return set;
+    }
+
+    private static Set<String> uuids(List<ClientSession> sessions) {
+        Set<String> set = new HashSet<>();
+        for (ClientSession session : sessions) {
+            assertTrue(set.add(session.getUuid()), "duplicate " + session.getUuid());
+        }
+        return set;
+    }
+
+    /**
+     * 所有线程同时开始执行task，等全部结束，有异常时抛出
+     */
+    private static void run(Runnable task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    task.run();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package d1.duoxian.mqttserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 环形队列的容量、满队列、绕圈，以及多个生产者同时放入时不丢、不重、每个生产者内部保持顺序
+ *
+ * @author liuyi
+ */
+public class MpscRingBufferTest {
+    private static final int PRODUCERS = 8;
+    private static final int PER_PRODUCER = 100000;
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        MpscRingBuffer<Integer> queue = new MpscRingBuffer<>(5);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(8));
+        assertEquals(8, queue.size());
+    }
+
+    @Test
+    public void fifoAcrossManyWraps() {
+        MpscRingBuffer<Integer> queue = new MpscRingBuffer<>(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 1000; round++) {
+            while (queue.offer(next)) {
+                next++;
+            }
+            assertEquals(4, queue.size());
+            //每圈只取一部分，让头尾落在数组的不同位置
+            for (int i = 0; i < 1 + round % 4; i++) {
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+            }
+        }
+        Integer e;
+        while ((e = queue.poll()) != null) {
+            assertEquals(Integer.valueOf(expected++), e);
+        }
+        assertEquals(next, expected);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void pollOnEmptyReturnsNull() {
+        MpscRingBuffer<String> queue = new MpscRingBuffer<>(2);
+        assertNull(queue.poll());
+        queue.offer("a");
+        assertEquals("a", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void drainRespectsLimit() throws Exception {
+        MpscRingBuffer<Integer> queue = new MpscRingBuffer<>(16);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i);
+        }
+        List<Integer> batch = new ArrayList<>();
+        assertEquals(4, queue.drain(batch::add, 4));
+        assertEquals(6, queue.drain(batch::add, 100));
+        assertEquals(10, batch.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), batch.get(i));
+        }
+    }
+
+    /**
+     * 消费者在空队列上park，生产者放入后必须把它唤醒
+     */
+    @Test
+    public void drainWakesUpOnOffer() throws Exception {
+        MpscRingBuffer<String> queue = new MpscRingBuffer<>(4);
+        AtomicReference<String> received = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            try {
+                queue.drain(received::set, 1);
+                done.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        assertNull(received.get());
+        queue.offer("hello");
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("hello", received.get());
+    }
+
+    @Test
+    public void drainThrowsWhenInterrupted() throws Exception {
+        MpscRingBuffer<String> queue = new MpscRingBuffer<>(4);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                queue.drain(e -> {
+                }, 1);
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        consumer.interrupt();
+        consumer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(consumer.isAlive());
+        assertTrue(error.get() instanceof InterruptedException);
+    }
+
+    /**
+     * 多个生产者往一个小队列里挤，满了就重试，消费者一边取一边检查：
+     * 每个生产者的序号必须连续递增，最后总数一个不少
+     */
+    @Test
+    public void multipleProducersLoseNothing() throws Exception {
+        MpscRingBuffer<long[]> queue = new MpscRingBuffer<>(64);
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < PRODUCERS; p++) {
+                long producer = p;
+                futures.add(executor.submit(() -> {
+                    for (long i = 0; i < PER_PRODUCER; i++) {
+                        long[] e = {producer, i};
+                        while (!queue.offer(e)) {
+                            Thread.yield();
+                        }
+                    }
+                }));
+            }
+            long[] expected = new long[PRODUCERS];
+            int received = 0;
+            while (received < PRODUCERS * PER_PRODUCER) {
+                received += queue.drain(e -> {
+                    assertEquals(expected[(int) e[0]]++, e[1]);
+                }, 256);
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+            for (long count : expected) {
+                assertEquals(PER_PRODUCER, count);
+            }
+            assertNull(queue.poll());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
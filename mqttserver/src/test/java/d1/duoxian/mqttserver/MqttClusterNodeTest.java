@@ -0,0 +1,322 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttConnectPayload;
+import io.netty.handler.codec.mqtt.MqttConnectVariableHeader;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPubAckMessage;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 在本机启动3个集群节点，用MQTT客户端连接：转发publishToUuid、设备离线时消息存在原来的节点、
+ * 重连到其它节点时迁移离线消息、同一个uuid连到另一个节点时断开旧连接，以及晚到的旧上线通知不会顶替新的连接
+ *
+ * @author liuyi
+ */
+public class MqttClusterNodeTest {
+    private static final int NODES = 3;
+    private static final String SECRET = "test-secret";
+    private final List<MqttServerService> servers = new ArrayList<>();
+    private final List<File> dirs = new ArrayList<>();
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private EventLoopGroup group;
+    private int basePort;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        basePort = 20000 + ThreadLocalRandom.current().nextInt(20000);
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            nodes.add("127.0.0.1:" + clusterPort(i));
+        }
+        for (int i = 0; i < NODES; i++) {
+            File dir = Files.createTempDirectory("cluster").toFile();
+            dirs.add(dir);
+            MqttServerServiceOption option = new MqttServerServiceOption.Builder()
+                    .port(basePort + i)
+                    .messageListener(new Listener())
+                    .sessionStoreDir(dir.getPath())
+                    .clusterNodeId("node" + i)
+                    .clusterHost("127.0.0.1")
+                    .clusterPort(clusterPort(i))
+                    .clusterSecret(SECRET)
+                    .clusterNodes(nodes)
+                    .build();
+            MqttServerService server = new MqttServerService();
+            servers.add(server);
+            new Thread(() -> server.startup(option)).start();
+        }
+        await(() -> {
+            for (MqttServerService server : servers) {
+                if (server.getCluster() == null || server.getCluster().getConnectedNodes().size() != NODES - 1) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        group = new NioEventLoopGroup(1);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (group != null) {
+            group.shutdownGracefully();
+        }
+        for (MqttServerService server : servers) {
+            server.close();
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void publishForwardedToOwner() throws Exception {
+        connect(0, "dev1", true);
+        await(() -> "node0".equals(cluster(2).getOwner("dev1")) && "node0".equals(cluster(1).getOwner("dev1")));
+        assertNull(cluster(0).getOwner("dev1"));
+        assertTrue(server(2).publishToUuid("dev1", "cmd", "hello", MqttQoS.AT_LEAST_ONCE).get(5, TimeUnit.SECONDS));
+        assertEquals("hello", received.poll(5, TimeUnit.SECONDS));
+        assertEquals(1L, cluster(2).getForwardedCount());
+    }
+
+    /**
+     * 持久会话离线后，其它节点的消息转到原来的节点保存；设备重连到另一个节点时消息迁移过去并收到
+     */
+    @Test
+    public void offlineMessagesStoredAtOwnerAndHandedOff() throws Exception {
+        Channel first = connect(0, "dev1", false);
+        await(() -> "node0".equals(cluster(1).getOwner("dev1")));
+        first.close().sync();
+        await(() -> server(0).getClientSessionManager().getSessionByUuid("dev1") == null);
+        assertTrue(server(1).publishToUuid("dev1", "cmd", "stored", MqttQoS.AT_LEAST_ONCE).get(5, TimeUnit.SECONDS));
+        assertEquals(1, server(0).getOfflineStore().size("dev1"));
+
+        connect(1, "dev1", false);
+        assertEquals("stored", received.poll(5, TimeUnit.SECONDS));
+        await(() -> server(0).getOfflineStore().size("dev1") == 0 && !server(0).getOfflineStore().isPersistent("dev1"));
+        assertEquals(1L, cluster(0).getHandedOffCount());
+        assertEquals("node1", cluster(0).getOwner("dev1"));
+        assertEquals("node1", cluster(2).getOwner("dev1"));
+    }
+
+    @Test
+    public void duplicateConnectKicksOldNode() throws Exception {
+        Channel old = connect(0, "dev2", true);
+        await(() -> "node0".equals(cluster(2).getOwner("dev2")));
+        Channel current = connect(2, "dev2", true);
+        await(() -> !old.isActive());
+        assertTrue(current.isActive());
+        await(() -> "node2".equals(cluster(0).getOwner("dev2")) && "node2".equals(cluster(1).getOwner("dev2")));
+        await(() -> server(0).getClientSessionManager().getSessionByUuid("dev2") == null);
+
+        //clean session下线后所有节点都删除
+        current.close().sync();
+        await(() -> cluster(0).getOwner("dev2") == null && cluster(1).getOwner("dev2") == null);
+        assertFalse(server(1).publishToUuid("dev2", "cmd", "x", MqttQoS.AT_LEAST_ONCE).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 一个节点发来的上线通知比已知的旧（epoch更小），不能断开新的连接，也不能改变uuid所在的节点
+     */
+    @Test
+    public void staleOnlineIgnored() throws Exception {
+        Channel device = connect(1, "dev3", true);
+        await(() -> "node1".equals(cluster(0).getOwner("dev3")));
+        try (Peer peer = new Peer("node9", clusterPort(1)); Peer other = new Peer("node9", clusterPort(0))) {
+            peer.online("dev3", 1);
+            other.online("dev3", 1);
+            //同一个连接上的报文按顺序处理，这条处理完前一条也处理完了
+            peer.online("dev4", 1);
+            other.online("dev4", 1);
+            await(() -> "node9".equals(cluster(1).getOwner("dev4")) && "node9".equals(cluster(0).getOwner("dev4")));
+            assertTrue(device.isActive());
+            assertNull(cluster(1).getOwner("dev3"));
+            assertEquals("node1", cluster(0).getOwner("dev3"));
+
+            //比当前更新的上线会断开
+            peer.online("dev3", Long.MAX_VALUE);
+            await(() -> !device.isActive());
+            assertEquals("node9", cluster(1).getOwner("dev3"));
+        }
+    }
+
+    private MqttServerService server(int index) {
+        return servers.get(index);
+    }
+
+    private MqttClusterNode cluster(int index) {
+        return servers.get(index).getCluster();
+    }
+
+    private int clusterPort(int index) {
+        return basePort + 10 + index;
+    }
+
+    /**
+     * 连接第index个节点，收到的PUBLISH放进received并回复PUBACK，等到节点上线了这个uuid才返回
+     */
+    private Channel connect(int index, String clientId, boolean cleanSession) throws Exception {
+        Channel channel = new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE, new SimpleChannelInboundHandler<MqttMessage>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, MqttMessage message) {
+                                if (message.fixedHeader().messageType() != MqttMessageType.PUBLISH) {
+                                    return;
+                                }
+                                MqttPublishMessage publish = (MqttPublishMessage) message;
+                                received.add(publish.payload().toString(StandardCharsets.UTF_8));
+                                ctx.writeAndFlush(new MqttPubAckMessage(
+                                        new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 2),
+                                        MqttMessageIdVariableHeader.from(publish.variableHeader().packetId())));
+                            }
+                        });
+                    }
+                })
+                .connect("127.0.0.1", basePort + index).sync().channel();
+        channel.writeAndFlush(new MqttConnectMessage(
+                new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, cleanSession, 60),
+                new MqttConnectPayload(clientId, null, (byte[]) null, "user", "password".getBytes(StandardCharsets.UTF_8))));
+        await(() -> {
+            ClientSession session = server(index).getClientSessionManager().getSessionByUuid(clientId);
+            return session != null && session.getChannel() != null && session.getChannel().isActive();
+        });
+        return channel;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("condition not met in 10 seconds");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * 按集群协议连接一个节点的假节点，完成握手后可以发送任意的上线通知
+     */
+    private static final class Peer implements AutoCloseable {
+        private final Socket socket;
+        private final DataOutputStream out;
+
+        private Peer(String nodeId, int port) throws Exception {
+            socket = new Socket("127.0.0.1", port);
+            out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] challenge = new byte[in.readInt()];
+            in.readFully(challenge);
+            assertEquals(7, challenge[0]);
+            //对方只校验自己的随机数，这里发一个全0的
+            send(new byte[]{7, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(challenge, 1, challenge.length - 1);
+            byte[] signature = mac.doFinal(nodeId.getBytes(StandardCharsets.UTF_8));
+            byte[] id = nodeId.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream hello = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(hello);
+            data.writeByte(1);
+            data.writeShort(id.length);
+            data.write(id);
+            data.write(signature);
+            send(hello.toByteArray());
+            byte[] reply = new byte[in.readInt()];
+            in.readFully(reply);
+            assertEquals(1, reply[0]);
+        }
+
+        private void online(String uuid, long epoch) throws IOException {
+            byte[] id = uuid.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(frame);
+            data.writeByte(2);
+            data.writeShort(id.length);
+            data.write(id);
+            data.writeBoolean(false);
+            data.writeLong(epoch);
+            send(frame.toByteArray());
+        }
+
+        private void send(byte[] frame) throws IOException {
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static final class Listener implements IMqttMessageListener {
+        @Override
+        public void offline(String uuid, ClientSession session) {
+        }
+
+        @Override
+        public void onMessage(String ip, String channelId, String topic, String message, Function<CustomMqttPublishMessage, Boolean> publisher) {
+        }
+
+        @Override
+        public void online(String uuid, ClientSession session) {
+        }
+
+        @Override
+        public String clientIdToUuid(String clientId) {
+            return clientId;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package d1.duoxian.mqttserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 令牌桶的突发容量、按时间补充、超大消息、欠配额的等待时间。
+ * 速率取得很低，测试里紧挨着的几次调用之间补充的令牌可以忽略
+ *
+ * @author liuyi
+ */
+public class MqttInboundQuotaTest {
+
+    @Test
+    public void burstUpToOneSecondOfMessages() {
+        MqttInboundQuota quota = new MqttInboundQuota(new MqttQuota(5, 0));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(quota.tryAcquire(1000000));
+        }
+        assertFalse(quota.tryAcquire(1));
+    }
+
+    @Test
+    public void refillsOverTime() throws Exception {
+        MqttInboundQuota quota = new MqttInboundQuota(new MqttQuota(5, 0));
+        for (int i = 0; i < 5; i++) {
+            quota.tryAcquire(1);
+        }
+        assertFalse(quota.tryAcquire(1));
+        //每200毫秒补充一个
+        Thread.sleep(300);
+        assertTrue(quota.tryAcquire(1));
+        assertFalse(quota.tryAcquire(1));
+    }
+
+    @Test
+    public void byteQuota() {
+        MqttInboundQuota quota = new MqttInboundQuota(new MqttQuota(0, 100));
+        assertTrue(quota.tryAcquire(60));
+        assertFalse(quota.tryAcquire(60));
+        //不够时不扣除，小一点的还能通过
+        assertTrue(quota.tryAcquire(40));
+        assertFalse(quota.tryAcquire(1));
+    }
+
+    @Test
+    public void oversizedMessagePassesOnlyWhenBucketFull() {
+        MqttInboundQuota quota = new MqttInboundQuota(new MqttQuota(0, 100));
+        assertTrue(quota.tryAcquire(1000));
+        //桶已经欠了900字节，要等9秒
+        assertFalse(quota.tryAcquire(1000));
+        assertFalse(quota.tryAcquire(1));
+        long wait = quota.waitNanos();
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(8900) && wait <= TimeUnit.SECONDS.toNanos(9), "wait=" + wait);
+    }
+
+    @Test
+    public void acquireReportsDebt() throws Exception {
+        MqttInboundQuota quota = new MqttInboundQuota(new MqttQuota(10, 0));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, quota.acquire(1));
+        }
+        long wait = quota.acquire(1);
+        //欠一条，按每秒10条要等大约100毫秒
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(50) && wait <= TimeUnit.MILLISECONDS.toNanos(100), "wait=" + wait);
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(wait) + 20);
+        assertEquals(0L, quota.waitNanos());
+    }
+
+    @Test
+    public void debtTakesLongerOfMessagesAndBytes() {
+        MqttInboundQuota quota = new MqttInboundQuota(new MqttQuota(10, 1000));
+        long wait = quota.acquire(3000);
+        //消息数没有超，字节数欠2000，按每秒1000字节要等大约2秒
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(1900) && wait <= TimeUnit.SECONDS.toNanos(2), "wait=" + wait);
+        assertFalse(quota.tryAcquire(1));
+    }
+
+    @Test
+    public void unlimitedNeverBlocks() {
+        MqttInboundQuota quota = new MqttInboundQuota(new MqttQuota(0, 0));
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(quota.tryAcquire(1 << 20));
+            assertEquals(0L, quota.acquire(1 << 20));
+        }
+        assertEquals(0L, quota.waitNanos());
+    }
+}
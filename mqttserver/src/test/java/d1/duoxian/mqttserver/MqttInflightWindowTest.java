@@ -0,0 +1,292 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 发送窗口的packet id分配和回绕、排队、QoS1/QoS2的确认流程和超时重发。
+ * 用EmbeddedChannel收集写出的报文，重发的定时任务由测试手动触发
+ *
+ * @author liuyi
+ */
+public class MqttInflightWindowTest {
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+    private final ManualTimer timer = new ManualTimer();
+
+    @AfterEach
+    public void tearDown() {
+        Object message;
+        while ((message = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(message);
+        }
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void qos1AckCompletesFuture() {
+        MqttInflightWindow window = window(4, 10, 0, 0);
+        ByteBuf payload = payload();
+        CompletableFuture<Boolean> future = window.offer("a/b", MqttQoS.AT_LEAST_ONCE, payload);
+        MqttPublishMessage publish = readPublish();
+        assertEquals("a/b", publish.variableHeader().topicName());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, publish.fixedHeader().qosLevel());
+        assertFalse(publish.fixedHeader().isDup());
+        int packetId = publish.variableHeader().packetId();
+        publish.release();
+        assertFalse(future.isDone());
+        window.ack(packetId);
+        assertTrue(future.join());
+        assertEquals(0, payload.refCnt());
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void qos2FlowReleasesPayloadOnPubrec() {
+        MqttInflightWindow window = window(4, 10, 0, 0);
+        ByteBuf payload = payload();
+        CompletableFuture<Boolean> future = window.offer("a/b", MqttQoS.EXACTLY_ONCE, payload);
+        MqttPublishMessage publish = readPublish();
+        int packetId = publish.variableHeader().packetId();
+        publish.release();
+        //QoS2的消息收到PUBACK和提前到达的PUBCOMP都不算确认
+        window.ack(packetId);
+        window.complete(packetId);
+        assertFalse(future.isDone());
+        window.received(packetId);
+        assertEquals(packetId, readPubrel(false));
+        assertEquals(0, payload.refCnt());
+        assertFalse(future.isDone());
+        window.complete(packetId);
+        assertTrue(future.join());
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void unknownPubrecStillAnswered() {
+        MqttInflightWindow window = window(4, 10, 0, 0);
+        window.received(42);
+        assertEquals(42, readPubrel(false));
+    }
+
+    @Test
+    public void packetIdWrapsAndSkipsIdsInUse() {
+        MqttInflightWindow window = window(2, 10, 0, 0);
+        //packet id 1一直不确认，回绕时必须跳过
+        CompletableFuture<Boolean> held = window.offer("held", MqttQoS.AT_LEAST_ONCE, payload());
+        MqttPublishMessage first = readPublish();
+        assertEquals(1, first.variableHeader().packetId());
+        first.release();
+        int expected = 2;
+        for (int i = 0; i < 70000; i++) {
+            window.offer("t", MqttQoS.AT_LEAST_ONCE, payload());
+            MqttPublishMessage publish = readPublish();
+            int packetId = publish.variableHeader().packetId();
+            publish.release();
+            assertEquals(expected, packetId);
+            window.ack(packetId);
+            expected = expected == 65535 ? 2 : expected + 1;
+        }
+        assertFalse(held.isDone());
+        window.ack(1);
+        assertTrue(held.join());
+    }
+
+    @Test
+    public void windowQueuesAndDropsWhenFull() {
+        MqttInflightWindow window = window(2, 1, 0, 0);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        ByteBuf dropped = payload();
+        for (int i = 0; i < 3; i++) {
+            futures.add(window.offer("t", MqttQoS.AT_LEAST_ONCE, payload()));
+        }
+        CompletableFuture<Boolean> overflow = window.offer("t", MqttQoS.AT_LEAST_ONCE, dropped);
+        assertFalse(overflow.join());
+        assertEquals(0, dropped.refCnt());
+        assertEquals(3, window.size());
+        MqttPublishMessage first = readPublish();
+        MqttPublishMessage second = readPublish();
+        assertNull(channel.readOutbound());
+        //确认一条后排队的那条马上发出
+        window.ack(first.variableHeader().packetId());
+        MqttPublishMessage third = readPublish();
+        assertTrue(futures.get(0).join());
+        assertEquals(2, window.size());
+        window.ack(second.variableHeader().packetId());
+        window.ack(third.variableHeader().packetId());
+        assertTrue(futures.get(1).join());
+        assertTrue(futures.get(2).join());
+        first.release();
+        second.release();
+        third.release();
+    }
+
+    @Test
+    public void retransmitWithDupThenGiveUp() throws Exception {
+        MqttInflightWindow window = window(4, 10, 1, 1);
+        ByteBuf payload = payload();
+        CompletableFuture<Boolean> future = window.offer("a/b", MqttQoS.AT_LEAST_ONCE, payload);
+        MqttPublishMessage publish = readPublish();
+        int packetId = publish.variableHeader().packetId();
+        publish.release();
+        //还没到重发时间，定时任务什么也不做
+        timer.fire();
+        assertNull(channel.readOutbound());
+        Thread.sleep(1100);
+        timer.fire();
+        MqttPublishMessage resent = readPublish();
+        assertTrue(resent.fixedHeader().isDup());
+        assertEquals(packetId, resent.variableHeader().packetId());
+        assertEquals("a/b", resent.variableHeader().topicName());
+        resent.release();
+        assertFalse(future.isDone());
+        Thread.sleep(1100);
+        timer.fire();
+        assertNull(channel.readOutbound());
+        assertFalse(future.join());
+        assertEquals(0, payload.refCnt());
+        assertEquals(0, window.size());
+        assertFalse(timer.pending());
+    }
+
+    @Test
+    public void retransmitAfterPubrecSendsPubrel() throws Exception {
+        MqttInflightWindow window = window(4, 10, 1, 3);
+        CompletableFuture<Boolean> future = window.offer("a/b", MqttQoS.EXACTLY_ONCE, payload());
+        MqttPublishMessage publish = readPublish();
+        int packetId = publish.variableHeader().packetId();
+        publish.release();
+        window.received(packetId);
+        assertEquals(packetId, readPubrel(false));
+        Thread.sleep(1100);
+        timer.fire();
+        assertEquals(packetId, readPubrel(true));
+        window.complete(packetId);
+        assertTrue(future.join());
+    }
+
+    @Test
+    public void closeFailsEverything() {
+        MqttInflightWindow window = window(1, 10, 1, 3);
+        ByteBuf inflight = payload();
+        ByteBuf waiting = payload();
+        CompletableFuture<Boolean> first = window.offer("t", MqttQoS.AT_LEAST_ONCE, inflight);
+        CompletableFuture<Boolean> second = window.offer("t", MqttQoS.AT_LEAST_ONCE, waiting);
+        readPublish().release();
+        window.close();
+        assertFalse(first.join());
+        assertFalse(second.join());
+        assertEquals(0, inflight.refCnt());
+        assertEquals(0, waiting.refCnt());
+        assertEquals(0, window.size());
+        assertTrue(timer.cancelled);
+    }
+
+    private MqttInflightWindow window(int windowSize, int maxWaiting, int retransmitInterval, int maxRetransmit) {
+        MqttServerServiceOption option = new MqttServerServiceOption.Builder()
+                .inflightWindow(windowSize)
+                .outboundQueueSize(maxWaiting)
+                .retransmitInterval(retransmitInterval)
+                .maxRetransmit(maxRetransmit)
+                .build();
+        return new MqttInflightWindow(channel, "test", option, timer);
+    }
+
+    private static ByteBuf payload() {
+        return Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8);
+    }
+
+    private MqttPublishMessage readPublish() {
+        Object message = channel.readOutbound();
+        assertTrue(message instanceof MqttPublishMessage, "expected PUBLISH but was " + message);
+        return (MqttPublishMessage) message;
+    }
+
+    private int readPubrel(boolean dup) {
+        Object message = channel.readOutbound();
+        assertTrue(message instanceof MqttMessage, "expected PUBREL but was " + message);
+        MqttMessage pubrel = (MqttMessage) message;
+        assertEquals(MqttMessageType.PUBREL, pubrel.fixedHeader().messageType());
+        assertEquals(dup, pubrel.fixedHeader().isDup());
+        return ((MqttMessageIdVariableHeader) pubrel.variableHeader()).messageId();
+    }
+
+    /**
+     * 只记录最近一个定时任务，fire时立即执行，任务提交到通道的任务随后在EmbeddedChannel里执行
+     */
+    private final class ManualTimer implements Timer {
+        private TimerTask task;
+        private boolean cancelled;
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            this.task = task;
+            return new Timeout() {
+                @Override
+                public Timer timer() {
+                    return ManualTimer.this;
+                }
+
+                @Override
+                public TimerTask task() {
+                    return task;
+                }
+
+                @Override
+                public boolean isExpired() {
+                    return ManualTimer.this.task != task;
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return cancelled;
+                }
+
+                @Override
+                public boolean cancel() {
+                    cancelled = true;
+                    ManualTimer.this.task = null;
+                    return true;
+                }
+            };
+        }
+
+        private boolean pending() {
+            return task != null;
+        }
+
+        private void fire() throws Exception {
+            TimerTask current = task;
+            assertNotNull(current, "no retransmit scheduled");
+            task = null;
+            current.run(null);
+            channel.runPendingTasks();
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 心跳检测的定时任务：有报文时按剩下的时间重新排，超时关闭通道，keepAlive变短时马上重新排并让旧任务失效。
+ * 用记录所有定时任务的假时间轮代替HashedWheelTimer，到期由测试手动触发；空闲时间通过touch传入过去的时间来模拟
+ *
+ * @author liuyi
+ */
+public class MqttKeepAliveTest {
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+    private final RecordingTimer timer = new RecordingTimer();
+
+    @AfterEach
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void schedulesOnCreate() {
+        new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        assertEquals(1, timer.timeouts.size());
+        assertEquals(TIMEOUT, timer.last().delayNanos);
+    }
+
+    @Test
+    public void activeChannelIsRescheduledForRemainingTime() {
+        MqttKeepAlive keepAlive = new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        keepAlive.touch(System.nanoTime() - TimeUnit.SECONDS.toNanos(4));
+        timer.last().fire();
+        assertTrue(channel.isActive());
+        assertEquals(2, timer.timeouts.size());
+        long delay = timer.last().delayNanos;
+        assertTrue(delay <= TimeUnit.SECONDS.toNanos(6) && delay > TimeUnit.SECONDS.toNanos(5), "delay=" + delay);
+    }
+
+    @Test
+    public void idleChannelIsClosed() {
+        MqttKeepAlive keepAlive = new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        keepAlive.touch(System.nanoTime() - TimeUnit.SECONDS.toNanos(11));
+        timer.last().fire();
+        assertFalse(channel.isActive());
+        assertEquals(1, timer.timeouts.size());
+    }
+
+    @Test
+    public void shorterKeepAliveReschedulesAndInvalidatesOldTask() {
+        MqttKeepAlive keepAlive = new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        ManualTimeout first = timer.last();
+        //2秒的keepAlive超时时间是3秒
+        keepAlive.keepAlive(2);
+        assertTrue(first.cancelled);
+        ManualTimeout second = timer.last();
+        assertNotSame(first, second);
+        assertTrue(second.delayNanos <= TimeUnit.SECONDS.toNanos(3));
+        //旧任务即使被执行也什么都不做
+        keepAlive.touch(System.nanoTime() - TimeUnit.SECONDS.toNanos(5));
+        first.fire();
+        assertTrue(channel.isActive());
+        assertEquals(2, timer.timeouts.size());
+        second.fire();
+        assertFalse(channel.isActive());
+    }
+
+    @Test
+    public void longerKeepAliveWaitsForScheduledTask() {
+        MqttKeepAlive keepAlive = new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        keepAlive.keepAlive(60);
+        assertEquals(1, timer.timeouts.size());
+        //超过了原来的10秒，但没超过新的90秒
+        keepAlive.touch(System.nanoTime() - TimeUnit.SECONDS.toNanos(20));
+        timer.last().fire();
+        assertTrue(channel.isActive());
+        long delay = timer.last().delayNanos;
+        assertTrue(delay <= TimeUnit.SECONDS.toNanos(70) && delay > TimeUnit.SECONDS.toNanos(69), "delay=" + delay);
+    }
+
+    @Test
+    public void zeroKeepAliveKeepsDefault() {
+        MqttKeepAlive keepAlive = new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        keepAlive.keepAlive(0);
+        assertEquals(1, timer.timeouts.size());
+        keepAlive.touch(System.nanoTime() - TimeUnit.SECONDS.toNanos(11));
+        timer.last().fire();
+        assertFalse(channel.isActive());
+    }
+
+    @Test
+    public void closedChannelStopsRescheduling() {
+        MqttKeepAlive keepAlive = new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        channel.close();
+        timer.last().fire();
+        assertEquals(1, timer.timeouts.size());
+        keepAlive.cancel();
+        assertTrue(timer.last().cancelled);
+    }
+
+    @Test
+    public void touchUpdatesLastActivity() {
+        MqttKeepAlive keepAlive = new MqttKeepAlive(channel, "test", timer, TIMEOUT);
+        keepAlive.touch(123L);
+        assertEquals(123L, keepAlive.getLastActivity());
+    }
+
+    private static final class RecordingTimer implements Timer {
+        private final List<ManualTimeout> timeouts = new ArrayList<>();
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            ManualTimeout timeout = new ManualTimeout(this, task, unit.toNanos(delay));
+            timeouts.add(timeout);
+            return timeout;
+        }
+
+        private ManualTimeout last() {
+            return timeouts.get(timeouts.size() - 1);
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+    }
+
+    private static final class ManualTimeout implements Timeout {
+        private final Timer timer;
+        private final TimerTask task;
+        private final long delayNanos;
+        private boolean cancelled;
+        private boolean expired;
+
+        private ManualTimeout(Timer timer, TimerTask task, long delayNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.delayNanos = delayNanos;
+        }
+
+        private void fire() {
+            expired = true;
+            try {
+                task.run(this);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Timer timer() {
+            return timer;
+        }
+
+        @Override
+        public TimerTask task() {
+            return task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expired;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean cancel() {
+            cancelled = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 离线消息的追加、确认删除、条数上限，重启后扫描恢复，写了一半的结尾，改了段大小后重启，以及压缩旧段
+ *
+ * @author liuyi
+ */
+public class MqttOfflineStoreTest {
+    private static final int SEGMENT = 1024;
+    private File dir;
+    private MqttOfflineStore store;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("offline").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void appendPendingRemove() throws IOException {
+        store = open(SEGMENT, 100);
+        assertTrue(store.append("a", "t/1", MqttQoS.AT_LEAST_ONCE, bytes("1")));
+        assertTrue(store.append("b", "t/2", MqttQoS.EXACTLY_ONCE, bytes("2")));
+        assertTrue(store.append("a", "t/3", MqttQoS.AT_LEAST_ONCE, bytes("3")));
+        assertEquals(3L, store.size());
+        List<MqttOfflineStore.StoredMessage> pending = store.pending("a");
+        assertEquals(Arrays.asList("1", "3"), payloads(pending));
+        assertEquals("t/1", pending.get(0).getTopic());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, pending.get(0).getQos());
+        assertTrue(pending.get(0).getSeq() < pending.get(1).getSeq());
+        assertEquals(MqttQoS.EXACTLY_ONCE, store.pending("b").get(0).getQos());
+        store.remove("a", pending.get(0).getSeq());
+        //重复确认不影响计数
+        store.remove("a", pending.get(0).getSeq());
+        assertEquals(Arrays.asList("3"), payloads(store.pending("a")));
+        assertEquals(2L, store.size());
+        assertTrue(store.pending("unknown").isEmpty());
+    }
+
+    @Test
+    public void oldestDroppedOverLimit() throws IOException {
+        store = open(SEGMENT, 3);
+        for (int i = 0; i < 5; i++) {
+            store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes(String.valueOf(i)));
+        }
+        assertEquals(Arrays.asList("2", "3", "4"), payloads(store.pending("a")));
+        assertEquals(3, store.size("a"));
+        assertEquals(3L, store.size());
+    }
+
+    @Test
+    public void tooLargeRejected() throws IOException {
+        store = open(SEGMENT, 100);
+        assertFalse(store.append("a", "t", MqttQoS.AT_LEAST_ONCE, new byte[SEGMENT]));
+        assertEquals(0L, store.size());
+    }
+
+    @Test
+    public void persistentFlagAndDiscard() throws IOException {
+        store = open(SEGMENT, 100);
+        store.setPersistent("a", true);
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("1"));
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("2"));
+        assertTrue(store.isPersistent("a"));
+        assertEquals(Arrays.asList("a"), store.getPersistentUuids());
+        store.setPersistent("a", false);
+        assertFalse(store.isPersistent("a"));
+        assertTrue(store.pending("a").isEmpty());
+        assertEquals(0L, store.size());
+        store.close();
+        store = open(SEGMENT, 100);
+        assertFalse(store.isPersistent("a"));
+        assertTrue(store.pending("a").isEmpty());
+    }
+
+    @Test
+    public void reopenRestoresIndex() throws IOException {
+        store = open(SEGMENT, 100);
+        store.setPersistent("a", true);
+        store.setPersistent("b", true);
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            store.append(i % 2 == 0 ? "a" : "b", "t/" + i, MqttQoS.AT_LEAST_ONCE, bytes("message-" + i));
+        }
+        for (MqttOfflineStore.StoredMessage message : store.pending("a")) {
+            seqs.add(message.getSeq());
+        }
+        //删掉a的前5条
+        for (int i = 0; i < 5; i++) {
+            store.remove("a", seqs.get(i));
+        }
+        store.setPersistent("b", false);
+        List<String> expected = payloads(store.pending("a"));
+        assertTrue(store.getSegmentCount() > 1);
+        store.close();
+
+        store = open(SEGMENT, 100);
+        assertEquals(expected, payloads(store.pending("a")));
+        assertTrue(store.pending("b").isEmpty());
+        assertEquals(Arrays.asList("a"), store.getPersistentUuids());
+        assertEquals(10L, store.size());
+        //重启后seq继续递增，不会和已有的重复
+        long last = seqs.get(seqs.size() - 1);
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("after"));
+        List<MqttOfflineStore.StoredMessage> pending = store.pending("a");
+        assertTrue(pending.get(pending.size() - 1).getSeq() > last);
+    }
+
+    /**
+     * 模拟写到一半断电：最后一条记录的正文被破坏，校验不通过。重启后丢掉这条，之前的都在，
+     * 之后写入的记录覆盖坏掉的位置，再次重启也能读到
+     */
+    @Test
+    public void tornTailRecovered() throws IOException {
+        store = open(SEGMENT, 100);
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("first"));
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("second"));
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("torn-tail-record"));
+        store.close();
+        store = null;
+        corrupt(bytes("torn-tail-record"));
+
+        store = open(SEGMENT, 100);
+        assertEquals(Arrays.asList("first", "second"), payloads(store.pending("a")));
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("third"));
+        store.close();
+
+        store = open(SEGMENT, 100);
+        assertEquals(Arrays.asList("first", "second", "third"), payloads(store.pending("a")));
+    }
+
+    /**
+     * 调大段大小后重启，最后一段还是原来的大小，写满时要按它自己的大小换段
+     */
+    @Test
+    public void reopenWithLargerSegmentSize() throws IOException {
+        store = open(SEGMENT, 1000);
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, bytes("before"));
+        store.close();
+
+        store = open(SEGMENT * 64, 1000);
+        byte[] payload = new byte[300];
+        for (int i = 0; i < 20; i++) {
+            assertTrue(store.append("a", "t", MqttQoS.AT_LEAST_ONCE, payload));
+        }
+        assertEquals(21, store.size("a"));
+        assertEquals(2, store.getSegmentCount());
+        store.close();
+
+        store = open(SEGMENT * 64, 1000);
+        assertEquals(21, store.size("a"));
+        assertEquals("before", payloads(store.pending("a")).get(0));
+    }
+
+    /**
+     * 调小段大小后重启，旧段里的大记录压缩时复制到新段也要放得下
+     */
+    @Test
+    public void reopenWithSmallerSegmentSizeCompacts() throws IOException {
+        store = open(SEGMENT * 4, 1000);
+        store.append("a", "t", MqttQoS.AT_LEAST_ONCE, new byte[2000]);
+        for (int i = 0; i < 20; i++) {
+            store.append("b", "t", MqttQoS.AT_LEAST_ONCE, new byte[200]);
+        }
+        for (MqttOfflineStore.StoredMessage message : store.pending("b")) {
+            store.remove("b", message.getSeq());
+        }
+        store.close();
+
+        store = open(SEGMENT, 1000);
+        store.maintain();
+        //a所在的第一段有效记录很少，已经压缩删除
+        assertFalse(new File(dir, String.format("%020d.log", 1)).exists());
+        assertEquals(2000, store.pending("a").get(0).getPayload().length);
+        store.close();
+        store = open(SEGMENT, 1000);
+        assertEquals(1, store.size("a"));
+        assertEquals(0, store.size("b"));
+    }
+
+    @Test
+    public void compactionKeepsLiveRecordsAndDeletes() throws IOException {
+        store = open(SEGMENT, 1000);
+        store.setPersistent("a", true);
+        byte[] payload = new byte[100];
+        for (int i = 0; i < 80; i++) {
+            store.append("a", "t", MqttQoS.AT_LEAST_ONCE, payload);
+        }
+        store.append("b", "t", MqttQoS.AT_LEAST_ONCE, bytes("keep-b"));
+        List<MqttOfflineStore.StoredMessage> pending = store.pending("a");
+        List<Long> kept = new ArrayList<>();
+        for (int i = 0; i < pending.size(); i++) {
+            if (i == 5 || i == 70) {
+                kept.add(pending.get(i).getSeq());
+            } else {
+                store.remove("a", pending.get(i).getSeq());
+            }
+        }
+        int before = store.getSegmentCount();
+        store.maintain();
+        int after = store.getSegmentCount();
+        assertTrue(after < before, "segments before=" + before + ",after=" + after);
+        assertEquals(after, dir.listFiles((d, name) -> name.endsWith(".log")).length);
+        assertEquals(kept, seqs(store.pending("a")));
+        assertEquals(Arrays.asList("keep-b"), payloads(store.pending("b")));
+        assertTrue(store.isPersistent("a"));
+        store.close();
+
+        //压缩后重启，被删除的消息不能复活，复制过去的记录按seq排序
+        store = open(SEGMENT, 1000);
+        assertEquals(kept, seqs(store.pending("a")));
+        assertEquals(Arrays.asList("keep-b"), payloads(store.pending("b")));
+        assertTrue(store.isPersistent("a"));
+        assertEquals(3L, store.size());
+    }
+
+    private MqttOfflineStore open(int segmentSize, int maxMessages) throws IOException {
+        return new MqttOfflineStore(dir.getPath(), segmentSize, maxMessages);
+    }
+
+    /**
+     * 找到包含marker的段文件，把marker的第一个字节改掉
+     */
+    private void corrupt(byte[] marker) throws IOException {
+        for (File file : dir.listFiles((d, name) -> name.endsWith(".log"))) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            for (int i = 0; i + marker.length <= content.length; i++) {
+                if (Arrays.equals(Arrays.copyOfRange(content, i, i + marker.length), marker)) {
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.seek(i);
+                        raf.write(marker[0] ^ 0xFF);
+                    }
+                    return;
+                }
+            }
+        }
+        fail("marker not found");
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> payloads(List<MqttOfflineStore.StoredMessage> messages) {
+        List<String> payloads = new ArrayList<>();
+        for (MqttOfflineStore.StoredMessage message : messages) {
+            payloads.add(new String(message.getPayload(), StandardCharsets.UTF_8));
+        }
+        return payloads;
+    }
+
+    private static List<Long> seqs(List<MqttOfflineStore.StoredMessage> messages) {
+        List<Long> seqs = new ArrayList<>();
+        for (MqttOfflineStore.StoredMessage message : messages) {
+            seqs.add(message.getSeq());
+        }
+        return seqs;
+    }
+}
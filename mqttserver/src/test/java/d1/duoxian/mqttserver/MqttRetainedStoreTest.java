@@ -0,0 +1,187 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 保留消息的覆盖、删除、通配符查询、按条数和字节数淘汰，以及快照写出后重新读回
+ *
+ * @author liuyi
+ */
+public class MqttRetainedStoreTest {
+    private File dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("retained").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void putOverwritesAndEmptyPayloadRemoves() {
+        MqttRetainedStore store = new MqttRetainedStore(0, 0, null, 0);
+        store.put("a/b", MqttQoS.AT_MOST_ONCE, bytes("1"));
+        store.put("a/b", MqttQoS.AT_LEAST_ONCE, bytes("22"));
+        assertEquals(1, store.size());
+        assertEquals("22", text(store.get("a/b")));
+        assertEquals(MqttQoS.AT_LEAST_ONCE, store.get("a/b").getQos());
+        assertEquals("a/b".length() + 2, store.getBytes());
+        assertTrue(store.put("a/b", MqttQoS.AT_MOST_ONCE, new byte[0]));
+        assertNull(store.get("a/b"));
+        assertEquals(0, store.size());
+        assertEquals(0L, store.getBytes());
+        assertTrue(store.match("#").isEmpty());
+    }
+
+    @Test
+    public void matchWildcards() {
+        MqttRetainedStore store = new MqttRetainedStore(0, 0, null, 0);
+        for (String topic : new String[]{"a", "a/b", "a/c", "a/b/c", "x/b", "$SYS/b"}) {
+            store.put(topic, MqttQoS.AT_MOST_ONCE, bytes(topic));
+        }
+        assertEquals(set("a/b", "a/c"), topics(store.match("a/+")));
+        assertEquals(set("a", "a/b", "a/c", "a/b/c"), topics(store.match("a/#")));
+        assertEquals(set("a/b", "x/b"), topics(store.match("+/b")));
+        assertEquals(set("a", "a/b", "a/c", "a/b/c", "x/b"), topics(store.match("#")));
+        assertEquals(set("$SYS/b"), topics(store.match("$SYS/#")));
+        assertEquals(set("a/b/c"), topics(store.match("a/b/c")));
+        assertTrue(store.match("a/#/c").isEmpty());
+    }
+
+    @Test
+    public void evictsOldestWhenOverCount() {
+        MqttRetainedStore store = new MqttRetainedStore(3, 0, null, 0);
+        store.put("t/1", MqttQoS.AT_MOST_ONCE, bytes("1"));
+        store.put("t/2", MqttQoS.AT_MOST_ONCE, bytes("2"));
+        store.put("t/3", MqttQoS.AT_MOST_ONCE, bytes("3"));
+        //更新t/1之后它变成最新的，最早的是t/2
+        store.put("t/1", MqttQoS.AT_MOST_ONCE, bytes("1"));
+        store.put("t/4", MqttQoS.AT_MOST_ONCE, bytes("4"));
+        assertEquals(3, store.size());
+        assertNull(store.get("t/2"));
+        assertEquals(set("t/1", "t/3", "t/4"), topics(store.match("t/+")));
+        assertEquals(1L, store.getEvictedCount());
+    }
+
+    @Test
+    public void evictsOldestWhenOverBytes() {
+        //每条消息topic 3字节加正文7字节
+        MqttRetainedStore store = new MqttRetainedStore(0, 25, null, 0);
+        store.put("t/1", MqttQoS.AT_MOST_ONCE, bytes("payload"));
+        store.put("t/2", MqttQoS.AT_MOST_ONCE, bytes("payload"));
+        assertEquals(20L, store.getBytes());
+        store.put("t/3", MqttQoS.AT_MOST_ONCE, bytes("payload"));
+        assertEquals(2, store.size());
+        assertEquals(20L, store.getBytes());
+        assertNull(store.get("t/1"));
+        //单条就超过上限的直接拒绝，不淘汰别的消息
+        assertFalse(store.put("t/4", MqttQoS.AT_MOST_ONCE, new byte[30]));
+        assertEquals(2, store.size());
+        assertEquals(1L, store.getEvictedCount());
+    }
+
+    @Test
+    public void evictionPrunesEmptyNodes() {
+        MqttRetainedStore store = new MqttRetainedStore(1, 0, null, 0);
+        store.put("a/b/c/d", MqttQoS.AT_MOST_ONCE, bytes("1"));
+        store.put("x", MqttQoS.AT_MOST_ONCE, bytes("2"));
+        assertNull(store.get("a/b/c/d"));
+        assertNull(store.get("a/b"));
+        assertEquals(set("x"), topics(store.match("#")));
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        String file = new File(dir, "retained.snapshot").getPath();
+        MqttRetainedStore store = new MqttRetainedStore(0, 0, file, 0);
+        store.put("a/b", MqttQoS.AT_LEAST_ONCE, bytes("hello"));
+        store.put("a/c", MqttQoS.EXACTLY_ONCE, new byte[]{0, 1, 2, (byte) 0xFF});
+        store.put("$SYS/x", MqttQoS.AT_MOST_ONCE, bytes("中文"));
+        store.put("removed", MqttQoS.AT_MOST_ONCE, bytes("x"));
+        store.remove("removed");
+        store.close();
+        assertTrue(new File(file).isFile());
+        assertFalse(new File(file + ".tmp").exists());
+
+        MqttRetainedStore loaded = new MqttRetainedStore(0, 0, file, 0);
+        assertEquals(3, loaded.size());
+        assertEquals(store.getBytes(), loaded.getBytes());
+        assertEquals("hello", text(loaded.get("a/b")));
+        assertEquals(MqttQoS.AT_LEAST_ONCE, loaded.get("a/b").getQos());
+        assertArrayEquals(new byte[]{0, 1, 2, (byte) 0xFF}, loaded.get("a/c").getPayload());
+        assertEquals(MqttQoS.EXACTLY_ONCE, loaded.get("a/c").getQos());
+        assertEquals("中文", text(loaded.get("$SYS/x")));
+        assertNull(loaded.get("removed"));
+        loaded.close();
+    }
+
+    @Test
+    public void snapshotLoadAppliesLimits() throws IOException {
+        String file = new File(dir, "retained.snapshot").getPath();
+        MqttRetainedStore store = new MqttRetainedStore(0, 0, file, 0);
+        for (int i = 0; i < 10; i++) {
+            store.put("t/" + i, MqttQoS.AT_MOST_ONCE, bytes("v" + i));
+        }
+        store.snapshot();
+        store.close();
+        //上限调小后重启，只留最后写入的几条
+        MqttRetainedStore loaded = new MqttRetainedStore(4, 0, file, 0);
+        assertEquals(set("t/6", "t/7", "t/8", "t/9"), topics(loaded.match("t/+")));
+        loaded.close();
+    }
+
+    @Test
+    public void unknownSnapshotIgnored() throws IOException {
+        File file = new File(dir, "retained.snapshot");
+        Files.write(file.toPath(), bytes("not a snapshot"));
+        MqttRetainedStore store = new MqttRetainedStore(0, 0, file.getPath(), 0);
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(MqttRetainedStore.RetainedMessage message) {
+        return new String(message.getPayload(), StandardCharsets.UTF_8);
+    }
+
+    private static Set<String> set(String... topics) {
+        Set<String> set = new HashSet<>();
+        for (String topic : topics) {
+            set.add(topic);
+        }
+        return set;
+    }
+
+    private static Set<String> topics(List<MqttRetainedStore.RetainedMessage> messages) {
+        Set<String> topics = new HashSet<>();
+        for (MqttRetainedStore.RetainedMessage message : messages) {
+            assertTrue(topics.add(message.getTopic()), "duplicate " + message.getTopic());
+        }
+        return topics;
+    }
+}
@@ -0,0 +1,164 @@
+package d1.duoxian.mqttserver;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 订阅树的通配符匹配、$开头的系统topic，以及并发订阅、取消订阅时空节点的删除
+ *
+ * @author liuyi
+ */
+public class MqttSubscriptionTrieTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20000;
+    private static final String[] FILTERS = {"a", "a/b", "a/+", "a/#", "+/b", "#", "a/b/c", "a/+/c", "x/y/z"};
+
+    @Test
+    public void singleLevelWildcard() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        assertTrue(trie.subscribe("sensor/+/temp", "s1", MqttQoS.AT_MOST_ONCE));
+        assertTrue(trie.match("sensor/1/temp").containsKey("s1"));
+        assertTrue(trie.match("sensor//temp").containsKey("s1"));
+        assertFalse(trie.match("sensor/1/2/temp").containsKey("s1"));
+        assertFalse(trie.match("sensor/1").containsKey("s1"));
+    }
+
+    @Test
+    public void multiLevelWildcardMatchesParent() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        trie.subscribe("a/#", "s1", MqttQoS.AT_MOST_ONCE);
+        assertTrue(trie.match("a").containsKey("s1"));
+        assertTrue(trie.match("a/b").containsKey("s1"));
+        assertTrue(trie.match("a/b/c/d").containsKey("s1"));
+        assertFalse(trie.match("b").containsKey("s1"));
+    }
+
+    @Test
+    public void systemTopicsSkipLeadingWildcards() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        trie.subscribe("#", "all", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("+/broker", "plus", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("$SYS/#", "sys", MqttQoS.AT_MOST_ONCE);
+        Map<String, MqttQoS> matched = trie.match("$SYS/broker");
+        assertEquals(1, matched.size());
+        assertTrue(matched.containsKey("sys"));
+        assertEquals(2, trie.match("x/broker").size());
+    }
+
+    @Test
+    public void wildcardTopicMatchesNothing() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        trie.subscribe("#", "all", MqttQoS.AT_MOST_ONCE);
+        assertTrue(trie.match("a/+").isEmpty());
+        assertTrue(trie.match("a/#").isEmpty());
+        assertTrue(trie.match("").isEmpty());
+    }
+
+    @Test
+    public void overlappingFiltersKeepHighestQos() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        trie.subscribe("a/b", "s1", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("a/+", "s1", MqttQoS.EXACTLY_ONCE);
+        trie.subscribe("#", "s1", MqttQoS.AT_LEAST_ONCE);
+        Map<String, MqttQoS> matched = trie.match("a/b");
+        assertEquals(1, matched.size());
+        assertEquals(MqttQoS.EXACTLY_ONCE, matched.get("s1"));
+    }
+
+    @Test
+    public void resubscribeOnlyUpdatesQos() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        trie.subscribe("a/b", "s1", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("a/b", "s1", MqttQoS.AT_LEAST_ONCE);
+        assertEquals(1L, trie.size());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, trie.match("a/b").get("s1"));
+    }
+
+    @Test
+    public void invalidFiltersRejected() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        assertFalse(trie.subscribe("a/#/b", "s1", MqttQoS.AT_MOST_ONCE));
+        assertFalse(trie.subscribe("a/b#", "s1", MqttQoS.AT_MOST_ONCE));
+        assertFalse(trie.subscribe("a+/b", "s1", MqttQoS.AT_MOST_ONCE));
+        assertFalse(trie.subscribe("", "s1", MqttQoS.AT_MOST_ONCE));
+        assertEquals(0L, trie.size());
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void unsubscribePrunesEmptyNodes() {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        trie.subscribe("a/b/c", "s1", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("a", "s2", MqttQoS.AT_MOST_ONCE);
+        assertTrue(trie.unsubscribe("a/b/c", "s1"));
+        assertFalse(trie.unsubscribe("a/b/c", "s1"));
+        assertFalse(trie.isEmpty());
+        assertTrue(trie.match("a").containsKey("s2"));
+        assertTrue(trie.unsubscribe("a", "s2"));
+        assertEquals(0L, trie.size());
+        assertTrue(trie.isEmpty());
+    }
+
+    /**
+     * 每个线程反复订阅、取消订阅同一批互相重叠的filter。取消订阅删除空节点时可能正好有别的线程在这个节点上订阅，
+     * 订阅不能挂到已经删除的节点上丢掉；全部取消后树上不能残留节点
+     */
+    @Test
+    public void concurrentChurnPrunesAndKeepsLiveSubscriptions() throws Exception {
+        MqttSubscriptionTrie<String> trie = new MqttSubscriptionTrie<>();
+        int[] thread = new int[1];
+        run(() -> {
+            int id;
+            synchronized (thread) {
+                id = thread[0]++;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < ROUNDS; i++) {
+                String filter = FILTERS[random.nextInt(FILTERS.length)];
+                String subscriber = "t" + id + "-" + random.nextInt(4);
+                assertTrue(trie.subscribe(filter, subscriber, MqttQoS.AT_MOST_ONCE));
+                //订阅成功后一定能匹配到，节点被并发删除时会重试挂到新节点上
+                assertTrue(trie.match(filter.replace("+", "q").replace("#", "q")).containsKey(subscriber));
+                trie.unsubscribe(filter, subscriber);
+            }
+        });
+        assertEquals(0L, trie.size());
+        assertTrue(trie.isEmpty());
+    }
+
+    /**
+     * 所有线程同时开始执行task，等全部结束，有异常时抛出
+     */
+    private static void run(Runnable task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    task.run();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}